@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//------------------------------------------------------------------------
+// AniFile - reads the .ani files that list a race's frames, one per line:
+//
+//     <image> <transparent colour> <colour map> <hotspot x> <hotspot y>
+//
+// Image names are relative to the .ani file.  Only the name and hotspot
+// matter here.  The bytes are parsed in place; the only objects made per
+// line are the Entry and the resolved name it holds.
+
+final class AniFile {
+
+    private AniFile() {}
+
+    // Returns the frames listed in data (the contents of an .ani file in the directory basedir),
+    // in order.  Blank lines are skipped; anything else that isn't a name and four numbers is an error.
+    static List<Entry> parse(ByteBuffer data, String basedir) throws IOException {
+        final ByteBuffer in = data.duplicate();
+        final byte[] prefix = (basedir.isEmpty() ? "" : basedir + "/").getBytes(StandardCharsets.UTF_8);
+        // the resolved name of the line being parsed, reused for every line
+        byte[] name = Arrays.copyOf(prefix, prefix.length + 64);
+        final int[] field = new int[4];
+        List<Entry> entries = new ArrayList<>();
+
+        int line = 0;
+        while (in.hasRemaining()) {
+            line++;
+            skipSpaces(in);
+            if (atEndOfLine(in)) {
+                skipLine(in);
+                continue;
+            }
+
+            int length = prefix.length;
+            while (in.hasRemaining() && !isSpace(peek(in))) {
+                if (length == name.length) name = Arrays.copyOf(name, length * 2);
+                name[length++] = in.get();
+            }
+            for (int i = 0; i < field.length; i++) {
+                skipSpaces(in);
+                field[i] = parseInt(in, line);
+            }
+            skipLine(in);
+            entries.add(new Entry(new String(name, 0, length, StandardCharsets.UTF_8), field[2], field[3]));
+        }
+        return entries;
+    }
+
+    private static int parseInt(ByteBuffer in, int line) throws IOException {
+        boolean negative = false;
+        if (in.hasRemaining() && (peek(in) == '-' || peek(in) == '+')) negative = (in.get() == '-');
+        long value = 0;
+        int digits = 0;
+        while (in.hasRemaining() && peek(in) >= '0' && peek(in) <= '9') {
+            value = value * 10 + (in.get() - '0');
+            if (++digits > 10) break;
+        }
+        if (digits == 0 || digits > 10 || value > Integer.MAX_VALUE || (in.hasRemaining() && !isSpace(peek(in))))
+            throw new IOException("Malformed number on line %d of .ani file".formatted(line));
+        return (int) (negative ? -value : value);
+    }
+
+    private static byte peek(ByteBuffer in) {
+        return in.get(in.position());
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean atEndOfLine(ByteBuffer in) {
+        return !in.hasRemaining() || peek(in) == '\n' || peek(in) == '\r';
+    }
+
+    // Skips spaces and tabs, but not line breaks
+    private static void skipSpaces(ByteBuffer in) {
+        while (in.hasRemaining() && (peek(in) == ' ' || peek(in) == '\t')) in.get();
+    }
+
+    // Skips to the start of the next line
+    private static void skipLine(ByteBuffer in) {
+        while (in.hasRemaining() && in.get() != '\n') {
+            // nothing
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // AniFile.Entry - the image for a frame, as a content pack entry name,
+    // and its hotspot at full size
+    record Entry(String filename, int hotspotX, int hotspotY) {}
+    // END AniFile.Entry
+    //------------------------------------------------------------------------
+}
+// END AniFile
+//------------------------------------------------------------------------
@@ -21,7 +21,7 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.os.SystemClock;
+import android.graphics.Rect;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -30,8 +30,8 @@ import androidx.annotation.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Objects;
 import java.util.Random;
 import java.util.function.Supplier;
 
@@ -45,6 +45,8 @@ class Animation implements AutoCloseable {
     // comm frame rate according to UQM sources
     public static final int FRAME_RATE = (1000 / 40);
     static final int DEFAULT_FRAME_DELAY = 0x7FFFFFFF;
+    // start decoding a track's stamps when it's due to be drawn within this many ms
+    static final int PREFETCH_MS = 500;
     public volatile int next_frame_delay;
 
     // The next index is randomly chosen.
@@ -80,32 +82,91 @@ class Animation implements AutoCloseable {
     private Content content;
     private final Canvas canvas;
     private final Bitmap result;
-    private final Random rand = new Random();
+    // The seed rand starts from, if this is to play the same way every run
+    private final Long seed = sSeed;
+    private final Random rand = (seed != null) ? new Random(seed) : new Random();
+    // The part of the result stamped since takeDirty() last asked, empty if right <= left; kept
+    // as ints rather than a Rect so it's there before anyone needs one
+    private int dirtyLeft, dirtyTop, dirtyRight, dirtyBottom;
+    // How many stamps have been drawn on the result, ever; if it hasn't moved, neither has anything
+    private long stamps;
+
+    // The clock every animation runs on; see AnimationClock
+    private static volatile AnimationClock sClock = AnimationClock.REAL;
+
+    // What every animation's random numbers start from, if they're to be the same every run
+    private static volatile Long sSeed = null;
 
     // TFB_Random() equivalent: rand.nextInt(0xFF), rand.nextInt(0xFFFF,), etc.
-    // GetTimeCounter() equivalent: SystemClock.uptimeMillis()
-    private long LastTime = SystemClock.uptimeMillis();
+    // GetTimeCounter() equivalent: sClock.uptimeMillis()
+    private long LastTime = sClock.uptimeMillis();
+    private final long StartTime = LastTime;
+
+    // Where the stamps drawn go, if anywhere, and where they come from instead of the tracks'
+    // alarms, if they're being replayed; see AnimationTrace
+    private AnimationTrace.Recorder recorder;
+    private AnimationTrace.Player player;
 
     @VisibleForTesting
     interface ContentFactory {
-        Content create(String[] alien_races, Context c, Supplier<Boolean> isCancelled) throws IOException;
+        Content create(String[] alien_races, Context c, Supplier<Boolean> isCancelled, int sampleSize) throws IOException;
     }
 
-    private static ContentFactory sContentFactory = Content::new;
+    private static ContentFactory sContentFactory = ContentCache::acquire;
 
     @VisibleForTesting
     static void setContentFactory(ContentFactory factory) {
         sContentFactory = factory;
     }
 
-    @SuppressLint("DiscouragedApi")
-    Animation(String alien_race, Context c, Supplier<Boolean> isCancelled) throws Exception {
+    // Animations run on clock from now on, as does the schedule they're ticked on; set it before
+    // making any, or the ones already running will jump to the new time
+    @VisibleForTesting
+    static void setClock(AnimationClock clock) {
+        sClock = clock;
+    }
+
+    static AnimationClock getClock() {
+        return sClock;
+    }
+
+    // Animations made from now on draw the same random numbers, from seed, or different ones
+    // every time, if it's null.  A seeded one decodes all its stamps up front, and keeps them, since
+    // when a track joins in would otherwise depend on how long its decodes took (see prefetchTracks())
+    @VisibleForTesting
+    static void setSeed(@Nullable Long seed) {
+        sSeed = seed;
+    }
+
+    Animation(String alien_race, Context c, Supplier<Boolean> isCancelled, int sampleSize) throws Exception {
 
         // works around a crash bug with
         // android.content.res.getIdentifier() on 4.x
         if (alien_race == null)
             throw new Exception("no alien_race passed");
 
+        this.frame = new ArrayList<>();
+        final RaceManifest.Race race = RaceManifest.get(alien_race);
+        if (race != null) {
+            this.content = sContentFactory.create(race.content(), c, isCancelled, sampleSize);
+            for (int[] track : race.tracks()) this.frame.add(new Frame(track));
+        } else {
+            loadFromResources(alien_race, c, isCancelled, sampleSize);
+        }
+        this.result = BitmapPool.mutableCopy(this.content.frame.get(0).content);
+        this.canvas = new Canvas(this.result);
+        prefetchTracks();
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "Animation initialized for race: " + alien_race);
+        if (Log.isLoggable(TAG, Log.VERBOSE))
+            Log.v(TAG, "Detailed animation data: " + this);
+    }
+
+    // The slow way, for a race that isn't in the RaceManifest generated at build time
+    @SuppressLint("DiscouragedApi")
+    private void loadFromResources(String alien_race, Context c, Supplier<Boolean> isCancelled, int sampleSize) throws Exception {
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "%s is not in the race manifest, looking it up in the resources".formatted(alien_race));
         final String PACKAGE_NAME = c.getPackageName();
         final Resources r = c.getResources();
         final int resid = r.getIdentifier(alien_race, "array", PACKAGE_NAME);
@@ -113,23 +174,14 @@ class Animation implements AutoCloseable {
         if (resid == 0)
             throw new Exception("Could not find resource id for " + alien_race);
 
-        this.frame = new ArrayList<>();
-
         boolean first = true;
         for (String res : r.getStringArray(resid)) {
             if (first) {
-                this.content = sContentFactory.create(r.getStringArray(r.getIdentifier(res, "array", PACKAGE_NAME)), c, isCancelled);
+                this.content = sContentFactory.create(r.getStringArray(r.getIdentifier(res, "array", PACKAGE_NAME)), c, isCancelled, sampleSize);
                 first = false;
             } else
                 this.frame.add(new Frame(r.getIntArray(r.getIdentifier(res, "array", PACKAGE_NAME))));
         }
-        final Bitmap bg = this.content.frame.get(0).content;
-        this.result = bg.copy(Objects.requireNonNull(bg.getConfig()), true);
-        this.canvas = new Canvas(this.result);
-        if (Log.isLoggable(TAG, Log.DEBUG))
-            Log.d(TAG, "Animation initialized for race: " + alien_race);
-        if (Log.isLoggable(TAG, Log.VERBOSE))
-            Log.v(TAG, "Detailed animation data: " + this);
     }
 
     @VisibleForTesting
@@ -139,15 +191,33 @@ class Animation implements AutoCloseable {
         for (int[] def : frameDefinitions) {
             this.frame.add(new Frame(def));
         }
-        final Bitmap bg = this.content.frame.get(0).content;
-        this.result = bg.copy(Objects.requireNonNull(bg.getConfig()), true);
+        this.result = BitmapPool.mutableCopy(this.content.frame.get(0).content);
         this.canvas = canvas != null ? canvas : new Canvas(this.result);
+        prefetchTracks();
     }
 
+    // The background is all there is to begin with, if the stamps are decoded lazily; get every
+    // track's stamps decoding, the ones that play most often first, so they start moving soonest.  A
+    // seeded animation has them all decoded right here instead (see setSeed()).
+    private void prefetchTracks() {
+        if (this.seed != null) {
+            this.content.decodeAll();
+            return;
+        }
+        List<Frame> tracks = new ArrayList<>();
+        for (Frame f : this.frame)
+            if (ANIM_DISABLED != (f.AnimFlags & ANIM_DISABLED) && COLORXFORM_ANIM != (f.AnimFlags & COLORXFORM_ANIM))
+                tracks.add(f);
+        tracks.sort(Comparator.comparingLong(Frame::meanCycle));
+        for (Frame f : tracks) this.content.prefetch(f.StartIndex, f.NumFrames);
+    }
+
+    // The result goes back to the BitmapPool, for the next decode to reuse, so this has to wait until
+    // nothing is going to draw it again; see WallpaperViewModel.setAnimation()
     @Override
     public void close() throws IOException {
         if (content != null) content.close();
-        if (result != null && !result.isRecycled()) result.recycle();
+        BitmapPool.put(result);
     }
 
     // Getters for testing purposes
@@ -159,14 +229,82 @@ class Animation implements AutoCloseable {
         return content;
     }
 
+    // The frames, and so the result, are 1/getSampleSize() of their original size on each side
+    public int getSampleSize() {
+        return content.sampleSize;
+    }
+
     private void DrawStamp(Content.Frame f) {
-        this.canvas.drawBitmap(f.content, f.hotspot.x(), f.hotspot.y(), null);
+        if (f.src != null)
+            this.canvas.drawBitmap(f.content, f.src, f.dst, null);
+        else
+            this.canvas.drawBitmap(f.content, f.hotspot.x(), f.hotspot.y(), null);
+        this.stamps++;
+
+        final int left = (int) Math.floor(f.hotspot.x());
+        final int top = (int) Math.floor(f.hotspot.y());
+        final int right = (int) Math.ceil(f.hotspot.x() + f.width);
+        final int bottom = (int) Math.ceil(f.hotspot.y() + f.height);
+        if (right <= left || bottom <= top) return;
+        if (this.dirtyRight <= this.dirtyLeft) {
+            this.dirtyLeft = left;
+            this.dirtyTop = top;
+            this.dirtyRight = right;
+            this.dirtyBottom = bottom;
+        } else {
+            this.dirtyLeft = Math.min(this.dirtyLeft, left);
+            this.dirtyTop = Math.min(this.dirtyTop, top);
+            this.dirtyRight = Math.max(this.dirtyRight, right);
+            this.dirtyBottom = Math.max(this.dirtyBottom, bottom);
+        }
+    }
+
+    public synchronized long getStampCount() {
+        return this.stamps;
+    }
+
+    // Sets out to the part of the result that's been stamped on since the last time this was
+    // called, in the result's coordinates, and forgets it.  Returns false, with out left alone,
+    // if nothing has been.
+    public synchronized boolean takeDirty(Rect out) {
+        if (this.dirtyRight <= this.dirtyLeft) return false;
+        out.set(this.dirtyLeft, this.dirtyTop, this.dirtyRight, this.dirtyBottom);
+        this.dirtyRight = this.dirtyLeft;
+        return true;
+    }
+
+    // Records every stamp drawn from now on, or stops if recorder is null
+    synchronized void record(@Nullable AnimationTrace.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    // Draws the stamps in player, at the times it has them, instead of running the tracks, or
+    // goes back to running them if player is null.  The recording should be of the same race.  Its
+    // stamps are all decoded first, on this thread, so that none is skipped for not being in yet.
+    void replay(@Nullable AnimationTrace.Player player) {
+        if (player != null) this.content.decodeAll();
+        synchronized (this) {
+            this.player = player;
+        }
+    }
+
+    // The composite as of the last tick(), without advancing anything; what a redraw that's only
+    // about where it goes on the screen (scrolling, scaling, a new surface) wants
+    public synchronized Bitmap currentFrame() {
+        return this.result;
+    }
+
+    // Advances the animation to now and returns the composite
+    public Bitmap getFrame() {
+        return tick(sClock.uptimeMillis());
     }
 
     // a simplified implementation of ambient_anim_task from the UQM sources
     //
-    public synchronized Bitmap getFrame() {
-        long CurTime = SystemClock.uptimeMillis();
+    // Advances every track by the time since the last tick, on the getClock() clock, draws
+    // their updated stamps onto the composite, and returns it
+    public synchronized Bitmap tick(long CurTime) {
+        if (this.player != null) return replayTick(CurTime);
         long ElapsedTicks = Long.min(CurTime - this.LastTime, Integer.MAX_VALUE);
 
         this.next_frame_delay = DEFAULT_FRAME_DELAY;
@@ -183,6 +321,12 @@ class Animation implements AutoCloseable {
             if (ANIM_DISABLED == (f.AnimFlags & ANIM_DISABLED))
                 continue;
 
+            // ...or its stamps are still being decoded; it joins in once they all are
+            if (!f.Ready && COLORXFORM_ANIM != (f.AnimFlags & COLORXFORM_ANIM)) {
+                if (!this.content.isDecoded(f.StartIndex, f.NumFrames)) continue;
+                f.Ready = true;
+            }
+
             // ...or it's not time yet
             if (f.Alarm > ElapsedTicks) {
                 f.Alarm -= (int) ElapsedTicks;
@@ -243,7 +387,14 @@ class Animation implements AutoCloseable {
             // Skip the draw when we've just applied a restart delay (cycle boundary).
             // setup next iteration alarm (only if not already set at boundary above)
             if (drawFrame) {
-                DrawStamp(this.content.frame.get(f.CurIndex));
+                Content.Frame stamp = this.content.stamp(f.CurIndex, CurTime);
+                if (stamp != null) {
+                    DrawStamp(stamp);
+                    if (this.recorder != null) this.recorder.record(CurTime - this.StartTime, i, f.CurIndex);
+                }
+                // It was dropped since the track started (see Content.dropStamps()), or didn't
+                // decode, and has been asked for again; the track waits for it, like it did to start
+                else f.Ready = false;
                 f.Alarm = f.randomFrameRate();
             }
             if (f.Alarm < this.next_frame_delay)
@@ -254,6 +405,36 @@ class Animation implements AutoCloseable {
         if (this.next_frame_delay < FRAME_RATE || this.next_frame_delay == DEFAULT_FRAME_DELAY)
             this.next_frame_delay = FRAME_RATE;
 
+        // Get the stamps of the tracks that are about to go decoding, if they aren't already, and
+        // those of the tracks still waiting to join in; their alarms don't run down until they do,
+        // so a prefetch that failed would otherwise never be tried again
+        for (Frame f : this.frame) {
+            if (ANIM_DISABLED == (f.AnimFlags & ANIM_DISABLED) || COLORXFORM_ANIM == (f.AnimFlags & COLORXFORM_ANIM))
+                continue;
+            if (!f.Ready || f.Alarm <= PREFETCH_MS)
+                this.content.prefetch(f.StartIndex, f.NumFrames);
+        }
+
+        return this.result;
+    }
+
+    // tick(), from a recording: draws every stamp recorded up to CurTime, and waits for the next one
+    private Bitmap replayTick(long CurTime) {
+        final long now = CurTime - this.StartTime;
+        this.LastTime = CurTime;
+        while (this.player.hasNext() && this.player.time() <= now) {
+            final int track = this.player.track();
+            final int index = this.player.index();
+            this.player.advance();
+            if (track >= this.frame.size() || index >= this.content.frame.size()) continue;
+            this.frame.get(track).CurIndex = index;
+            Content.Frame stamp = this.content.stamp(index, CurTime);
+            if (stamp != null) DrawStamp(stamp);
+        }
+
+        this.next_frame_delay = this.player.hasNext()
+                ? (int) Long.min(Long.max(this.player.time() - now, FRAME_RATE), Integer.MAX_VALUE)
+                : FRAME_RATE;
         return this.result;
     }
 
@@ -291,6 +472,8 @@ class Animation implements AutoCloseable {
         public Direction Direction;
         public int CurIndex;
         public int Alarm;
+        // Set once all of the stamps have been decoded
+        public boolean Ready;
 
         Frame(int[] i) {
             this.StartIndex = 0xFFFF & i[0];
@@ -313,6 +496,11 @@ class Animation implements AutoCloseable {
             this.Alarm = this.randomRestartRate();
         }
 
+        // Roughly how long one play of the animation takes, restart delay included
+        long meanCycle() {
+            return BaseRestartRate + RandomRestartRate / 2 + (long) NumFrames * (BaseFrameRate + RandomFrameRate / 2);
+        }
+
         public int randomFrameRate() {
             return BaseFrameRate + rand.nextInt(RandomFrameRate);
         }
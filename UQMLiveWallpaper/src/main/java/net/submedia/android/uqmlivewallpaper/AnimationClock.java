@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//------------------------------------------------------------------------
+// AnimationClock - the time the animations run on (see Animation.setClock()).
+//
+// REAL is SystemClock.uptimeMillis(), and what the wallpaper uses.  A
+// Manual clock only moves when it's told to, so that a test or benchmark
+// can tick an animation through hours of alarms as fast as it can draw
+// them, and a Scaled one runs some multiple of another clock's speed.
+
+interface AnimationClock {
+
+    AnimationClock REAL = SystemClock::uptimeMillis;
+
+    // The time on this clock, in milliseconds; like uptimeMillis(), only the differences matter
+    long uptimeMillis();
+
+    // How long to wait in real time for delayMillis to go by on this clock.  A clock that real
+    // time doesn't move just says delayMillis; nothing will have gone by, however long it is.
+    default long realDelay(long delayMillis) {
+        return delayMillis;
+    }
+
+    //------------------------------------------------------------------------
+    // AnimationClock.Manual - stands still until advance()d or set()
+    final class Manual implements AnimationClock {
+        private final AtomicLong now;
+
+        Manual(long start) {
+            this.now = new AtomicLong(start);
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return now.get();
+        }
+
+        // Moves the clock millis ahead, and returns the new time
+        long advance(long millis) {
+            if (millis < 0) throw new IllegalArgumentException("Clocks don't go backwards: " + millis);
+            return now.addAndGet(millis);
+        }
+
+        void set(long millis) {
+            now.set(millis);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "%s{now=%d}".formatted(getClass().getSimpleName(), now.get());
+        }
+    }
+    // END AnimationClock.Manual
+    //------------------------------------------------------------------------
+
+    //------------------------------------------------------------------------
+    // AnimationClock.Scaled - another clock, run rate times as fast from the
+    // moment this one is made
+    final class Scaled implements AnimationClock {
+        private final AnimationClock source;
+        private final float rate;
+        private final long origin;
+
+        Scaled(AnimationClock source, float rate) {
+            if (!(rate > 0)) throw new IllegalArgumentException("Rate must be positive: " + rate);
+            this.source = source;
+            this.rate = rate;
+            this.origin = source.uptimeMillis();
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return origin + (long) ((source.uptimeMillis() - origin) * (double) rate);
+        }
+
+        @Override
+        public long realDelay(long delayMillis) {
+            return (long) Math.ceil(source.realDelay(delayMillis) / (double) rate);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "%s{rate=%.2f, source=%s}".formatted(getClass().getSimpleName(), rate, source);
+        }
+    }
+    // END AnimationClock.Scaled
+    //------------------------------------------------------------------------
+}
+// END AnimationClock
+//------------------------------------------------------------------------
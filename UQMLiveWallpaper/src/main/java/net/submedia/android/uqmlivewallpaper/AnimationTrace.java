@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//------------------------------------------------------------------------
+// AnimationTrace - a recording of which stamps an animation drew, and when,
+// so that it can be played back exactly (see Animation.record() and
+// Animation.replay()), e.g., to compare two ways of compositing on the
+// very same frames, or to chase down a slow one.
+//
+// After a header of magic "UQMT" and a version number (big-endian ints),
+// each event is three unsigned LEB128 varints: the milliseconds since the
+// event before it (for the first, since the animation started), the track
+// that advanced, and the stamp it advanced to.  Most are 3 or 4 bytes.
+
+final class AnimationTrace {
+
+    // "UQMT", plus a version number to bump if the layout above ever changes
+    private static final int MAGIC = 0x55514D54;
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    private AnimationTrace() {}
+
+    //------------------------------------------------------------------------
+    // AnimationTrace.Recorder - collects events as they happen
+    static final class Recorder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private long last = 0;
+        private int events = 0;
+
+        Recorder() {
+            final byte[] header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array();
+            out.write(header, 0, header.length);
+        }
+
+        // Records that track advanced to stamp index, time ms after the animation started
+        synchronized void record(long time, int track, int index) {
+            if (time < last || track < 0 || index < 0)
+                throw new IllegalArgumentException("Bad event: %d ms, track %d, stamp %d".formatted(time, track, index));
+            writeVarint(time - last);
+            writeVarint(track);
+            writeVarint(index);
+            last = time;
+            events++;
+        }
+
+        synchronized int events() {
+            return events;
+        }
+
+        synchronized byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void writeVarint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        @NonNull
+        @Override
+        public synchronized String toString() {
+            return "%s{events=%d, bytes=%d}".formatted(getClass().getSimpleName(), events, out.size());
+        }
+    }
+    // END AnimationTrace.Recorder
+    //------------------------------------------------------------------------
+
+    //------------------------------------------------------------------------
+    // AnimationTrace.Player - the events of a recording, in order, and how
+    // far along them playback is
+    static final class Player {
+        private final long[] times;
+        private final int[] tracks;
+        private final int[] indices;
+        private int next = 0;
+
+        private Player(long[] times, int[] tracks, int[] indices) {
+            this.times = times;
+            this.tracks = tracks;
+            this.indices = indices;
+        }
+
+        // Reads all of the recording in data; a damaged one is rejected up front, rather than
+        // halfway through playing it
+        static Player parse(ByteBuffer data) throws IOException {
+            final ByteBuffer in = data.duplicate();
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException("Not an animation trace");
+
+            long[] times = new long[64];
+            int[] tracks = new int[64];
+            int[] indices = new int[64];
+            int count = 0;
+            long time = 0;
+            try {
+                while (in.hasRemaining()) {
+                    if (count == times.length) {
+                        times = Arrays.copyOf(times, count * 2);
+                        tracks = Arrays.copyOf(tracks, count * 2);
+                        indices = Arrays.copyOf(indices, count * 2);
+                    }
+                    time += readVarint(in, Long.MAX_VALUE - time);
+                    times[count] = time;
+                    tracks[count] = (int) readVarint(in, Integer.MAX_VALUE);
+                    indices[count] = (int) readVarint(in, Integer.MAX_VALUE);
+                    count++;
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Event %d is truncated".formatted(count), e);
+            }
+            return new Player(Arrays.copyOf(times, count), Arrays.copyOf(tracks, count), Arrays.copyOf(indices, count));
+        }
+
+        private static long readVarint(ByteBuffer in, long max) throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = in.get();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (v < 0 || v > max) throw new IOException("Value %d out of range".formatted(v));
+                    return v;
+                }
+            }
+            throw new IOException("Varint too long");
+        }
+
+        int events() {
+            return times.length;
+        }
+
+        boolean hasNext() {
+            return next < times.length;
+        }
+
+        // The next event: when it happens, in ms after the animation started, the track, and the
+        // stamp it draws
+        long time() {
+            return times[next];
+        }
+
+        int track() {
+            return tracks[next];
+        }
+
+        int index() {
+            return indices[next];
+        }
+
+        void advance() {
+            next++;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "%s{events=%d, next=%d}".formatted(getClass().getSimpleName(), times.length, next);
+        }
+    }
+    // END AnimationTrace.Player
+    //------------------------------------------------------------------------
+}
+// END AnimationTrace
+//------------------------------------------------------------------------
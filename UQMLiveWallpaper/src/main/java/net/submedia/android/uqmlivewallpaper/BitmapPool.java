@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+//------------------------------------------------------------------------
+// BitmapPool - a process-wide pool of mutable bitmaps that are no longer
+// in use, so that switching races reuses the old race's allocations for
+// the new one's, instead of freeing them all and allocating them again.
+//
+// Bitmaps are bucketed by their allocation size; any of them can be
+// reconfigure()d to a different size or config that fits, and decoded
+// into with BitmapFactory.Options.inBitmap.  The pool is bounded by the
+// memory it holds, and drops its largest bitmaps first when that's over.
+
+final class BitmapPool {
+
+    private static final String TAG = "UQMWallpaper.BitmapPool";
+    // don't hand out a bitmap more than this many times bigger than what was asked for
+    static final int MAX_OVERSIZE = 2;
+
+    private static final Object sLock = new Object();
+    private static final TreeMap<Integer, ArrayDeque<Bitmap>> sBuckets = new TreeMap<>();
+    private static long sBytes = 0;
+    // nothing is kept until someone sets a limit
+    private static long sMaxBytes = 0;
+
+    private BitmapPool() {}
+
+    // Sets the number of bytes of bitmaps the pool may hold on to, and drops some until they fit
+    static void setMaxBytes(long bytes) {
+        List<Bitmap> evicted;
+        synchronized (sLock) {
+            sMaxBytes = Math.max(0, bytes);
+            evicted = trim(sMaxBytes);
+        }
+        recycle(evicted);
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "Pool limit: %d bytes".formatted(sMaxBytes));
+    }
+
+    static boolean isEmpty() {
+        synchronized (sLock) {
+            return sBuckets.isEmpty();
+        }
+    }
+
+    // Returns a pooled bitmap, reconfigured to width x height in config, or null if there isn't one
+    // that will do.  Its pixels are whatever the last user left in them.
+    @Nullable
+    static Bitmap get(int width, int height, Bitmap.Config config) {
+        final long needed = (long) width * height * bytesPerPixel(config);
+        if (needed <= 0 || needed > Integer.MAX_VALUE) return null;
+
+        Bitmap bitmap = null;
+        synchronized (sLock) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = sBuckets.ceilingEntry((int) needed);
+            if (bucket != null && bucket.getKey() <= needed * MAX_OVERSIZE) {
+                bitmap = bucket.getValue().pop();
+                if (bucket.getValue().isEmpty()) sBuckets.remove(bucket.getKey());
+                sBytes -= bucket.getKey();
+            }
+        }
+        if (bitmap == null) return null;
+
+        try {
+            bitmap.reconfigure(width, height, config);
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not reconfigure pooled bitmap: " + e);
+            bitmap.recycle();
+            return null;
+        }
+    }
+
+    // Like Bitmap.createBitmap(width, height, config), but from the pool if possible; either way,
+    // the pixels start out transparent (or black, without alpha)
+    static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) return Bitmap.createBitmap(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    // Like source.copy(source.getConfig(), true), but into a pooled bitmap if there is one
+    static Bitmap mutableCopy(Bitmap source) {
+        final Bitmap.Config config = Objects.requireNonNull(source.getConfig());
+        Bitmap bitmap = get(source.getWidth(), source.getHeight(), config);
+        if (bitmap == null) return source.copy(config, true);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        new Canvas(bitmap).drawBitmap(source, 0, 0, null);
+        return bitmap;
+    }
+
+    // Hands a bitmap that is no longer in use to the pool.  Anything the pool can't use (immutable,
+    // or too big to keep) is recycled instead, so either way, the caller must not touch it again, or
+    // put it back a second time; a pooled bitmap may already have been handed to someone else.
+    static void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        final int bytes = bitmap.getAllocationByteCount();
+
+        List<Bitmap> evicted;
+        synchronized (sLock) {
+            if (!bitmap.isMutable() || bytes <= 0 || bytes > sMaxBytes) {
+                evicted = List.of(bitmap);
+            } else {
+                sBuckets.computeIfAbsent(bytes, k -> new ArrayDeque<>()).push(bitmap);
+                sBytes += bytes;
+                evicted = trim(sMaxBytes);
+            }
+        }
+        recycle(evicted);
+    }
+
+    // Drops every pooled bitmap, and returns how many bytes that freed
+    static long clear() {
+        final long before;
+        List<Bitmap> evicted;
+        synchronized (sLock) {
+            before = sBytes;
+            evicted = trim(0);
+        }
+        recycle(evicted);
+        return before;
+    }
+
+    // Removes the largest bitmaps until the pool fits in maxBytes.  Call with sLock held, and
+    // recycle() the results after letting go of it.
+    private static List<Bitmap> trim(long maxBytes) {
+        List<Bitmap> evicted = new ArrayList<>();
+        while (sBytes > maxBytes) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = sBuckets.lastEntry();
+            evicted.add(bucket.getValue().pop());
+            if (bucket.getValue().isEmpty()) sBuckets.remove(bucket.getKey());
+            sBytes -= bucket.getKey();
+        }
+        return evicted;
+    }
+
+    private static void recycle(List<Bitmap> bitmaps) {
+        for (Bitmap b : bitmaps)
+            if (!b.isRecycled()) b.recycle();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        return switch (config) {
+            case ALPHA_8 -> 1;
+            case RGB_565 -> 2;
+            case RGBA_F16 -> 8;
+            default -> 4;
+        };
+    }
+
+    @VisibleForTesting
+    static int size() {
+        synchronized (sLock) {
+            int count = 0;
+            for (ArrayDeque<Bitmap> bucket : sBuckets.values()) count += bucket.size();
+            return count;
+        }
+    }
+
+    @VisibleForTesting
+    static long bytes() {
+        synchronized (sLock) {
+            return sBytes;
+        }
+    }
+}
+// END BitmapPool
+//------------------------------------------------------------------------
@@ -17,32 +17,61 @@
 package net.submedia.android.uqmlivewallpaper;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.OperationCanceledException;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
+import org.apache.commons.compress.archivers.EntryStreamOffsets;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
 
 //------------------------------------------------------------------------
 // Content objects take a zipfile and an alien race, and extract
@@ -53,8 +82,111 @@ public class Content implements AutoCloseable {
 
     private static final String TAG = "UQMWallpaper.Content";
     public final List<Frame> frame;
+    // frames are decoded at 1/sampleSize of their size on each side, with the hotspots to match
+    public final int sampleSize;
     public ZipFile zipfile;
     private AssetFileDescriptor afd;
+    // memory-mapped view of the content pack, or null if the mapping could not be made
+    MappedSeekableByteChannel mapped;
+    // where the comm entries live in the mapping; when this is set, zipfile may be null
+    ContentIndex index;
+    // the content pack, if it couldn't be mapped; zipfile reads through it too, and owns it
+    BoundedSeekableByteChannel channel;
+    // entries that readAhead() has already read, for readEntry() to hand out, once each
+    private final Map<String, ByteBuffer> staged = new ConcurrentHashMap<>();
+    // Content can be shared (see ContentCache); every holder closes it once.  When the last one does,
+    // it's either released right away, or handed to onIdle, which decides when to release() it.
+    private int refs = 1;
+    private boolean released;
+    private Runnable onIdle;
+    // bytes of transparent borders trimmed off the stamps while decoding them, and whether that's
+    // been reported yet, for race (see reportTrimmed())
+    private final AtomicLong trimmedBytes = new AtomicLong();
+    private boolean trimReported;
+    private String race;
+    // Set if the stamps are decoded on demand (see stamp()).  The rest is guarded by this: the decodes
+    // in progress, by frame index; how many stamps are still placeholders; which ones some track has
+    // asked for; when each one was last drawn; whether they're kept once decoded (see decodeAll());
+    // and where to save the frames once they're all decoded.
+    private boolean lazy;
+    private boolean pinned;
+    private final Map<Integer, FutureTask<Frame>> pending = new HashMap<>();
+    private volatile int undecoded;
+    private final BitSet referenced = new BitSet();
+    private AtomicLongArray lastUsed;
+    private FrameCache pendingCache;
+    private String pendingCacheKey;
+
+    // Frames are decoded in parallel on a small pool shared by every Content, sized to the number of
+    // cores; the threads are daemons, so an idle pool never holds up anything.
+    private static class DecodeExecutorHolder {
+        private static final AtomicInteger sThreadCount = new AtomicInteger();
+        static final Executor INSTANCE = Executors.newFixedThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors()),
+                r -> {
+                    Thread t = new Thread(r, "UQMWallpaper-decode-" + sThreadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    private static Executor sDecodeExecutor;
+
+    // readAhead() reads entries that are at most READ_AHEAD_GAP apart in one go, gaps and all, as long
+    // as that makes reads of no more than READ_AHEAD_MAX
+    static final long READ_AHEAD_GAP = 64 * 1024;
+    static final long READ_AHEAD_MAX = 4 * 1024 * 1024;
+    private static final int PAGE_SIZE = 4096;
+
+    @VisibleForTesting
+    static void setDecodeExecutor(Executor executor) {
+        sDecodeExecutor = executor;
+    }
+
+    private static Executor decodeExecutor() {
+        return (sDecodeExecutor != null) ? sDecodeExecutor : DecodeExecutorHolder.INSTANCE;
+    }
+
+    // The sample size for Content loaded from now on; anything already loaded keeps its own.  This is
+    // raised when memory gets critically low (see UQMWallpaper.onTrimMemory()).
+    private static volatile int sSampleSize = 1;
+
+    static void setSampleSize(int sampleSize) {
+        sSampleSize = Math.max(1, sampleSize);
+    }
+
+    static int sampleSize() {
+        return sSampleSize;
+    }
+
+    // The sample size Content asked for at requested is actually loaded at; never finer than the
+    // global one
+    static int effectiveSampleSize(int requested) {
+        return Math.max(sSampleSize, Math.max(1, requested));
+    }
+
+    // Whether stamps are left to be decoded when they're first drawn, rather than all up front
+    private static volatile boolean sLazyDecoding = true;
+
+    @VisibleForTesting
+    static void setLazyDecoding(boolean enabled) {
+        sLazyDecoding = enabled;
+    }
+
+    // Whether stamps are packed into atlas pages after loading (see packAtlas()).  Only a race that's
+    // loaded with every stamp at once gets packed, which, with lazy decoding on, means the second
+    // load of it onwards, from the frame cache or the decoded pack; the first is left unpacked.
+    private static volatile boolean sAtlasEnabled = true;
+
+    @VisibleForTesting
+    static void setAtlasEnabled(boolean enabled) {
+        sAtlasEnabled = enabled;
+    }
+
+    // Frames decoded at different sample sizes are different content, as far as caching goes
+    static String cacheKey(String alien_race, int sampleSize) {
+        return (sampleSize == 1) ? alien_race : "%s@%d".formatted(alien_race, sampleSize);
+    }
 
     // attempts to find the .ani file for the given alien_race, and loads all
     // of the contents described in it
@@ -62,13 +194,40 @@ public class Content implements AutoCloseable {
     // XXX: alien_races is a String array of all known names for a race,
     // which unfortunately means tracking content changes upstream...
     Content(String[] alien_races, Context c, Supplier<Boolean> isCancelled) throws IOException {
-        this.frame = new ArrayList<>();
+        this(alien_races, c, isCancelled, 1);
+    }
+
+    // The same, with the frames decoded at 1/sampleSize of their size (or coarser; see
+    // effectiveSampleSize()), e.g., for a surface that only draws them that small
+    Content(String[] alien_races, Context c, Supplier<Boolean> isCancelled, int sampleSize) throws IOException {
+        // Lazily decoded stamps are swapped in while the frames are being drawn
+        this.frame = new CopyOnWriteArrayList<>();
+        this.sampleSize = effectiveSampleSize(sampleSize);
         try {
             if (isCancelled.get()) throw new OperationCanceledException();
-            String[] assets = c.getAssets().list("");
-            if (assets == null) throw new IOException("Assets list is null");
-            this.zipfile = setupContent(assetMatching(".uqm", assets), c);
-            loadFrames(alien_races, isCancelled);
+            FrameCache cache = FrameCache.forContext(c);
+            final String key = cacheKey(alien_races[0], this.sampleSize);
+            if (cache == null || !loadCachedFrames(cache, key)) {
+                String[] assets = c.getAssets().list("");
+                if (assets == null) throw new IOException("Assets list is null");
+                // The decoded pack only has frames at full size
+                String decodedPack = (this.sampleSize == 1) ? assetMatchingOrNull(DecodedPack.SUFFIX, assets) : null;
+                if (decodedPack == null || !loadPackedFrames(decodedPack, alien_races, c)) {
+                    this.zipfile = setupContent(assetMatching(".uqm", assets), c);
+                    loadFrames(alien_races, isCancelled);
+                    if (cache != null && this.lazy) {
+                        // Wait until every stamp has been decoded
+                        this.pendingCache = cache;
+                        this.pendingCacheKey = key;
+                    } else if (cache != null) {
+                        saveCachedFrames(cache, key);
+                    }
+                }
+            }
+            // The atlas needs every stamp; lazily loaded races get one the next time, from the cache
+            // (see install()).  It isn't packed once they're all in, since the stamps it would replace
+            // may be being drawn right then, and couldn't go back to the pool (see dropStamps()).
+            if (sAtlasEnabled && !this.lazy) packAtlas(key);
         } catch (Exception e) {
             if (e instanceof OperationCanceledException) throw e;
             // Chain exception
@@ -82,20 +241,460 @@ public class Content implements AutoCloseable {
     private void loadFrames(String[] alien_races, Supplier<Boolean> isCancelled) throws IOException {
         for (String alien_race : alien_races) {
             String file = "base/comm/%s/%s.ani".formatted(alien_race, alien_race);
-            ZipArchiveEntry entry = this.zipfile.getEntry(file);
-            if (entry != null) {
-                for (String frame : aniToFileList(file)) {
-                    if (isCancelled.get()) throw new OperationCanceledException();
-                    this.frame.add(new Frame(frame, isCancelled));
+            if (hasEntry(file)) {
+                this.race = alien_race;
+                List<AniFile.Entry> defs = readAni(file);
+                // All of the race, even if only the background is decoded now; the stamps decoded
+                // later find their entries staged, or in the page cache
+                if (defs.size() > 1) readAhead(defs);
+                if (sLazyDecoding && defs.size() > 1) {
+                    // Only the background is needed up front; the stamps are placeholders for now
+                    decodeFrames(defs.subList(0, 1), isCancelled);
+                    for (AniFile.Entry def : defs.subList(1, defs.size())) this.frame.add(new Frame(def));
+                    this.lastUsed = new AtomicLongArray(defs.size());
+                    this.undecoded = defs.size() - 1;
+                    this.lazy = true;
+                    return;
                 }
+                decodeFrames(defs, isCancelled);
+                reportTrimmed();
                 return;
             }
         }
         throw new IOException("error loading content, tried " + Arrays.toString(alien_races));
     }
 
+    // Decodes all the frames on the decode executor, and adds them in .ani order.  The first failure
+    // (or a cancellation) stops the whole thing; frames that haven't started yet are cancelled, and
+    // any that were already decoded are recycled.
+    private void decodeFrames(List<AniFile.Entry> defs, Supplier<Boolean> isCancelled) throws IOException {
+        List<FutureTask<Frame>> tasks = new ArrayList<>(defs.size());
+        for (int i = 0; i < defs.size(); i++) {
+            final AniFile.Entry def = defs.get(i);
+            // The first frame is the background, which has to stay the size of the whole picture
+            final boolean trim = (i > 0);
+            FutureTask<Frame> task = new FutureTask<>(() -> new Frame(def, isCancelled, trim));
+            tasks.add(task);
+            decodeExecutor().execute(task);
+        }
+
+        boolean complete = false;
+        try {
+            for (Future<Frame> task : tasks) {
+                if (isCancelled.get()) throw new OperationCanceledException();
+                this.frame.add(task.get());
+            }
+            complete = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding frames");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw new IOException("Could not decode frame: " + e.getCause(), e.getCause());
+        } finally {
+            if (!complete) abandonFrames(tasks);
+        }
+    }
+
+    private static void abandonFrames(List<FutureTask<Frame>> tasks) {
+        for (FutureTask<Frame> task : tasks) {
+            if (task.cancel(false)) continue;
+            try {
+                BitmapPool.put(task.get().content);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // already failed, nothing to clean up
+            }
+        }
+    }
+
+    // Restores frames decoded by an earlier load of the same race, if there are any.  Everything
+    // here is an optimization, so a failure part of the way through just means decoding as usual.
+    private boolean loadCachedFrames(FrameCache cache, String key) {
+        List<FrameCache.Entry> entries = cache.load(key);
+        if (entries == null) return false;
+
+        for (FrameCache.Entry e : entries) {
+            Bitmap bitmap = restoreBitmap(e.width(), e.height(), e.config(), e.pixels());
+            if (bitmap == null) {
+                if (Log.isLoggable(TAG, Log.WARN))
+                    Log.w(TAG, "Cached frame %s doesn't fit its bitmap, decoding instead".formatted(e.filename()));
+                recycleFrames();
+                this.frame.clear();
+                return false;
+            }
+            this.frame.add(new Frame(e.filename(), new Frame.Hotspot(e.x(), e.y()), bitmap));
+        }
+        if (Log.isLoggable(TAG, Log.INFO))
+            Log.i(TAG, "Loaded %d cached frames for %s".formatted(this.frame.size(), key));
+        return true;
+    }
+
+    // Copies the frames of the first of alien_races that's in the decoded pack straight into
+    // bitmaps.  Like the frame cache, the pack is only an optimization, so if anything is wrong
+    // with it, the race is decoded from the content pack as usual.
+    private boolean loadPackedFrames(String pack, String[] alien_races, Context c) {
+        try {
+            DecodedPack decoded = DecodedPack.parse(mapDecodedPack(pack, c));
+            for (String alien_race : alien_races) {
+                List<DecodedPack.Entry> entries = decoded.frames(alien_race);
+                if (entries == null) continue;
+                for (DecodedPack.Entry e : entries) {
+                    Bitmap bitmap = restoreBitmap(e.width(), e.height(), e.config(), e.pixels());
+                    if (bitmap == null) throw new IOException("Frame %s doesn't fit its bitmap".formatted(e.filename()));
+                    this.frame.add(new Frame(e.filename(), new Frame.Hotspot(e.x(), e.y()), bitmap));
+                }
+                if (Log.isLoggable(TAG, Log.INFO))
+                    Log.i(TAG, "Loaded %d frames for %s from %s".formatted(this.frame.size(), alien_race, pack));
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not load frames from %s, decoding instead: %s".formatted(pack, e));
+            recycleFrames();
+            this.frame.clear();
+        }
+        return false;
+    }
+
+    // Maps the decoded pack in place in the APK, like setupContent() does the content pack.  The
+    // mapping outlives the descriptor, and goes away when the last of its buffers does.
+    protected ByteBuffer mapDecodedPack(String pack, Context c) throws IOException {
+        try (AssetFileDescriptor fd = c.getAssets().openFd(pack)) {
+            if (fd.getLength() <= 0 || fd.getLength() > Integer.MAX_VALUE)
+                throw new IOException("%s is %d bytes".formatted(pack, fd.getLength()));
+            FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+        }
+    }
+
+    // Returns a width x height bitmap holding pixels, preferably one from the BitmapPool, or null if
+    // the pixels don't fit it
+    @Nullable
+    private static Bitmap restoreBitmap(int width, int height, Bitmap.Config config, ByteBuffer pixels) {
+        Bitmap bitmap = BitmapPool.get(width, height, config);
+        if (bitmap == null) bitmap = Bitmap.createBitmap(width, height, config);
+        if (bitmap == null || bitmap.getByteCount() != pixels.remaining()) {
+            BitmapPool.put(bitmap);
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(pixels);
+        return bitmap;
+    }
+
+    // Each frame is saved in whatever config it was decoded in; BitmapFactory is free to ignore
+    // inPreferredConfig, and does for anything with transparency.
+    private void saveCachedFrames(FrameCache cache, String key) {
+        List<FrameCache.Entry> entries = new ArrayList<>(this.frame.size());
+        for (Frame f : this.frame) {
+            final Bitmap.Config config = (f.content != null) ? f.content.getConfig() : null;
+            if (!FrameCache.canSave(config)) {
+                if (Log.isLoggable(TAG, Log.WARN))
+                    Log.w(TAG, "Not caching frames for %s, %s is %s".formatted(key, f.filename, (f.content != null) ? config : "not decoded"));
+                return;
+            }
+            ByteBuffer pixels = ByteBuffer.allocate(f.content.getByteCount());
+            f.content.copyPixelsToBuffer(pixels);
+            pixels.flip();
+            entries.add(new FrameCache.Entry(f.filename, f.hotspot.x(), f.hotspot.y(), f.width, f.height, config, pixels));
+        }
+        try {
+            cache.save(key, entries);
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not cache frames for %s: %s".formatted(key, e));
+        }
+    }
+
+    // Copies the stamps (every frame but the first, which is the background, and is only ever copied
+    // whole) into a few atlas pages, and recycles their own bitmaps.  The frames then refer to their
+    // part of a page, see Frame.src.  The pages are all allocated before anything is copied, so if
+    // that fails, the frames are left as they were.
+    private void packAtlas(String key) {
+        final int stamps = this.frame.size() - 1;
+        if (stamps < 2) return;
+
+        int[] widths = new int[stamps];
+        int[] heights = new int[stamps];
+        // Stamps with transparency won't have been decoded as RGB_565, and need pages that keep it
+        Bitmap.Config config = Bitmap.Config.RGB_565;
+        for (int i = 0; i < stamps; i++) {
+            Frame f = this.frame.get(i + 1);
+            widths[i] = f.width;
+            heights[i] = f.height;
+            if (f.content.getConfig() != Bitmap.Config.RGB_565) config = Bitmap.Config.ARGB_8888;
+        }
+        FrameAtlas.Layout layout = FrameAtlas.pack(widths, heights, FrameAtlas.MAX_PAGE_SIDE);
+
+        List<Bitmap> pages = new ArrayList<>(layout.pages().size());
+        try {
+            for (FrameAtlas.Page page : layout.pages())
+                pages.add(Objects.requireNonNull(BitmapPool.obtain(page.width(), page.height(), config)));
+        } catch (RuntimeException | OutOfMemoryError e) {
+            // Packing briefly needs room for two copies of every stamp; without it, keep the one
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not allocate atlas for %s, keeping separate frames: %s".formatted(key, e));
+            for (Bitmap page : pages) BitmapPool.put(page);
+            return;
+        }
+
+        List<Canvas> canvases = new ArrayList<>(pages.size());
+        for (Bitmap page : pages) canvases.add(new Canvas(page));
+        for (int i = 0; i < stamps; i++) {
+            FrameAtlas.Slot slot = layout.slot(i);
+            if (slot == null) continue;
+            Frame f = this.frame.get(i + 1);
+            canvases.get(slot.page()).drawBitmap(f.content, slot.x(), slot.y(), null);
+            this.frame.set(i + 1, new Frame(f, pages.get(slot.page()), slot.x(), slot.y()));
+            BitmapPool.put(f.content);
+        }
+        if (Log.isLoggable(TAG, Log.INFO))
+            Log.i(TAG, "Packed %d frames for %s into %d %s atlas page(s) %s, %d pixels unused".formatted(
+                    stamps, key, pages.size(), config, layout.pages(), layout.wastedPixels(widths, heights)));
+    }
+
+    // Returns {left, top, right, bottom} of the smallest rectangle holding every pixel of argb (a
+    // width x height image) that isn't fully transparent, or null if there are none
+    @VisibleForTesting
+    static int[] visibleBounds(int[] argb, int width, int height) {
+        int top = 0;
+        while (top < height && isTransparentRow(argb, width, top)) top++;
+        if (top == height) return null;
+        int bottom = height;
+        while (isTransparentRow(argb, width, bottom - 1)) bottom--;
+
+        int left = width, right = 0;
+        for (int y = top; y < bottom; y++) {
+            final int row = y * width;
+            int l = 0;
+            while (l < left && (argb[row + l] >>> 24) == 0) l++;
+            left = l;
+            int r = width;
+            while (r > right && (argb[row + r - 1] >>> 24) == 0) r--;
+            right = r;
+        }
+        return new int[]{left, top, right, bottom};
+    }
+
+    private static boolean isTransparentRow(int[] argb, int width, int y) {
+        final int row = y * width;
+        for (int x = 0; x < width; x++)
+            if ((argb[row + x] >>> 24) != 0) return false;
+        return true;
+    }
+
+    // Returns frame i, ready to draw at uptime now, or null if it isn't decoded.  A stamp that hasn't
+    // been decoded yet (or was dropped) is prefetched, rather than decoded right here; the caller is
+    // drawing, and would rather skip it than wait for it.
+    @Nullable
+    Frame stamp(int i, long now) {
+        final Frame f = this.frame.get(i);
+        if (!this.lazy) return f;
+        this.lastUsed.set(i, now);
+        if (f.content != null) return f;
+
+        prefetch(i, 1);
+        final Frame decoded = this.frame.get(i);
+        return (decoded.content != null) ? decoded : null;
+    }
+
+    // Returns frame i, decoding it on this thread, or null if it can't be decoded.  A prefetch of it
+    // that hasn't started yet is run right here, rather than waited for, since this may be holding
+    // up the very thread it's queued for; one that has started is waited for.  Not for anything
+    // that's drawing.
+    @Nullable
+    private Frame decodeNow(int i) {
+        final Frame f = this.frame.get(i);
+        if (f.content != null) return f;
+
+        final FutureTask<Frame> task;
+        synchronized (this) {
+            if (this.released) return null;
+            FutureTask<Frame> running = this.pending.get(i);
+            task = (running != null) ? running : decodeTask(i, f.def);
+        }
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    // Whether frames [from, from + count) are all decoded, and can be drawn without waiting
+    boolean isDecoded(int from, int count) {
+        if (!this.lazy || this.undecoded == 0) return true;
+        for (int i = Math.max(1, from); i < Math.min(this.frame.size(), from + count); i++)
+            if (this.frame.get(i).content == null) return false;
+        return true;
+    }
+
+    // Decodes every stamp that isn't yet, on this thread, and keeps them all from then on rather than
+    // dropping the unused ones; for animations that have to play the same way every run, and so
+    // can't wait on decodes (see Animation.setSeed()).  Not for anything that's drawing.
+    void decodeAll() {
+        if (!this.lazy) return;
+        synchronized (this) {
+            if (this.released) return;
+            this.pinned = true;
+        }
+        for (int i = 1; i < this.frame.size(); i++) decodeNow(i);
+    }
+
+    // Starts decoding frames [from, from + count) in the background, ahead of them being drawn
+    void prefetch(int from, int count) {
+        if (!this.lazy || this.undecoded == 0) return;
+        List<FutureTask<Frame>> tasks = new ArrayList<>();
+        synchronized (this) {
+            if (this.released) return;
+            for (int i = Math.max(1, from); i < Math.min(this.frame.size(), from + count); i++) {
+                this.referenced.set(i);
+                Frame f = this.frame.get(i);
+                if (f.content == null && !this.pending.containsKey(i)) tasks.add(decodeTask(i, f.def));
+            }
+        }
+        for (FutureTask<Frame> task : tasks) decodeExecutor().execute(task);
+    }
+
+    // Call with the lock held.  A failed decode is forgotten, so that the next stamp() tries again.
+    private FutureTask<Frame> decodeTask(int i, AniFile.Entry def) {
+        FutureTask<Frame> task = new FutureTask<>(() -> {
+            try {
+                return install(i, new Frame(def, () -> false, true));
+            } catch (IOException | RuntimeException e) {
+                if (Log.isLoggable(TAG, Log.WARN))
+                    Log.w(TAG, "Could not decode %s: %s".formatted(def.filename(), e));
+                synchronized (this) {
+                    this.pending.remove(i);
+                }
+                throw e;
+            }
+        });
+        this.pending.put(i, task);
+        return task;
+    }
+
+    // Swaps a freshly decoded stamp in for its placeholder.  Once every stamp a track has asked for
+    // is in, the frames are saved to the frame cache, in the background.  The cache wants all of them,
+    // so the ones no track uses are decoded then, too, for the next load of the race to start with.
+    private Frame install(int i, Frame decoded) {
+        final FrameCache cache;
+        synchronized (this) {
+            this.pending.remove(i);
+            if (this.released) {
+                BitmapPool.put(decoded.content);
+                return null;
+            }
+            this.frame.set(i, decoded);
+            if (--this.undecoded == 0) reportTrimmed();
+            if (this.pendingCache == null || !referencedDecoded()) return decoded;
+            cache = this.pendingCache;
+            this.pendingCache = null;
+        }
+        decodeExecutor().execute(() -> {
+            if (!retain()) return;
+            try {
+                for (int j = 1; j < this.frame.size(); j++) decodeNow(j);
+                saveCachedFrames(cache, this.pendingCacheKey);
+            } finally {
+                try {
+                    close();
+                } catch (IOException e) {
+                    if (Log.isLoggable(TAG, Log.WARN))
+                        Log.w(TAG, "Could not close content: " + e);
+                }
+            }
+        });
+        return decoded;
+    }
+
+    // Call with the lock held
+    private boolean referencedDecoded() {
+        for (int i = this.referenced.nextSetBit(0); i >= 0; i = this.referenced.nextSetBit(i + 1))
+            if (this.frame.get(i).content == null) return false;
+        return true;
+    }
+
+    // Drops the decoded stamps that haven't been drawn since the uptime unusedSince, to be decoded
+    // again when they're next needed, and returns how many bytes of bitmaps that was.  Another engine
+    // may be drawing one of them right now, so they're not recycled; they're freed once nothing
+    // refers to them any more.
+    long dropStamps(long unusedSince) {
+        if (!this.lazy) return 0;
+        long bytes = 0;
+        synchronized (this) {
+            if (this.released || this.pinned) return 0;
+            for (int i = 1; i < this.frame.size(); i++) {
+                Frame f = this.frame.get(i);
+                if (f.content == null || f.def == null || this.lastUsed.get(i) >= unusedSince) continue;
+                this.frame.set(i, new Frame(f.def));
+                this.undecoded++;
+                bytes += f.content.getAllocationByteCount();
+            }
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG) && bytes > 0)
+            Log.d(TAG, "Dropped %d bytes of unused stamps".formatted(bytes));
+        return bytes;
+    }
+
+    // Takes another reference to this Content, unless it has already been released
+    synchronized boolean retain() {
+        if (released) return false;
+        refs++;
+        return true;
+    }
+
+    // Sets something to run instead of release() when the last reference is closed
+    synchronized void setOnIdle(Runnable onIdle) {
+        this.onIdle = onIdle;
+    }
+
+    synchronized boolean isIdle() {
+        return refs == 0 && !released;
+    }
+
+    // Marks an idle Content as released, so that nothing can retain() it again; if this returns
+    // true, the caller has to release() it
+    synchronized boolean markReleasedIfIdle() {
+        if (!isIdle()) return false;
+        released = true;
+        return true;
+    }
+
+    // The memory held by the decoded frames; frames in the same atlas page share its bitmap, so each
+    // page only counts once
+    long byteCount() {
+        Set<Bitmap> pages = Collections.newSetFromMap(new IdentityHashMap<>());
+        long bytes = 0;
+        for (Frame f : frame)
+            if (f.content != null && (f.src == null || pages.add(f.content)))
+                bytes += f.content.getAllocationByteCount();
+        return bytes;
+    }
+
     @Override
     public void close() throws IOException {
+        final Runnable idle;
+        synchronized (this) {
+            if (refs > 0 && --refs > 0) return;
+            idle = released ? null : this.onIdle;
+            if (idle == null) released = true;
+        }
+        if (idle != null) idle.run();
+        else release();
+    }
+
+    void release() throws IOException {
+        synchronized (this) {
+            for (FutureTask<Frame> task : this.pending.values()) task.cancel(false);
+            this.pending.clear();
+        }
         if (this.zipfile != null) {
             this.zipfile.close();
             this.zipfile = null;
@@ -104,9 +703,29 @@ public class Content implements AutoCloseable {
             this.afd.close();
             this.afd = null;
         }
+        this.mapped = null;
+        this.index = null;
+        this.channel = null;
+        this.staged.clear();
+        reportTrimmed();
+        recycleFrames();
+    }
+
+    // Logs how much trimming saved (see Frame), once: when every stamp has been decoded, or when
+    // this is released, for lazily decoded stamps that some never were
+    private synchronized void reportTrimmed() {
+        if (this.trimReported) return;
+        this.trimReported = true;
+        if (Log.isLoggable(TAG, Log.INFO) && trimmedBytes.get() > 0)
+            Log.i(TAG, "Trimmed %d bytes of transparent borders from %s, %d bytes left".formatted(trimmedBytes.get(), this.race, byteCount()));
+    }
+
+    // The frames' bitmaps go back to the BitmapPool, for the next race to decode into.  Frames in
+    // the same atlas page share its bitmap, and it goes back once; see byteCount().
+    private void recycleFrames() {
+        Set<Bitmap> bitmaps = Collections.newSetFromMap(new IdentityHashMap<>());
         for (Frame f : frame)
-            if (f.content != null && !f.content.isRecycled())
-                f.content.recycle();
+            if (f.content != null && bitmaps.add(f.content)) BitmapPool.put(f.content);
     }
 
     protected static String assetMatching(String match, String[] items) throws IOException {
@@ -116,6 +735,14 @@ public class Content implements AutoCloseable {
                 .orElseThrow(() -> new IOException("no files matching (%s)".formatted(match)));
     }
 
+    @Nullable
+    protected static String assetMatchingOrNull(String match, String[] items) {
+        return Arrays.stream(items)
+                .filter(item -> item.endsWith(match))
+                .findFirst()
+                .orElse(null);
+    }
+
     /*
         Return a handle to the content pack stored in the app assets.
 
@@ -128,18 +755,49 @@ public class Content implements AutoCloseable {
         So instead, we'll get the offset and length of the asset inside the APK, and create/use a File-like
         object to read the asset in-place.  This requires that the asset is stored in the APK uncompressed
         (via noCompress in build.gradle).
+
+        The asset region is memory-mapped once up front, so that ZipFile reads are plain memory copies, and
+        STORED entries can be handed out as zero-copy slices of the mapping (see readEntry()).  If the
+        mapping fails for whatever reason, fall back to positioned reads against the APK FileChannel.
+
+        Parsing the central directory is a fixed cost paid on every load, and the pack has a lot more
+        in it than the comm entries we care about.  So the first time through, the locations of the comm
+        entries are saved to a ContentIndex in the cache dir; after that, the index is used instead, and
+        no ZipFile is opened at all (the return value is null).  Building the index in the first place is
+        done with a minimal scan of the central directory, which only looks at comm entries; ZipFile is
+        only used if the pack is something that scan doesn't understand.
     */
     protected ZipFile setupContent(String zipfile, Context c) throws IOException {
         this.afd = c.getAssets().openFd(zipfile);
         try {
-            // Use the raw FileDescriptor from the AFD to ensure our BoundedSeekableByteChannel
-            // correctly handles absolute offsets within the APK.
+            // Use the raw FileDescriptor from the AFD to ensure our channels
+            // correctly handle absolute offsets within the APK.
             FileChannel apkChannel = new FileInputStream(afd.getFileDescriptor()).getChannel();
-            var subChannel = new BoundedSeekableByteChannel(apkChannel, afd.getStartOffset(), afd.getLength());
+            this.mapped = mapContentPack(apkChannel, afd.getStartOffset(), afd.getLength());
+            final File indexFile = indexFile(zipfile, c);
+            final long version = packVersion(c);
+            if (this.mapped != null) {
+                this.index = ContentIndex.load(indexFile, version, this.mapped.size());
+                if (this.index == null) this.index = scanIndex(indexFile, version);
+                if (this.index != null) {
+                    if (Log.isLoggable(TAG, Log.INFO))
+                        Log.i(TAG, "Loading embedded %s from APK (offset=%d, len=%d) using %s".formatted(zipfile, afd.getStartOffset(), afd.getLength(), this.index));
+                    return null;
+                }
+            }
+
+            if (this.mapped == null)
+                this.channel = new BoundedSeekableByteChannel(apkChannel, afd.getStartOffset(), afd.getLength());
+            SeekableByteChannel subChannel = (this.mapped != null) ? this.mapped : this.channel;
             if (Log.isLoggable(TAG, Log.INFO))
-                Log.i(TAG, "Loading embedded %s from APK (offset=%d, len=%d)".formatted(zipfile, afd.getStartOffset(), afd.getLength()));
-            return ZipFile.builder().setSeekableByteChannel(subChannel).get();
+                Log.i(TAG, "Loading embedded %s from APK (offset=%d, len=%d, mapped=%b)".formatted(zipfile, afd.getStartOffset(), afd.getLength(), this.mapped != null));
+            ZipFile z = ZipFile.builder().setSeekableByteChannel(subChannel).get();
+            if (this.mapped != null) saveIndex(z, indexFile, version);
+            return z;
         } catch (IOException e) {
+            this.mapped = null;
+            this.index = null;
+            this.channel = null;
             if (this.afd != null) {
                 try { this.afd.close(); } catch (IOException ignored) {}
                 this.afd = null;
@@ -148,15 +806,75 @@ public class Content implements AutoCloseable {
         }
     }
 
-    protected List<String>
-    aniToFileList(String ani) throws IOException {
-        Path basedir = Path.of(ani).getParent();
-        List<String> entries = new ArrayList<>();
+    // Map [offset, offset + length) of the APK read-only.  The mapping outlives the channel, and is
+    // released when the buffer is garbage collected.
+    protected static MappedSeekableByteChannel mapContentPack(FileChannel channel, long offset, long length) {
+        if (length <= 0 || length > Integer.MAX_VALUE) return null;
+        try {
+            return new MappedSeekableByteChannel(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not map content pack, falling back to channel reads: " + e);
+            return null;
+        }
+    }
+
+    // Indexing is strictly an optimization, so a failure here is logged and otherwise ignored
+    private ContentIndex scanIndex(File indexFile, long version) {
+        try {
+            ContentIndex idx = ContentIndex.scan(this.mapped.slice(0, this.mapped.size()));
+            saveIndex(idx, indexFile, version);
+            return idx;
+        } catch (IOException | RuntimeException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not scan content pack, falling back to ZipFile: " + e);
+            return null;
+        }
+    }
+
+    private void saveIndex(ZipFile z, File indexFile, long version) {
+        try {
+            ContentIndex idx = ContentIndex.fromZipFile(z);
+            saveIndex(idx, indexFile, version);
+            this.index = idx;
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not index content pack: " + e);
+        }
+    }
 
-        for (String line : new String(readFromContentPack(ani), StandardCharsets.UTF_8).split("\n"))
-            entries.add(basedir.resolve(line).toString());
+    private void saveIndex(ContentIndex idx, File indexFile, long version) {
+        if (indexFile == null || version == 0) return;
+        try {
+            idx.save(indexFile, version, this.mapped.size());
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not save index %s: %s".formatted(indexFile, e));
+        }
+    }
 
-        return entries;
+    private static File indexFile(String zipfile, Context c) {
+        File cacheDir = c.getCacheDir();
+        return (cacheDir != null) ? new File(cacheDir, zipfile + ".idx") : null;
+    }
+
+    // The content pack only changes when the app does, so anything derived from it is keyed on the
+    // time the APK was last updated.  Returns 0 if that can't be determined.
+    static long packVersion(Context c) {
+        try {
+            PackageManager pm = c.getPackageManager();
+            return (pm != null) ? pm.getPackageInfo(c.getPackageName(), 0).lastUpdateTime : 0;
+        } catch (PackageManager.NameNotFoundException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // returns the frames listed in the .ani file, with their names resolved against its directory
+    protected List<AniFile.Entry> readAni(String ani) throws IOException {
+        ByteBuffer data = readEntry(ani);
+        if (data == null) throw new IOException("Entry not found: " + ani);
+        final int slash = ani.lastIndexOf('/');
+        return AniFile.parse(data, (slash > 0) ? ani.substring(0, slash) : "");
     }
 
     // returns a generic byte array of whatever you ask for.
@@ -164,12 +882,172 @@ public class Content implements AutoCloseable {
     // useful (e.g., a String object)
     //
     protected byte[] readFromContentPack(String file) throws IOException {
-        var entry = this.zipfile.getEntry(file);
-        if (entry == null) throw new IOException("Entry not found: " + file);
+        ByteBuffer data = readEntry(file);
+        if (data == null) throw new IOException("Entry not found: " + file);
+
+        byte[] result = new byte[data.remaining()];
+        data.get(result);
+        return result;
+    }
+
+    protected boolean hasEntry(String file) {
+        return (this.index != null) ? this.index.get(file) != null : this.zipfile.getEntry(file) != null;
+    }
+
+    // returns the contents of an entry as a ByteBuffer, or null if there is no such entry.  STORED
+    // entries in a mapped content pack are returned as read-only slices of the mapping, without
+    // copying; everything else gets inflated onto the heap.
+    protected ByteBuffer readEntry(String file) throws IOException {
+        ByteBuffer data = this.staged.remove(file);
+        if (data != null) return data;
+        if (this.index != null) {
+            ContentIndex.Entry entry = this.index.get(file);
+            return (entry != null) ? readEntry(entry) : null;
+        }
+        ZipArchiveEntry entry = this.zipfile.getEntry(file);
+        return (entry != null) ? readEntry(entry) : null;
+    }
+
+    protected ByteBuffer readEntry(ContentIndex.Entry entry) throws IOException {
+        ByteBuffer data = this.mapped.slice(entry.dataOffset(), entry.compressedSize());
+        return switch (entry.method()) {
+            case ZipEntry.STORED -> data;
+            case ZipEntry.DEFLATED -> inflate(data, entry.size());
+            default -> throw new IOException("Unsupported compression method " + entry.method());
+        };
+    }
+
+    protected ByteBuffer readEntry(ZipArchiveEntry entry) throws IOException {
+        if (this.mapped != null && entry.getMethod() == ZipEntry.STORED) {
+            long offset = entry.getDataOffset();
+            if (offset == EntryStreamOffsets.OFFSET_UNKNOWN) {
+                // ZipFile resolves the local header lazily, the first time the raw data is asked for
+                try (InputStream ignored = zipfile.getRawInputStream(entry)) {
+                    offset = entry.getDataOffset();
+                }
+            }
+            if (offset != EntryStreamOffsets.OFFSET_UNKNOWN)
+                return this.mapped.slice(offset, entry.getSize());
+        }
 
         try (InputStream is = zipfile.getInputStream(entry)) {
-            return is.readAllBytes();
+            return ByteBuffer.wrap(is.readAllBytes());
+        }
+    }
+
+    // Reads the entries for defs ahead of decoding them, in the order they're laid out in the pack
+    // rather than in .ani order, so that what would have been a small random read per frame is a few
+    // large sequential ones.  A mapped pack is read by touching each page of the entries, which leaves
+    // them in the page cache for the zero-copy slices to find.  Otherwise, the STORED entries are read
+    // into staging buffers, for readEntry() to hand out; anything else goes through the zipfile when
+    // it's decoded, so it isn't read ahead at all.  This is strictly an optimization, so a failure is
+    // only logged.
+    @VisibleForTesting
+    void readAhead(List<AniFile.Entry> defs) {
+        if (this.mapped == null && this.channel == null) return;
+        try {
+            List<Span> spans = new ArrayList<>(defs.size());
+            for (AniFile.Entry def : defs) {
+                Span span = spanOf(def.filename());
+                if (span != null && (this.mapped != null || span.method() == ZipEntry.STORED)) spans.add(span);
+            }
+            spans.sort(Comparator.comparingLong(Span::offset));
+
+            long bytes = 0;
+            List<List<Span>> runs = coalesce(spans, READ_AHEAD_GAP, READ_AHEAD_MAX);
+            for (List<Span> run : runs) {
+                final long start = run.get(0).offset();
+                final Span last = run.get(run.size() - 1);
+                final int length = (int) (last.offset() + last.length() - start);
+                bytes += length;
+                if (this.mapped != null) {
+                    ByteBuffer pages = this.mapped.slice(start, length);
+                    for (int i = 0; i < length; i += PAGE_SIZE) pages.get(i);
+                    continue;
+                }
+                ByteBuffer staging = ByteBuffer.allocate(length);
+                while (staging.hasRemaining())
+                    if (this.channel.read(staging, start + staging.position()) < 0)
+                        throw new IOException("Content pack ends before %d".formatted(start + length));
+                for (Span span : run) {
+                    staging.limit((int) (span.offset() - start + span.length())).position((int) (span.offset() - start));
+                    this.staged.put(span.name(), staging.slice().asReadOnlyBuffer());
+                }
+            }
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "Read ahead %d entries in %d reads, %d bytes".formatted(spans.size(), runs.size(), bytes));
+        } catch (IOException | RuntimeException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not read ahead: " + e);
+        }
+    }
+
+    // Where the raw data of an entry is in the pack, or null if that can't be found out cheaply
+    @Nullable
+    private Span spanOf(String file) throws IOException {
+        if (this.index != null) {
+            ContentIndex.Entry entry = this.index.get(file);
+            return (entry != null) ? new Span(file, entry.dataOffset(), entry.compressedSize(), entry.method()) : null;
+        }
+        ZipArchiveEntry entry = (this.zipfile != null) ? this.zipfile.getEntry(file) : null;
+        if (entry == null) return null;
+        if (entry.getDataOffset() == EntryStreamOffsets.OFFSET_UNKNOWN) {
+            try (InputStream ignored = zipfile.getRawInputStream(entry)) {
+                // see readEntry(ZipArchiveEntry)
+            }
+        }
+        long offset = entry.getDataOffset();
+        return (offset != EntryStreamOffsets.OFFSET_UNKNOWN) ? new Span(file, offset, entry.getCompressedSize(), entry.getMethod()) : null;
+    }
+
+    // Groups spans (sorted by offset) into runs that can each be read in one go: no more than maxGap
+    // bytes between one span and the next, and no more than maxLength bytes from the start of the
+    // first to the end of the last, unless a single span is longer than that on its own
+    @VisibleForTesting
+    static List<List<Span>> coalesce(List<Span> spans, long maxGap, long maxLength) {
+        List<List<Span>> runs = new ArrayList<>();
+        List<Span> run = null;
+        long start = 0, end = 0;
+        for (Span span : spans) {
+            final long spanEnd = span.offset() + span.length();
+            if (run == null || span.offset() - end > maxGap || spanEnd - start > maxLength) {
+                run = new ArrayList<>();
+                runs.add(run);
+                start = span.offset();
+            }
+            run.add(span);
+            end = Math.max(end, spanEnd);
         }
+        return runs;
+    }
+
+    // Inflates a raw DEFLATE stream of a known size
+    protected static ByteBuffer inflate(ByteBuffer compressed, long size) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE) throw new IOException("Bad entry size " + size);
+
+        // "nowrap" mode wants an extra dummy byte at the end of the input
+        byte[] input = new byte[compressed.remaining() + 1];
+        compressed.get(input, 0, input.length - 1);
+        byte[] output = new byte[(int) size];
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int n = 0;
+            while (n < output.length) {
+                int inflated = inflater.inflate(output, n, output.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += inflated;
+            }
+            if (n != output.length)
+                throw new IOException("Inflated %d bytes, expected %d".formatted(n, output.length));
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(output);
     }
 
     //------------------------------------------------------------------------
@@ -194,12 +1072,25 @@ public class Content implements AutoCloseable {
     //------------------------------------------------------------------------
 
     //------------------------------------------------------------------------
-    // Content.BoundedSeekableByteChannel - A {@link SeekableByteChannel} that provides a thread-safe, bounded view of another {@link SeekableByteChannel}.
+    // Content.Span - where the raw data of an entry is in the content pack, and how it's compressed
+    record Span(String name, long offset, long length, int method) {}
+    // END Content.Span
+    //------------------------------------------------------------------------
+
+    //------------------------------------------------------------------------
+    // Content.BoundedSeekableByteChannel - A {@link SeekableByteChannel} that provides a bounded view of another {@link SeekableByteChannel}.
+    //
+    // Reads are positional (pread-style) against the underlying channel, so they never depend on, or
+    // disturb, its file position.  This matters because every AssetFileDescriptor for the content pack
+    // is a dup() of the same APK descriptor, and dup'd descriptors share a single kernel file offset.
+    // The position of the view itself is meant for one reader at a time; concurrent readers (e.g.,
+    // readAhead() and ZipFile) use read(dst, position), which doesn't touch it.
     static class BoundedSeekableByteChannel implements SeekableByteChannel {
         private final SeekableByteChannel channel;
         private final long startOffset;
         private final long size;
         private long position;
+        private volatile boolean open = true;
 
         public BoundedSeekableByteChannel(SeekableByteChannel channel, long startOffset, long size) {
             this.channel = Objects.requireNonNull(channel, "channel is null");
@@ -208,8 +1099,11 @@ public class Content implements AutoCloseable {
             this.position = 0;
         }
 
-        @Override
-        public synchronized int read(ByteBuffer dst) throws IOException {
+        // Reads into dst from the given position (relative to the start of the region), without
+        // touching the position of this view.
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (position < 0) throw new IllegalArgumentException("Negative position");
             if (position >= size) return -1;
 
             int maxToRead = (int) Math.min(dst.remaining(), size - position);
@@ -217,11 +1111,23 @@ public class Content implements AutoCloseable {
 
             int oldLimit = dst.limit();
             dst.limit(dst.position() + maxToRead);
+            try {
+                if (channel instanceof FileChannel fileChannel)
+                    return fileChannel.read(dst, startOffset + position);
 
-            channel.position(startOffset + position);
-            int bytesRead = channel.read(dst);
-            dst.limit(oldLimit);
+                // Anything else only has the one position to work with, so take turns
+                synchronized (channel) {
+                    channel.position(startOffset + position);
+                    return channel.read(dst);
+                }
+            } finally {
+                dst.limit(oldLimit);
+            }
+        }
 
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int bytesRead = read(dst, position);
             if (bytesRead > 0) position += bytesRead;
             return bytesRead;
         }
@@ -232,12 +1138,14 @@ public class Content implements AutoCloseable {
         }
 
         @Override
-        public synchronized long position() throws IOException {
+        public long position() throws IOException {
+            if (!open) throw new ClosedChannelException();
             return position;
         }
 
         @Override
-        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            if (!open) throw new ClosedChannelException();
             if (newPosition < 0 || newPosition > size)
                 throw new IllegalArgumentException("Position out of bounds");
             this.position = newPosition;
@@ -245,7 +1153,8 @@ public class Content implements AutoCloseable {
         }
 
         @Override
-        public synchronized long size() throws IOException {
+        public long size() throws IOException {
+            if (!open) throw new ClosedChannelException();
             return size;
         }
 
@@ -255,47 +1164,264 @@ public class Content implements AutoCloseable {
         }
 
         @Override
-        public synchronized boolean isOpen() {
-            return channel.isOpen();
+        public boolean isOpen() {
+            return open && channel.isOpen();
         }
 
         @Override
-        public synchronized void close() throws IOException {
+        public void close() throws IOException {
+            open = false;
             channel.close();
         }
     }
     // END Content.BoundedSeekableByteChannel
     //------------------------------------------------------------------------
 
+    //------------------------------------------------------------------------
+    // Content.MappedSeekableByteChannel - A {@link SeekableByteChannel} over a memory-mapped region of the content pack.
+    static class MappedSeekableByteChannel implements SeekableByteChannel {
+        private final ByteBuffer buffer;
+        private long position;
+        private boolean open = true;
+
+        public MappedSeekableByteChannel(ByteBuffer buffer) {
+            this.buffer = Objects.requireNonNull(buffer, "buffer is null").asReadOnlyBuffer();
+            this.position = 0;
+        }
+
+        // Returns a zero-copy view of [offset, offset + length) of the mapping.  Views are independent
+        // of each other and of the channel position, so they are safe to hand to other threads.
+        public ByteBuffer slice(long offset, long length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > buffer.capacity())
+                throw new IOException("Slice [%d, %d) out of bounds".formatted(offset, offset + length));
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) offset).limit((int) (offset + length));
+            return view.slice();
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (position >= buffer.capacity()) return -1;
+
+            int toRead = (int) Math.min(dst.remaining(), buffer.capacity() - position);
+            dst.put(slice(position, toRead));
+            position += toRead;
+            return toRead;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            return position;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            if (newPosition < 0 || newPosition > buffer.capacity())
+                throw new IllegalArgumentException("Position out of bounds");
+            this.position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return buffer.capacity();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            open = false;
+        }
+    }
+    // END Content.MappedSeekableByteChannel
+    //------------------------------------------------------------------------
+
+    //------------------------------------------------------------------------
+    // Content.ByteBufferInputStream - An {@link InputStream} over the remaining bytes of a {@link ByteBuffer}.
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = Objects.requireNonNull(buffer, "buffer is null");
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+    // END Content.ByteBufferInputStream
+    //------------------------------------------------------------------------
+
     //------------------------------------------------------------------------
     // Content.Frame - The Bitmap data with associated hotspot info
+    //
+    // A frame either has a bitmap all to itself, or (see packAtlas()) is the src part of an atlas page
+    // shared with other frames, to be drawn into dst.
     class Frame {
         public final String filename;
         public final Hotspot hotspot;
         public final Bitmap content;
         public final int width;
         public final int height;
+        // null unless the frame is in an atlas page
+        public final Rect src;
+        public final RectF dst;
+        // the .ani entry the frame was decoded from, if it can be decoded again
+        final AniFile.Entry def;
+
+        Frame(String filename, Hotspot hotspot, Bitmap content) {
+            this.filename = filename;
+            this.hotspot = hotspot;
+            this.content = content;
+            this.width = content.getWidth();
+            this.height = content.getHeight();
+            this.src = null;
+            this.dst = null;
+            this.def = null;
+        }
+
+        // A placeholder for a stamp that hasn't been decoded yet; it has no content, and so no size
+        Frame(AniFile.Entry def) {
+            this.filename = def.filename();
+            this.hotspot = new Hotspot(def.hotspotX(), def.hotspotY()).scaled(sampleSize);
+            this.content = null;
+            this.width = 0;
+            this.height = 0;
+            this.src = null;
+            this.dst = null;
+            this.def = def;
+        }
+
+        // The same frame, moved to (x, y) of an atlas page
+        Frame(Frame f, Bitmap page, int x, int y) {
+            this.filename = f.filename;
+            this.hotspot = f.hotspot;
+            this.content = page;
+            this.width = f.width;
+            this.height = f.height;
+            this.src = new Rect(x, y, x + width, y + height);
+            this.dst = new RectF(hotspot.x(), hotspot.y(), hotspot.x() + width, hotspot.y() + height);
+            this.def = f.def;
+        }
 
         // if the ANI file format ever changes, this will break horribly
-        Frame(String def, Supplier<Boolean> isCancelled) throws IOException {
+        //
+        // If trim is set, and the image has transparency, only the part of it inside the transparent
+        // borders is kept, and the hotspot is moved to match.
+        Frame(AniFile.Entry def, Supplier<Boolean> isCancelled, boolean trim) throws IOException {
             if (isCancelled.get()) throw new OperationCanceledException();
-            String[] field = def.trim().split("\\s+", 5);
-            filename = field[0];
-            hotspot = new Hotspot(field[3], field[4]);
+            filename = def.filename();
+            Hotspot hotspot = new Hotspot(def.hotspotX(), def.hotspotY()).scaled(sampleSize);
+
+            ByteBuffer data = readEntry(filename);
+            if (data == null) throw new IOException("Could not find entry for " + filename);
 
-            ZipArchiveEntry entry = zipfile.getEntry(filename);
-            if (entry == null) throw new IOException("Could not find entry for " + filename);
+            // 16-bit bitmaps should support roughly 65,000 colours more than we need.  The result is
+            // mutable, so that it can go back to the BitmapPool when we're done with it.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+            options.inBitmap = pooledBitmapFor(data, options);
+            Bitmap bitmap;
+            try {
+                bitmap = decode(data, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder didn't agree that the pooled bitmap would fit, so let it allocate
+                if (options.inBitmap == null) throw e;
+                if (Log.isLoggable(TAG, Log.DEBUG))
+                    Log.d(TAG, "Could not decode %s into a pooled bitmap: %s".formatted(filename, e));
+                options.inBitmap.recycle();
+                options.inBitmap = null;
+                bitmap = decode(data, options);
+            }
+            if (bitmap == null) throw new IOException("Could not decode file " + filename);
 
-            // 16-bit bitmaps should support roughly 65,000 colours more than we need
-            try (InputStream is = zipfile.getInputStream(entry)) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Bitmap.Config.RGB_565;
-                this.content = BitmapFactory.decodeStream(is, null, options);
+            if (trim && bitmap.hasAlpha()) {
+                final int w = bitmap.getWidth(), h = bitmap.getHeight();
+                int[] argb = new int[w * h];
+                bitmap.getPixels(argb, 0, w, 0, 0, w, h);
+                // Nothing visible at all still needs a bitmap, so keep a single pixel
+                int[] bounds = Objects.requireNonNullElse(visibleBounds(argb, w, h), new int[]{0, 0, 1, 1});
+                if (bounds[0] > 0 || bounds[1] > 0 || bounds[2] < w || bounds[3] < h) {
+                    // Into a mutable bitmap from the pool, out of the pixels already read, so that
+                    // it can go back to the pool in its turn; Bitmap.createBitmap(bitmap, ...)
+                    // would make an immutable one, which can't
+                    final int cw = bounds[2] - bounds[0], ch = bounds[3] - bounds[1];
+                    Bitmap cropped = BitmapPool.obtain(cw, ch, Objects.requireNonNullElse(bitmap.getConfig(), Bitmap.Config.ARGB_8888));
+                    cropped.setHasAlpha(true);
+                    cropped.setPixels(argb, bounds[1] * w + bounds[0], w, 0, 0, cw, ch);
+                    trimmedBytes.addAndGet(bitmap.getAllocationByteCount() - cropped.getAllocationByteCount());
+                    BitmapPool.put(bitmap);
+                    bitmap = cropped;
+                    hotspot = hotspot.offset(bounds[0], bounds[1]);
+                }
             }
 
-            if (this.content == null) throw new IOException("Could not decode file " + filename);
+            this.hotspot = hotspot;
+            this.content = bitmap;
             this.width = this.content.getWidth();
             this.height = this.content.getHeight();
+            this.src = null;
+            this.dst = null;
+            this.def = def;
+        }
+
+        private static Bitmap decode(ByteBuffer data, BitmapFactory.Options options) throws IOException {
+            try (InputStream is = new ByteBufferInputStream(data.duplicate())) {
+                return BitmapFactory.decodeStream(is, null, options);
+            }
+        }
+
+        // Reads just the header, to find a pooled bitmap that the image can be decoded into, if the
+        // pool has anything in it at all
+        private static Bitmap pooledBitmapFor(ByteBuffer data, BitmapFactory.Options options) throws IOException {
+            if (BitmapPool.isEmpty()) return null;
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            bounds.inPreferredConfig = options.inPreferredConfig;
+            bounds.inSampleSize = options.inSampleSize;
+            decode(data, bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+            return BitmapPool.get(bounds.outWidth, bounds.outHeight,
+                    Objects.requireNonNullElse(bounds.outConfig, options.inPreferredConfig));
         }
 
         @NonNull
@@ -329,6 +1455,16 @@ public class Content implements AutoCloseable {
                 this(Integer.parseInt(x), y);
             }
 
+            // The hotspot of the part of the image starting dx, dy pixels in
+            Hotspot offset(int dx, int dy) {
+                return new Hotspot(x + dx, y + dy);
+            }
+
+            // The hotspot of the same image, decoded at 1/sampleSize of its size
+            Hotspot scaled(int sampleSize) {
+                return (sampleSize == 1) ? this : new Hotspot(x / sampleSize, y / sampleSize);
+            }
+
             @NonNull
             @Override
             public String toString() {
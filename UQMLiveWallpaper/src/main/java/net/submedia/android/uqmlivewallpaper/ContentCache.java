@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+//------------------------------------------------------------------------
+// ContentCache - a process-wide registry of loaded Content, so that every
+// engine showing the same race (e.g., home and lock screens) shares one set
+// of decoded frames.  Content is reference counted: each acquire() is paired
+// with a Content.close(), and the frames are only released by the last one.
+//
+// If a race is already being loaded by another engine, acquire() waits for
+// that load to finish rather than starting a second one.
+//
+// When the last holder of a race lets go, it isn't released right away; it
+// goes on an LRU list of idle races, so that switching back to it (e.g.,
+// while scrolling through the race list in the settings) is instant.  The
+// idle races are bounded by the memory their bitmaps use, and the least
+// recently used ones are released first when that goes over budget.
+
+final class ContentCache {
+
+    private static final String TAG = "UQMWallpaper.ContentCache";
+    // how often a caller waiting on someone else's load checks whether it's been cancelled
+    private static final long WAIT_POLL_MS = 50;
+    // the share of the app's memory class that idle races get by default
+    static final int DEFAULT_BUDGET_DIVISOR = 8;
+
+    private static final Object sLock = new Object();
+    private static final Map<Key, Content> sContents = new HashMap<>();
+    private static final Map<Key, CompletableFuture<Content>> sLoading = new HashMap<>();
+    // idle races, least recently used first, with what they weighed when they went idle
+    private static final LinkedHashMap<Key, Idle> sIdle = new LinkedHashMap<>();
+    private static long sIdleBytes = 0;
+    // nothing is kept around until someone sets a budget
+    private static long sBudget = 0;
+
+    private static Animation.ContentFactory sContentFactory = Content::new;
+
+    private ContentCache() {}
+
+    @VisibleForTesting
+    static void setContentFactory(Animation.ContentFactory factory) {
+        sContentFactory = factory;
+    }
+
+    // Returns a budget for idle races of 1/DEFAULT_BUDGET_DIVISOR of the app's memory class, or 0
+    // (i.e., don't keep anything) if that can't be determined
+    static long defaultBudget(Context c) {
+        ActivityManager am = c.getSystemService(ActivityManager.class);
+        return (am != null) ? am.getMemoryClass() * 1024L * 1024L / DEFAULT_BUDGET_DIVISOR : 0;
+    }
+
+    // Sets the number of bytes of bitmaps that idle races may hold on to, and releases the least
+    // recently used ones until they fit
+    static void setBudget(long bytes) {
+        List<Content> evicted;
+        synchronized (sLock) {
+            sBudget = Math.max(0, bytes);
+            evicted = evictIdle();
+        }
+        release(evicted);
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "Budget for idle content: %d bytes".formatted(sBudget));
+    }
+
+    // Returns the shared Content for alien_races at sampleSize, loading it if nobody else has.  The
+    // caller owns one reference, and must close() it when done.
+    static Content acquire(String[] alien_races, Context c, Supplier<Boolean> isCancelled, int sampleSize) throws IOException {
+        final Key key = new Key(List.of(alien_races), Content.effectiveSampleSize(sampleSize));
+        while (true) {
+            CompletableFuture<Content> loading;
+            boolean loader = false;
+            synchronized (sLock) {
+                Content content = sContents.get(key);
+                if (content != null && content.retain()) {
+                    Idle idle = sIdle.remove(key);
+                    if (idle != null) sIdleBytes -= idle.bytes();
+                    if (Log.isLoggable(TAG, Log.DEBUG))
+                        Log.d(TAG, "Sharing content for " + key);
+                    return content;
+                }
+                loading = sLoading.get(key);
+                if (loading == null) {
+                    loading = new CompletableFuture<>();
+                    sLoading.put(key, loading);
+                    loader = true;
+                }
+            }
+
+            if (loader) return load(key, alien_races, c, isCancelled, loading);
+
+            // Someone else is loading it; once they're done, go around again and take a reference.
+            // If their load failed (or was cancelled), going around again makes us the loader.
+            awaitLoad(loading, isCancelled);
+        }
+    }
+
+    private static Content load(Key key, String[] alien_races, Context c, Supplier<Boolean> isCancelled,
+                                CompletableFuture<Content> loading) throws IOException {
+        try {
+            Content content = sContentFactory.create(alien_races, c, isCancelled, key.sampleSize());
+            content.setOnIdle(() -> onIdle(key, content));
+            synchronized (sLock) {
+                sContents.put(key, content);
+                sLoading.remove(key);
+            }
+            loading.complete(content);
+            return content;
+        } catch (IOException | RuntimeException e) {
+            synchronized (sLock) {
+                sLoading.remove(key);
+            }
+            loading.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static void awaitLoad(CompletableFuture<Content> loading, Supplier<Boolean> isCancelled) throws IOException {
+        while (true) {
+            if (isCancelled.get()) throw new OperationCanceledException();
+            try {
+                loading.get(WAIT_POLL_MS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // check for cancellation, and keep waiting
+            } catch (ExecutionException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for content");
+            }
+        }
+    }
+
+    // Called when the last reference to content is closed; it goes to the most recently used end
+    // of the idle list, which is then trimmed back under budget
+    private static void onIdle(Key key, Content content) {
+        List<Content> evicted;
+        synchronized (sLock) {
+            if (sContents.get(key) != content) {
+                // Superseded somehow; nobody can find it, so it can't be kept
+                evicted = content.markReleasedIfIdle() ? List.of(content) : List.of();
+            } else {
+                // Someone may have retained it again in between the close and here
+                if (content.isIdle() && !sIdle.containsKey(key)) {
+                    Idle idle = new Idle(content, content.byteCount());
+                    sIdle.put(key, idle);
+                    sIdleBytes += idle.bytes();
+                }
+                evicted = evictIdle();
+            }
+        }
+        release(evicted);
+    }
+
+    // Releases every idle race, whatever the budget, and returns how many bytes of bitmaps that freed
+    static long releaseIdle() {
+        final long before;
+        List<Content> evicted;
+        synchronized (sLock) {
+            before = sIdleBytes;
+            evicted = evictIdle(0);
+        }
+        release(evicted);
+        return before;
+    }
+
+    private static List<Content> evictIdle() {
+        return evictIdle(sBudget);
+    }
+
+    // Removes idle races, least recently used first, until they fit in budget.  Call with sLock
+    // held, and release() the results after letting go of it.
+    private static List<Content> evictIdle(long budget) {
+        List<Content> evicted = new ArrayList<>();
+        Iterator<Map.Entry<Key, Idle>> it = sIdle.entrySet().iterator();
+        // With no budget at all, nothing is kept, not even races whose frames take up no memory
+        while (it.hasNext() && (budget == 0 || sIdleBytes > budget)) {
+            Map.Entry<Key, Idle> e = it.next();
+            Content content = e.getValue().content();
+            it.remove();
+            sIdleBytes -= e.getValue().bytes();
+            sContents.remove(e.getKey());
+            if (content.markReleasedIfIdle()) evicted.add(content);
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "Evicting idle content for " + e.getKey());
+        }
+        return evicted;
+    }
+
+    // Drops the stamps that no engine has drawn since the uptime unusedSince, from every race that's
+    // loaded, and returns how many bytes of bitmaps that was (see Content.dropStamps())
+    static long dropUnusedStamps(long unusedSince) {
+        List<Content> contents;
+        synchronized (sLock) {
+            contents = new ArrayList<>(sContents.values());
+        }
+        long bytes = 0;
+        for (Content content : contents) bytes += content.dropStamps(unusedSince);
+        return bytes;
+    }
+
+    private static void release(List<Content> contents) {
+        for (Content content : contents) {
+            try {
+                content.release();
+            } catch (IOException e) {
+                if (Log.isLoggable(TAG, Log.WARN))
+                    Log.w(TAG, "Could not release content: " + e);
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // ContentCache.Key - the same races, decoded at a different sample size, are different content
+    private record Key(List<String> races, int sampleSize) {}
+    // END ContentCache.Key
+    //------------------------------------------------------------------------
+
+    //------------------------------------------------------------------------
+    // ContentCache.Idle - an idle race, and the bytes it was counted as.  Lazily decoded
+    // races can change size while idle, and the budget has to take back what it was given.
+    private record Idle(Content content, long bytes) {}
+    // END ContentCache.Idle
+    //------------------------------------------------------------------------
+
+    @VisibleForTesting
+    static int size() {
+        synchronized (sLock) {
+            return sContents.size();
+        }
+    }
+
+    @VisibleForTesting
+    static int idleCount() {
+        synchronized (sLock) {
+            return sIdle.size();
+        }
+    }
+
+    @VisibleForTesting
+    static long idleBytes() {
+        synchronized (sLock) {
+            return sIdleBytes;
+        }
+    }
+}
+// END ContentCache
+//------------------------------------------------------------------------
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.apache.commons.compress.archivers.EntryStreamOffsets;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+//------------------------------------------------------------------------
+// ContentIndex - a compact table of where the comm entries live in the
+// content pack.  It's built once from the central directory, and saved in
+// the cache dir, so that later loads can go straight to the bytes.
+
+class ContentIndex {
+
+    private static final String TAG = "UQMWallpaper.ContentIndex";
+    static final String COMM_PREFIX = "base/comm/";
+
+    // "UQMI", plus a version number to bump if the layout below ever changes
+    private static final int MAGIC = 0x55514D49;
+    private static final int VERSION = 1;
+
+    // ZIP structures, see APPNOTE.TXT
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_LENGTH = 22;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final byte[] COMM_PREFIX_BYTES = COMM_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    private final Map<String, Entry> entries;
+
+    ContentIndex(Map<String, Entry> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    @Nullable
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // Build an index of the comm entries of an already-opened pack.  This asks ZipFile to resolve
+    // each entry's local header, so it's not cheap; it's meant to be done once, and then saved.
+    static ContentIndex fromZipFile(ZipFile zipfile) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        for (Enumeration<ZipArchiveEntry> e = zipfile.getEntries(); e.hasMoreElements(); ) {
+            ZipArchiveEntry entry = e.nextElement();
+            if (entry.isDirectory() || !entry.getName().startsWith(COMM_PREFIX)) continue;
+
+            // ZipFile resolves the local header lazily, the first time the raw data is asked for
+            try (InputStream ignored = zipfile.getRawInputStream(entry)) {
+                if (entry.getDataOffset() == EntryStreamOffsets.OFFSET_UNKNOWN)
+                    throw new IOException("Could not resolve data offset for " + entry.getName());
+            }
+            entries.put(entry.getName(), new Entry(entry.getDataOffset(), entry.getCompressedSize(),
+                    entry.getSize(), entry.getMethod(), entry.getCrc()));
+        }
+        return new ContentIndex(entries);
+    }
+
+    // Build an index of the comm entries by walking the central directory of the pack directly.
+    // Unlike ZipFile, this only makes objects for the comm entries; everything else is skipped
+    // over by comparing name bytes in place.  Anything this doesn't handle (ZIP64, encryption,
+    // compression methods other than STORED and DEFLATED) is an IOException, and the caller
+    // should fall back to ZipFile.
+    static ContentIndex scan(ByteBuffer pack) throws IOException {
+        ByteBuffer buf = pack.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.clear();
+        final int eocd = findEndOfCentralDirectory(buf);
+
+        final int count = buf.getShort(eocd + 10) & 0xFFFF;
+        final long cdSize = buf.getInt(eocd + 12) & 0xFFFFFFFFL;
+        final long cdOffset = buf.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL)
+            throw new IOException("ZIP64 archives are not supported");
+        if (cdOffset + cdSize > eocd)
+            throw new IOException("Central directory out of bounds");
+
+        Map<String, Entry> entries = new HashMap<>();
+        int pos = (int) cdOffset;
+        for (int i = 0; i < count; i++) {
+            if (pos + CENTRAL_HEADER_LENGTH > eocd || buf.getInt(pos) != CENTRAL_HEADER_SIGNATURE)
+                throw new IOException("Bad central directory header at " + pos);
+
+            final int nameLength = buf.getShort(pos + 28) & 0xFFFF;
+            final int extraLength = buf.getShort(pos + 30) & 0xFFFF;
+            final int commentLength = buf.getShort(pos + 32) & 0xFFFF;
+            final int nameStart = pos + CENTRAL_HEADER_LENGTH;
+            final int next = nameStart + nameLength + extraLength + commentLength;
+            if (next > eocd)
+                throw new IOException("Central directory header at %d runs past the end of the directory".formatted(pos));
+
+            if (isCommEntry(buf, nameStart, nameLength)) {
+                final int flags = buf.getShort(pos + 8) & 0xFFFF;
+                final int method = buf.getShort(pos + 10) & 0xFFFF;
+                if ((flags & FLAG_ENCRYPTED) != 0)
+                    throw new IOException("Encrypted entries are not supported");
+                if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+                    throw new IOException("Unsupported compression method " + method);
+
+                final long crc = buf.getInt(pos + 16) & 0xFFFFFFFFL;
+                final long compressedSize = buf.getInt(pos + 20) & 0xFFFFFFFFL;
+                final long size = buf.getInt(pos + 24) & 0xFFFFFFFFL;
+                final long localHeaderOffset = buf.getInt(pos + 42) & 0xFFFFFFFFL;
+
+                byte[] name = new byte[nameLength];
+                buf.position(nameStart);
+                buf.get(name);
+                String key = new String(name, (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+                final long dataOffset = dataOffset(buf, localHeaderOffset);
+                if (dataOffset + compressedSize > buf.capacity())
+                    throw new IOException("Data of %s out of bounds".formatted(key));
+                entries.put(key, new Entry(dataOffset, compressedSize, size, method, crc));
+            }
+            pos = next;
+        }
+        return new ContentIndex(entries);
+    }
+
+    // The EOCD record is at the very end of the archive, unless there's a trailing comment
+    private static int findEndOfCentralDirectory(ByteBuffer buf) throws IOException {
+        if (buf.capacity() < EOCD_LENGTH) throw new IOException("Too short to be a ZIP archive");
+        final int limit = Math.max(0, buf.capacity() - EOCD_LENGTH - 0xFFFF);
+        for (int pos = buf.capacity() - EOCD_LENGTH; pos >= limit; pos--)
+            if (buf.getInt(pos) == EOCD_SIGNATURE) return pos;
+        throw new IOException("No end of central directory record");
+    }
+
+    // Non-directory entries under COMM_PREFIX, compared without decoding the name
+    private static boolean isCommEntry(ByteBuffer buf, int nameStart, int nameLength) {
+        if (nameLength <= COMM_PREFIX_BYTES.length || buf.get(nameStart + nameLength - 1) == '/')
+            return false;
+        for (int i = 0; i < COMM_PREFIX_BYTES.length; i++)
+            if (buf.get(nameStart + i) != COMM_PREFIX_BYTES[i]) return false;
+        return true;
+    }
+
+    // The local header repeats the name, and has its own extra field, which may not match the one
+    // in the central directory; the data starts right after both.
+    private static long dataOffset(ByteBuffer buf, long localHeaderOffset) throws IOException {
+        if (localHeaderOffset + LOCAL_HEADER_LENGTH > buf.capacity())
+            throw new IOException("Local header out of bounds: " + localHeaderOffset);
+        final int pos = (int) localHeaderOffset;
+        if (buf.getInt(pos) != LOCAL_HEADER_SIGNATURE)
+            throw new IOException("Bad local header at " + pos);
+        return localHeaderOffset + LOCAL_HEADER_LENGTH
+                + (buf.getShort(pos + 26) & 0xFFFF)
+                + (buf.getShort(pos + 28) & 0xFFFF);
+    }
+
+    // Returns the saved index, or null if there isn't one, or it was made for a different pack
+    @Nullable
+    static ContentIndex load(File file, long version, long packLength) {
+        if (file == null || !file.isFile()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != version || in.readLong() != packLength) {
+                if (Log.isLoggable(TAG, Log.INFO))
+                    Log.i(TAG, "Discarding stale index " + file);
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                entries.put(name, new Entry(in.readLong(), in.readLong(), in.readLong(), in.readUnsignedShort(), in.readInt() & 0xFFFFFFFFL));
+            }
+            return new ContentIndex(entries);
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not read index %s: %s".formatted(file, e));
+            return null;
+        }
+    }
+
+    // Writes the index to a temporary file, and then renames it into place, so a crash halfway
+    // through never leaves a truncated index behind.  Every engine loading content may be saving the
+    // same index at once, so each one gets a temporary file of its own.
+    void save(File file, long version, long packLength) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean saved = false;
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(version);
+                out.writeLong(packLength);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.dataOffset());
+                    out.writeLong(entry.compressedSize());
+                    out.writeLong(entry.size());
+                    out.writeShort(entry.method());
+                    out.writeInt((int) entry.crc());
+                }
+            }
+            if (!tmp.renameTo(file)) throw new IOException("Could not rename %s to %s".formatted(tmp, file));
+            saved = true;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            if (!saved) tmp.delete();
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "%s{entries=%d}".formatted(getClass().getSimpleName(), entries.size());
+    }
+
+    //------------------------------------------------------------------------
+    // ContentIndex.Entry - where an entry's data starts, relative to the start of the
+    // content pack, and how to get it back out
+    record Entry(long dataOffset, long compressedSize, long size, int method, long crc) {}
+    // END ContentIndex.Entry
+    //------------------------------------------------------------------------
+}
+// END ContentIndex
+//------------------------------------------------------------------------
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//------------------------------------------------------------------------
+// DecodedPack - reads a .uqmx pack, the comm frames of every race decoded
+// at build time (see SlimContentPack in build.gradle), so that loading a
+// race is a copy of its pixels into bitmaps, with no inflating and no PNG
+// decoding at all.
+//
+// Everything but the pixels is big-endian, and every table is made of
+// fixed-size records, so nothing needs to be parsed to find a frame:
+//
+//     header   magic "UQMX", version, race count, 0                 16 bytes
+//     index    per race: name (UTF-8, NUL padded), offset of its
+//              frame table, frame count, 0                           48 bytes
+//     frames   per frame: offset and length of its pixels, width,
+//              height, hotspot x and y, config, offset and length
+//              of its filename (UTF-8)                               40 bytes
+//
+// The frames of a race are in .ani order, and their hotspots are final,
+// i.e., already trimmed like Content.Frame does.  The pixels are in the
+// layout Bitmap.copyPixelsFromBuffer() wants for their config.
+
+final class DecodedPack {
+
+    static final String SUFFIX = ".uqmx";
+
+    // "UQMX", plus a version number to bump if the layout above ever changes
+    private static final int MAGIC = 0x55514D58;
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int NAME_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = NAME_SIZE + 16;
+    static final int FRAME_ENTRY_SIZE = 40;
+    // the configs a frame can have, by their number in the frame table
+    private static final Bitmap.Config[] CONFIGS = {Bitmap.Config.RGB_565, Bitmap.Config.ARGB_8888};
+
+    private final ByteBuffer data;
+    // where each race's frame table starts, and how many frames are in it
+    private final Map<String, long[]> races;
+
+    private DecodedPack(ByteBuffer data, Map<String, long[]> races) {
+        this.data = data;
+        this.races = races;
+    }
+
+    // Reads the header and index of the pack in data; the frames themselves aren't looked at
+    // until someone asks for them
+    static DecodedPack parse(ByteBuffer data) throws IOException {
+        final ByteBuffer in = data.duplicate();
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION)
+            throw new IOException("Not a decoded pack");
+        final int count = in.getInt();
+        in.getInt();
+        if (count < 0 || (long) count * INDEX_ENTRY_SIZE > in.remaining())
+            throw new IOException("Index of %d races out of bounds".formatted(count));
+
+        Map<String, long[]> races = new HashMap<>(count * 2);
+        final byte[] name = new byte[NAME_SIZE];
+        for (int i = 0; i < count; i++) {
+            in.get(name);
+            int length = 0;
+            while (length < NAME_SIZE && name[length] != 0) length++;
+            final long offset = in.getLong();
+            final int frames = in.getInt();
+            in.getInt();
+            if (offset < 0 || frames < 0 || offset + (long) frames * FRAME_ENTRY_SIZE > data.limit())
+                throw new IOException("Frames of race %d out of bounds".formatted(i));
+            races.put(new String(name, 0, length, StandardCharsets.UTF_8), new long[]{offset, frames});
+        }
+        return new DecodedPack(data, races);
+    }
+
+    // Returns the frames of race, in .ani order, or null if the pack doesn't have it.  The pixels
+    // of each one are a read-only view of the pack.
+    @Nullable
+    List<Entry> frames(String race) throws IOException {
+        final long[] table = races.get(race);
+        if (table == null) return null;
+
+        final ByteBuffer in = data.duplicate();
+        in.position((int) table[0]);
+        List<Entry> entries = new ArrayList<>((int) table[1]);
+        for (int i = 0; i < table[1]; i++) {
+            final long pixelOffset = in.getLong();
+            final int pixelLength = in.getInt();
+            final int width = in.getInt();
+            final int height = in.getInt();
+            final float x = in.getFloat();
+            final float y = in.getFloat();
+            final int config = in.getInt();
+            final int nameOffset = in.getInt();
+            final int nameLength = in.getInt();
+
+            if (config < 0 || config >= CONFIGS.length)
+                throw new IOException("Frame %d of %s has unknown config %d".formatted(i, race, config));
+            final int bytesPerPixel = (CONFIGS[config] == Bitmap.Config.RGB_565) ? 2 : 4;
+            if (width <= 0 || height <= 0 || (long) width * height * bytesPerPixel != pixelLength)
+                throw new IOException("Frame %d of %s is %dx%d, but has %d bytes".formatted(i, race, width, height, pixelLength));
+            entries.add(new Entry(
+                    StandardCharsets.UTF_8.decode(region(nameOffset, nameLength, race, i)).toString(),
+                    x, y, width, height, CONFIGS[config],
+                    region(pixelOffset, pixelLength, race, i).asReadOnlyBuffer()));
+        }
+        return entries;
+    }
+
+    // The length bytes at offset, as a slice of the pack
+    private ByteBuffer region(long offset, int length, String race, int frame) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > data.limit())
+            throw new IOException("Frame %d of %s out of bounds".formatted(frame, race));
+        ByteBuffer region = data.duplicate();
+        region.position((int) offset).limit((int) offset + length);
+        return region.slice();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "%s{races=%d, bytes=%d}".formatted(getClass().getSimpleName(), races.size(), data.limit());
+    }
+
+    //------------------------------------------------------------------------
+    // DecodedPack.Entry - one frame, ready for Bitmap.copyPixelsFromBuffer()
+    record Entry(String filename, float x, float y, int width, int height, Bitmap.Config config, ByteBuffer pixels) {}
+    // END DecodedPack.Entry
+    //------------------------------------------------------------------------
+}
+// END DecodedPack
+//------------------------------------------------------------------------
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+//------------------------------------------------------------------------
+// FrameAtlas - works out where a race's frames go when they're packed
+// into a few large bitmaps ("pages"), instead of one bitmap each.  This
+// is only the arithmetic; Content does the actual copying.
+//
+// Frames are placed on shelves: tallest first, left to right, starting a
+// new shelf when a row is full, and a new page when a page is.  Comm
+// frames are mostly of similar heights, so that wastes very little.
+
+final class FrameAtlas {
+
+    // Large enough for every race in the content pack to fit on one page at full size, while
+    // keeping any single allocation within reason
+    static final int MAX_PAGE_SIDE = 2048;
+
+    private FrameAtlas() {}
+
+    // Returns where each of the frames (given by their dimensions) goes.  A frame that can't fit on
+    // a page at all gets a null slot, and should be left as it is.
+    static Layout pack(int[] widths, int[] heights, int maxSide) {
+        if (widths.length != heights.length)
+            throw new IllegalArgumentException("%d widths for %d heights".formatted(widths.length, heights.length));
+
+        final int count = widths.length;
+        Integer[] order = new Integer[count];
+        long area = 0;
+        int widest = 0;
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            if (fits(widths[i], heights[i], maxSide)) {
+                area += (long) widths[i] * heights[i];
+                widest = Math.max(widest, widths[i]);
+            }
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> heights[i]).thenComparingInt(i -> widths[i]).reversed());
+
+        // Aim for roughly square pages, but no narrower than the widest frame
+        final int pageWidth = (int) Math.min(maxSide, Math.max(widest, Math.ceil(Math.sqrt(area))));
+
+        Slot[] slots = new Slot[count];
+        List<Page> pages = new ArrayList<>();
+        int page = 0, x = 0, y = 0, shelf = 0, usedWidth = 0, usedHeight = 0;
+        for (int i : order) {
+            final int w = widths[i], h = heights[i];
+            if (!fits(w, h, maxSide)) continue;
+
+            if (x + w > pageWidth) {
+                y += shelf;
+                x = 0;
+                shelf = 0;
+            }
+            if (y + h > maxSide) {
+                pages.add(new Page(usedWidth, usedHeight));
+                page++;
+                x = y = shelf = usedWidth = usedHeight = 0;
+            }
+            slots[i] = new Slot(page, x, y);
+            x += w;
+            shelf = Math.max(shelf, h);
+            usedWidth = Math.max(usedWidth, x);
+            usedHeight = Math.max(usedHeight, y + h);
+        }
+        if (usedWidth > 0) pages.add(new Page(usedWidth, usedHeight));
+        return new Layout(Collections.unmodifiableList(Arrays.asList(slots)), Collections.unmodifiableList(pages));
+    }
+
+    private static boolean fits(int width, int height, int maxSide) {
+        return width > 0 && height > 0 && width <= maxSide && height <= maxSide;
+    }
+
+    //------------------------------------------------------------------------
+    // FrameAtlas.Slot - the page a frame is on, and the top-left corner of
+    // it on that page
+    record Slot(int page, int x, int y) {}
+    // END FrameAtlas.Slot
+    //------------------------------------------------------------------------
+
+    //------------------------------------------------------------------------
+    // FrameAtlas.Page - the size of a page, trimmed to what's on it
+    record Page(int width, int height) {}
+    // END FrameAtlas.Page
+    //------------------------------------------------------------------------
+
+    //------------------------------------------------------------------------
+    // FrameAtlas.Layout - a slot for each frame, in the order they were
+    // given, and the pages they're on
+    record Layout(List<Slot> slots, List<Page> pages) {
+        @Nullable
+        Slot slot(int frame) {
+            return slots.get(frame);
+        }
+
+        // How many pixels of the pages aren't covered by any frame
+        long wastedPixels(int[] widths, int[] heights) {
+            long total = 0;
+            for (Page p : pages) total += (long) p.width() * p.height();
+            for (int i = 0; i < slots.size(); i++)
+                if (slots.get(i) != null) total -= (long) widths[i] * heights[i];
+            return total;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "%s{frames=%d, pages=%s}".formatted(getClass().getSimpleName(), slots.size(), pages);
+        }
+    }
+    // END FrameAtlas.Layout
+    //------------------------------------------------------------------------
+}
+// END FrameAtlas
+//------------------------------------------------------------------------
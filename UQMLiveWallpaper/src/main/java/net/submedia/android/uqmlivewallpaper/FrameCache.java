@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2011 Nicolas Simonds
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.submedia.android.uqmlivewallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+//------------------------------------------------------------------------
+// FrameCache - decoded comm frames, saved to the cache dir so that the
+// next load of the same race can skip PNG decoding entirely.  Each race is
+// one file: a small header describing the frames, followed by the raw
+// pixels of each frame, back to back.  Reloading maps the file and hands
+// out views of the pixels, ready for Bitmap.copyPixelsFromBuffer().
+//
+// The bundled content only changes when the app does, so the files are
+// stamped with Content.packVersion(), and anything with a different stamp
+// is discarded.  The total size of the cache is capped; when it's over,
+// the least recently used races are deleted first.
+
+class FrameCache {
+
+    private static final String TAG = "UQMWallpaper.FrameCache";
+    static final String DIR_NAME = "frames";
+    static final String SUFFIX = ".f565";
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final String TMP_SUFFIX = ".tmp";
+    // A temporary file that hasn't been written to for this long was left by a save that crashed
+    static final long STALE_TMP_MS = 60L * 60 * 1000;
+
+    // "UQMF", plus a version number to bump if the layout below ever changes
+    private static final int MAGIC = 0x55514D46;
+    private static final int VERSION = 2;
+    // the configs a frame can have, by their number in the file, as in DecodedPack
+    private static final Bitmap.Config[] CONFIGS = {Bitmap.Config.RGB_565, Bitmap.Config.ARGB_8888};
+
+    private final File dir;
+    private final long version;
+    private final long maxBytes;
+
+    FrameCache(File dir, long version, long maxBytes) {
+        this.dir = dir;
+        this.version = version;
+        this.maxBytes = maxBytes;
+    }
+
+    // Returns the cache for this app, or null if there's nowhere to put it, or no way to tell
+    // when it goes stale
+    @Nullable
+    static FrameCache forContext(Context c) {
+        File cacheDir = c.getCacheDir();
+        long version = Content.packVersion(c);
+        if (cacheDir == null || version == 0) return null;
+        return new FrameCache(new File(cacheDir, DIR_NAME), version, DEFAULT_MAX_BYTES);
+    }
+
+    File fileFor(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    // Returns the saved frames for key, or null if there aren't any usable ones.  The pixels of
+    // each entry are read-only views of a mapping of the file.
+    @Nullable
+    List<Entry> load(String key) {
+        File file = fileFor(key);
+        if (!file.isFile()) return null;
+
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("File too large");
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not map %s: %s".formatted(file, e));
+            return null;
+        }
+
+        try {
+            List<Entry> entries = parse(buf);
+            if (entries == null) {
+                if (Log.isLoggable(TAG, Log.INFO))
+                    Log.i(TAG, "Discarding stale frames " + file);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return null;
+            }
+            // The modification time doubles as the last use, for eviction
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Discarding corrupt frames %s: %s".formatted(file, e));
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    // Returns null if the file was made for a different content pack
+    @Nullable
+    private List<Entry> parse(ByteBuffer buf) throws IOException {
+        DataInputStream in = new DataInputStream(new Content.ByteBufferInputStream(buf));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != version) return null;
+
+        final int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        List<int[]> dims = new ArrayList<>(count);
+        List<float[]> hotspots = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+            hotspots.add(new float[]{in.readFloat(), in.readFloat()});
+            dims.add(new int[]{in.readInt(), in.readInt(), in.readInt(), in.readInt()});
+        }
+
+        // The pixels start right where the header ends
+        List<Entry> entries = new ArrayList<>(count);
+        int offset = buf.position();
+        for (int i = 0; i < count; i++) {
+            final int[] d = dims.get(i);
+            if (d[2] < 0 || d[2] >= CONFIGS.length)
+                throw new IOException("Frame %d has unknown config %d".formatted(i, d[2]));
+            if (d[3] < 0 || offset + d[3] > buf.capacity())
+                throw new IOException("Frame %d out of bounds".formatted(i));
+            ByteBuffer pixels = buf.duplicate();
+            pixels.position(offset).limit(offset + d[3]);
+            entries.add(new Entry(names.get(i), hotspots.get(i)[0], hotspots.get(i)[1], d[0], d[1], CONFIGS[d[2]], pixels.slice().asReadOnlyBuffer()));
+            offset += d[3];
+        }
+        if (offset != buf.capacity()) throw new IOException("Trailing garbage");
+        return entries;
+    }
+
+    // Whether frames with this config can be saved at all
+    static boolean canSave(@Nullable Bitmap.Config config) {
+        return configNumber(config) >= 0;
+    }
+
+    private static int configNumber(@Nullable Bitmap.Config config) {
+        for (int i = 0; i < CONFIGS.length; i++)
+            if (CONFIGS[i] == config) return i;
+        return -1;
+    }
+
+    // Writes the frames for key to a temporary file, and then renames it into place, so a crash
+    // halfway through never leaves a truncated file behind.  Engines showing the same race can
+    // save it at the same time, so each save gets a temporary file of its own.  Afterwards, the
+    // cache is trimmed back under its size limit.
+    void save(String key, List<Entry> entries) throws IOException {
+        long total = 0;
+        for (Entry e : entries) {
+            if (!canSave(e.config()))
+                throw new IOException("Can't save %s, it's %s".formatted(e.filename(), e.config()));
+            total += e.pixels().remaining();
+        }
+        if (total > maxBytes)
+            throw new IOException("%d bytes of frames won't fit in a %d byte cache".formatted(total, maxBytes));
+
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+        File file = fileFor(key);
+        File tmp = File.createTempFile(file.getName(), TMP_SUFFIX, dir);
+        boolean saved = false;
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(version);
+                out.writeInt(entries.size());
+                for (Entry e : entries) {
+                    out.writeUTF(e.filename());
+                    out.writeFloat(e.x());
+                    out.writeFloat(e.y());
+                    out.writeInt(e.width());
+                    out.writeInt(e.height());
+                    out.writeInt(configNumber(e.config()));
+                    out.writeInt(e.pixels().remaining());
+                }
+                for (Entry e : entries) {
+                    ByteBuffer pixels = e.pixels().duplicate();
+                    byte[] chunk = new byte[Math.min(pixels.remaining(), 64 * 1024)];
+                    while (pixels.hasRemaining()) {
+                        int n = Math.min(chunk.length, pixels.remaining());
+                        pixels.get(chunk, 0, n);
+                        out.write(chunk, 0, n);
+                    }
+                }
+            }
+            if (!tmp.renameTo(file)) throw new IOException("Could not rename %s to %s".formatted(tmp, file));
+            saved = true;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            if (!saved) tmp.delete();
+        }
+        trim();
+    }
+
+    // Deletes the least recently used files until the cache fits in maxBytes again, and any temporary
+    // files left behind by saves that never finished, which the limit doesn't see
+    void trim() {
+        File[] stale = dir.listFiles((d, name) -> name.endsWith(TMP_SUFFIX));
+        if (stale != null) {
+            final long staleBefore = System.currentTimeMillis() - STALE_TMP_MS;
+            for (File f : stale) {
+                if (f.lastModified() < staleBefore && f.delete() && Log.isLoggable(TAG, Log.DEBUG))
+                    Log.d(TAG, "Deleted abandoned " + f);
+            }
+        }
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) return;
+
+        long total = 0;
+        for (File f : files) total += f.length();
+        if (total <= maxBytes) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= maxBytes) break;
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+                if (Log.isLoggable(TAG, Log.DEBUG))
+                    Log.d(TAG, "Evicted " + f);
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "%s{dir=%s, version=%d, maxBytes=%d}".formatted(getClass().getSimpleName(), dir, version, maxBytes);
+    }
+
+    //------------------------------------------------------------------------
+    // FrameCache.Entry - one decoded frame: where it came from, its hotspot,
+    // its dimensions and config, and its pixels, in the layout the Bitmap uses
+    record Entry(String filename, float x, float y, int width, int height, Bitmap.Config config, ByteBuffer pixels) {}
+    // END FrameCache.Entry
+    //------------------------------------------------------------------------
+}
+// END FrameCache
+//------------------------------------------------------------------------
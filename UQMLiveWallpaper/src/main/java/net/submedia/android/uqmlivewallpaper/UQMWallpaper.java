@@ -17,6 +17,7 @@
 package net.submedia.android.uqmlivewallpaper;
 
 import android.app.WallpaperManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -44,8 +45,8 @@ import android.view.SurfaceHolder;
 import androidx.annotation.VisibleForTesting;
 import androidx.preference.PreferenceManager;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -62,6 +63,22 @@ public class UQMWallpaper extends WallpaperService {
     // Standard command sent by most Android Wallpaper Pickers when the user confirms their selection.
     private static final String COMMAND_REAPPLY = "android.wallpaper.reapply";
 
+    // Stages of onTrimMemory(), each of which also does everything the ones before it do
+    static final int TRIM_STAGE_NONE = 0;
+    static final int TRIM_STAGE_IDLE = 1;
+    static final int TRIM_STAGE_INVISIBLE = 2;
+    static final int TRIM_STAGE_DOWNSAMPLE = 3;
+    // Content sample size when memory is critically low; 2 is a quarter of the pixels
+    static final int LOW_MEMORY_SAMPLE_SIZE = 2;
+    // Stamps that haven't been drawn for this long are dropped once engines start being released
+    static final long UNUSED_STAMP_MS = 10_000;
+
+    // What onTrimMemory() has done since the process started, by TRIM_STAGE_*: how many times each
+    // stage's own steps ran, and how many bytes they released.  Downsampling frees its memory only
+    // as the engines reload, so that stage just counts.
+    private static final long[] sTrimCounts = new long[TRIM_STAGE_DOWNSAMPLE + 1];
+    private static final long[] sTrimmedBytes = new long[TRIM_STAGE_DOWNSAMPLE + 1];
+
     private Context mContext;
     private int totalWidth;
     private final List<CommsEngine> mActiveEngines = new ArrayList<>();
@@ -77,6 +94,18 @@ public class UQMWallpaper extends WallpaperService {
      */
     private static final Handler sLifecycleHandler = new Handler(Looper.getMainLooper());
 
+    // Whether engines draw with a software canvas, so that each frame posts only the part of the
+    // surface the animation changed, when they can (see CommsEngine.drawFrame())
+    private static volatile boolean sPartialUpdates = true;
+    // How much smaller the background is drawn before being scaled up, when it's blurred without
+    // a RenderEffect; about the radius of the one blurNode uses
+    static final int BLUR_SHRINK = 32;
+
+    @VisibleForTesting
+    static void setPartialUpdates(boolean enabled) {
+        sPartialUpdates = enabled;
+    }
+
     public static WallpaperSettings getStagedSettings() {
         return sStagedSettings;
     }
@@ -108,10 +137,105 @@ public class UQMWallpaper extends WallpaperService {
         sLiveLockSettings = new WallpaperSettings(getSharedPreferences(PREFS_LOCK, MODE_PRIVATE));
         sLiveLockSettings.setTargetFlags(WallpaperManager.FLAG_LOCK);
 
+        ContentCache.setBudget(ContentCache.defaultBudget(this));
+        BitmapPool.setMaxBytes(ContentCache.defaultBudget(this));
+
         if (Log.isLoggable(TAG, Log.DEBUG))
             Log.d(TAG, "Initial live settings loaded. Home: %s, Lock: %s".formatted(sLiveHomeSettings, sLiveLockSettings));
     }
 
+    /*
+        Shed memory in stages, rather than waiting for the low memory killer, and then paying for a
+        cold start (and possibly a restart loop) after it:
+
+        1. Release idle races, i.e., ones that nothing is showing (see ContentCache), and empty the
+           BitmapPool, which is where their bitmaps would otherwise end up
+        2. Release the animations of engines that aren't visible; they're reloaded when they are.
+           Also drop the stamps that the visible ones haven't drawn lately; they're decoded again
+           when they're next needed.
+        3. Decode at a lower resolution from now on, and reload the visible engines that way
+
+        There's no callback for when the pressure is over, so once frames are being downsampled,
+        they stay that way until the process is restarted.
+    */
+    @SuppressWarnings("deprecation")
+    static int trimStage(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            return TRIM_STAGE_DOWNSAMPLE;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return TRIM_STAGE_INVISIBLE;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+            return TRIM_STAGE_IDLE;
+        return TRIM_STAGE_NONE;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        final int stage = trimStage(level);
+        if (Log.isLoggable(TAG, Log.INFO))
+            Log.i(TAG, "onTrimMemory(level=%d): stage %d".formatted(level, stage));
+        if (stage == TRIM_STAGE_NONE) return;
+
+        final long idleBytes = ContentCache.releaseIdle();
+        final long pooledBytes = BitmapPool.clear();
+        final long idleTotal = countTrim(TRIM_STAGE_IDLE, idleBytes + pooledBytes);
+        if (Log.isLoggable(TAG, Log.INFO))
+            Log.i(TAG, "onTrimMemory: released %d bytes of idle races, and %d bytes of pooled bitmaps (%d bytes in all at stage %d)".formatted(idleBytes, pooledBytes, idleTotal, TRIM_STAGE_IDLE));
+        if (stage < TRIM_STAGE_INVISIBLE) return;
+
+        final List<CommsEngine> engines;
+        synchronized (mActiveEngines) {
+            engines = new ArrayList<>(mActiveEngines);
+        }
+        int released = 0;
+        for (CommsEngine e : engines)
+            if (e.releaseIfInvisible()) released++;
+        final long droppedBytes = ContentCache.dropUnusedStamps(Animation.getClock().uptimeMillis() - UNUSED_STAMP_MS);
+        final long invisibleTotal = countTrim(TRIM_STAGE_INVISIBLE, droppedBytes);
+        if (Log.isLoggable(TAG, Log.INFO))
+            Log.i(TAG, "onTrimMemory: released animations of %d invisible engine(s), and dropped %d bytes of unused stamps (%d bytes in all at stage %d)".formatted(released, droppedBytes, invisibleTotal, TRIM_STAGE_INVISIBLE));
+        if (stage < TRIM_STAGE_DOWNSAMPLE || Content.sampleSize() >= LOW_MEMORY_SAMPLE_SIZE) return;
+
+        Content.setSampleSize(LOW_MEMORY_SAMPLE_SIZE);
+        countTrim(TRIM_STAGE_DOWNSAMPLE, 0);
+        int reloaded = 0;
+        for (CommsEngine e : engines)
+            if (e.reloadIfVisible()) reloaded++;
+        if (Log.isLoggable(TAG, Log.WARN))
+            Log.w(TAG, "onTrimMemory: memory is critically low, downsampling by %d and reloading %d visible engine(s)".formatted(LOW_MEMORY_SAMPLE_SIZE, reloaded));
+    }
+
+    // Counts a run of a stage of onTrimMemory(), and returns the bytes it has released in all
+    private static long countTrim(int stage, long bytes) {
+        synchronized (sTrimCounts) {
+            sTrimCounts[stage]++;
+            return sTrimmedBytes[stage] += bytes;
+        }
+    }
+
+    @VisibleForTesting
+    static long trimCount(int stage) {
+        synchronized (sTrimCounts) {
+            return sTrimCounts[stage];
+        }
+    }
+
+    @VisibleForTesting
+    static long trimmedBytes(int stage) {
+        synchronized (sTrimCounts) {
+            return sTrimmedBytes[stage];
+        }
+    }
+
+    @VisibleForTesting
+    static void resetTrimStats() {
+        synchronized (sTrimCounts) {
+            Arrays.fill(sTrimCounts, 0);
+            Arrays.fill(sTrimmedBytes, 0);
+        }
+    }
+
     private void migrateToNamespacedPrefs(SharedPreferences defaultPrefs) {
         SharedPreferences homePrefs = getSharedPreferences(PREFS_HOME, MODE_PRIVATE);
         SharedPreferences lockPrefs = getSharedPreferences(PREFS_LOCK, MODE_PRIVATE);
@@ -181,7 +305,7 @@ public class UQMWallpaper extends WallpaperService {
     }
 
     interface AnimationFactory {
-        Animation create(String race, Context c, java.util.function.Supplier<Boolean> isCancelled) throws Exception;
+        Animation create(String race, Context c, java.util.function.Supplier<Boolean> isCancelled, int sampleSize) throws Exception;
     }
 
     class CommsEngine
@@ -191,6 +315,19 @@ public class UQMWallpaper extends WallpaperService {
         private final Rect bgRect = new Rect();
         private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
         private final RenderNode blurNode = new RenderNode("blurNode");
+        private final Rect mDirty = new Rect();
+        // Whether this engine draws with a software canvas.  A Surface that's been drawn on with
+        // lockHardwareCanvas() can't be locked any other way afterwards, so it's decided once, on
+        // the first draw: software, unless the background is to be blurred with blurNode.  Changing
+        // fill-frame later doesn't revisit it, so that's a trade-off until the next engine: turned
+        // on over a software canvas, the background is blurred with drawShrunk() instead; turned off
+        // over a hardware one, every frame is still drawn in full, without partial updates.
+        private Boolean mSoftwareCanvas;
+        // the background, shrunk, for blurring it on a software canvas
+        private Bitmap mShrunk;
+        private Canvas mShrunkCanvas;
+        private final Rect mShrunkRect = new Rect();
+        private final Paint mShrinkPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
         private final WallpaperViewModel mViewModel;
         private final ExecutorService mLoaderExecutor = Executors.newSingleThreadExecutor();
 
@@ -205,6 +342,7 @@ public class UQMWallpaper extends WallpaperService {
             mViewModel = new WallpaperViewModel(mSettings);
             mViewModel.setTotalWidth(totalWidth);
             mViewModel.setOnDrawNeeded(this::drawFrame);
+            mViewModel.setOnSampleSizeChanged(this::onSampleSizeChanged);
             mViewModel.start();
 
             RenderEffect blurEffect = RenderEffect.createBlurEffect(45.5f, 45.5f, Shader.TileMode.CLAMP);
@@ -372,6 +510,7 @@ public class UQMWallpaper extends WallpaperService {
                         else mViewModel.setAnimation(null);
                     }
                     case SettingsFragment.SCALING_FACTOR -> mViewModel.setScalingFactor(mSettings.scalingFactor);
+                    // drawFrame() keeps the canvas it started with; see mSoftwareCanvas
                     case SettingsFragment.FILL_FRAME -> mViewModel.setFillFrame(mSettings.fillFrame);
                     case OFFSET_PREF -> mViewModel.setUserOffset(mSettings.offset);
                     default -> Log.w(TAG, "Engine@%08x: Unknown key changed: %s".formatted(System.identityHashCode(this), key));
@@ -391,13 +530,13 @@ public class UQMWallpaper extends WallpaperService {
                 mLoaderExecutor.execute(() -> {
                     try {
                         if (!mIsVisible) return;
-                        Animation anim = mAnimationFactory.create(race, mContext, () -> !mIsVisible);
+                        Animation anim = mAnimationFactory.create(race, mContext, () -> !mIsVisible, mViewModel.getSampleSize());
                         if (!mIsVisible) {
                             anim.close();
                             return;
                         }
                         mViewModel.setAnimation(anim);
-                        mViewModel.updateAspect(anim.getFrame());
+                        mViewModel.updateAspect(anim);
                         if (Log.isLoggable(TAG, Log.DEBUG))
                             Log.d(TAG, "Engine@%08x: Successfully loaded animation for %s".formatted(System.identityHashCode(this), race));
                     } catch (OperationCanceledException e) {
@@ -426,12 +565,10 @@ public class UQMWallpaper extends WallpaperService {
             }
             if (mSettings != null) mSettings.removeListener(this);
             mLoaderExecutor.shutdownNow();
+            // The worker may be in the middle of drawing the animation, so it's closed over there,
+            // once it's done; stop() lets it get that far before it quits
+            mViewModel.setAnimation(null);
             mViewModel.stop();
-
-            Animation anim = mViewModel.getAnimation();
-            if (anim != null) try {
-                anim.close();
-            } catch (IOException ignored) {}
             super.onDestroy();
         }
 
@@ -448,6 +585,30 @@ public class UQMWallpaper extends WallpaperService {
             }
         }
 
+        // Drops the animation if this engine isn't showing it; it's reloaded once it becomes visible
+        boolean releaseIfInvisible() {
+            if (mIsVisible || mViewModel.getAnimation() == null) return false;
+            mViewModel.setAnimation(null);
+            return true;
+        }
+
+        // Reloads the animation if this engine is showing it, e.g., to pick up a new sample size.
+        // The current animation stays up until the new one replaces it.
+        boolean reloadIfVisible() {
+            if (!mIsVisible) return false;
+            loadAnimation(mSettings.race);
+            return true;
+        }
+
+        // The animation is drawn small enough (or big enough) now to be worth decoding at a different
+        // size; the current one stays up until the new one replaces it
+        private void onSampleSizeChanged() {
+            if (!mIsVisible || mViewModel.getAnimation() == null) return;
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "Engine@%08x: Reloading at sample size %d".formatted(System.identityHashCode(this), mViewModel.getSampleSize()));
+            loadAnimation(mSettings.race);
+        }
+
         private void init_mAnim() {
             if (Log.isLoggable(TAG, Log.DEBUG))
                 Log.d(TAG, "Engine@%08x: Triggering initial animation load.".formatted(System.identityHashCode(this)));
@@ -501,7 +662,7 @@ public class UQMWallpaper extends WallpaperService {
             if (anim != null) {
                 if (Log.isLoggable(TAG, Log.DEBUG))
                     Log.d(TAG, "Engine@%08x: onSurfaceChanged: Animation exists, updating aspect.".formatted(System.identityHashCode(this)));
-                mViewModel.updateAspect(anim.getFrame());
+                mViewModel.updateAspect(anim);
             }
         }
 
@@ -528,10 +689,21 @@ public class UQMWallpaper extends WallpaperService {
             final SurfaceHolder holder = getSurfaceHolder();
             if (!holder.getSurface().isValid()) return;
 
-            final Canvas c = holder.lockHardwareCanvas();
+            WallpaperViewModel vm = getViewModel();
+            if (mSoftwareCanvas == null) mSoftwareCanvas = sPartialUpdates && !vm.getFillFrame();
+            final Canvas c;
+            if (mSoftwareCanvas) {
+                // Only what the animation has stamped since the last frame, if that's all that's
+                // changed, and nothing at all if it hasn't stamped anything.  The canvas is
+                // clipped to whatever it locks, so the drawing below is the same either way.
+                final boolean partial = vm.takeDirtyRect(mDirty);
+                if (partial && mDirty.isEmpty()) return;
+                c = holder.lockCanvas(partial ? mDirty : null);
+            } else {
+                c = holder.lockHardwareCanvas();
+            }
             if (c == null) return;
             try {
-                WallpaperViewModel vm = getViewModel();
                 Animation anim = vm.getAnimation();
                 int mWidth = vm.getWidth();
                 int mHeight = vm.getHeight();
@@ -548,7 +720,7 @@ public class UQMWallpaper extends WallpaperService {
                     }
                     return;
                 }
-                Bitmap b = anim.getFrame();
+                Bitmap b = anim.currentFrame();
                 if (b == null) return;
 
                 if (mFillFrame) {
@@ -557,11 +729,15 @@ public class UQMWallpaper extends WallpaperService {
                     int bgX = vm.getBackgroundOffset(bgWidth);
                     bgRect.set(bgX, 0, bgX + bgWidth, mHeight);
 
-                    blurNode.setPosition(0, 0, c.getWidth(), c.getHeight());
-                    Canvas recordingCanvas = blurNode.beginRecording();
-                    recordingCanvas.drawBitmap(b, null, bgRect, mPaint);
-                    blurNode.endRecording();
-                    c.drawRenderNode(blurNode);
+                    if (mSoftwareCanvas) {
+                        drawShrunk(c, b, bgRect);
+                    } else {
+                        blurNode.setPosition(0, 0, c.getWidth(), c.getHeight());
+                        Canvas recordingCanvas = blurNode.beginRecording();
+                        recordingCanvas.drawBitmap(b, null, bgRect, mPaint);
+                        blurNode.endRecording();
+                        c.drawRenderNode(blurNode);
+                    }
                     mPaint.setAlpha(0xFF);
                 }
                 c.drawBitmap(b, null, destRect, mPaint);
@@ -576,6 +752,21 @@ public class UQMWallpaper extends WallpaperService {
             }
         }
 
+        // A software canvas can't draw a RenderEffect, so there the background is blurred the cheap
+        // way: shrunk to a few pixels, and spread back out by the filtering when it's scaled up
+        private void drawShrunk(Canvas c, Bitmap b, Rect dst) {
+            final int w = Math.max(1, dst.width() / BLUR_SHRINK);
+            final int h = Math.max(1, dst.height() / BLUR_SHRINK);
+            if (mShrunk == null || mShrunk.getWidth() != w || mShrunk.getHeight() != h) {
+                if (mShrunk != null) mShrunk.recycle();
+                mShrunk = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+                mShrunkCanvas = new Canvas(mShrunk);
+            }
+            mShrunkRect.set(0, 0, w, h);
+            mShrunkCanvas.drawBitmap(b, null, mShrunkRect, mShrinkPaint);
+            c.drawBitmap(mShrunk, null, dst, mPaint);
+        }
+
         private void drawStatusMessage(Canvas c, String text, int width, int height, int style) {
             float density = getResources().getDisplayMetrics().density;
             TextPaint p = new TextPaint();
@@ -22,8 +22,14 @@ public class WallpaperViewModel {
      * by trial-and-error.
      */
     public static final float FILL_FRAME_FOLLOW_FUDGE_FACTOR = 1.52f;
+    // The most the animation is downsampled for being drawn small, e.g., in a preview thumbnail
+    static final int MAX_SURFACE_SAMPLE_SIZE = 4;
+    // How far under a threshold the drawn size has to be before it's decoded any smaller
+    static final float SAMPLE_SIZE_HYSTERESIS = 0.1f;
     private Animation mAnim;
     private Runnable mOnDrawNeeded;
+    private Runnable mOnSampleSizeChanged;
+    private volatile int mSampleSize = 1;
     private HandlerThread mWorkerThread;
     private Handler mWorkerHandler;
     private volatile boolean mVisible;
@@ -50,8 +56,19 @@ public class WallpaperViewModel {
     private volatile int mAnimWidth;
     private volatile int mAnimHeight;
     private final Rect mDestRect = new Rect();
-
+    // Where the animation was on the last draw, and whether the next one has to cover the whole
+    // surface anyway, because something besides the animation has changed; see takeDirtyRect()
+    private final Rect mPresentedRect = new Rect();
+    private boolean mFullRedraw = true;
+    // Whether anything has been drawn since the surface last needed drawing, and how many stamps
+    // the animation had drawn by then; a tick that doesn't stamp anything has nothing to show
+    private boolean mDrawn;
+    private long mDrawnStamps;
+
+    // The animation ticks on its own schedule, and is drawn after each one; anything that only
+    // changes where it goes on the screen just redraws the frame it already has
     private final Runnable mDrawRunnable = this::notifyDrawNeeded;
+    private final Runnable mRedrawRunnable = this::notifyRedrawNeeded;
 
     public WallpaperViewModel(@NonNull WallpaperSettings settings) {
         updateFromSettings(settings);
@@ -64,7 +81,7 @@ public class WallpaperViewModel {
             this.mFillFrame = settings.fillFrame;
             this.mUserOffset = settings.offset;
             updateAspect();
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
         }
     }
 
@@ -79,6 +96,16 @@ public class WallpaperViewModel {
         }
     }
 
+    // Called (on the worker thread) when the animation should be reloaded at getSampleSize()
+    public void setOnSampleSizeChanged(Runnable onSampleSizeChanged) {
+        synchronized (mLock) {
+            this.mOnSampleSizeChanged = onSampleSizeChanged;
+        }
+    }
+
+    // The sample size to decode the animation at, for the size it's drawn at
+    public int getSampleSize() { return mSampleSize; }
+
     public void start() {
         synchronized (mLock) {
             if (mWorkerThread == null) {
@@ -110,6 +137,8 @@ public class WallpaperViewModel {
         synchronized (mLock) {
             mVisible = visible;
             if (mVisible) {
+                mFullRedraw = true;
+                mDrawn = false;
                 scheduleDraw();
             } else {
                 if (mWorkerHandler != null) mWorkerHandler.removeCallbacks(mDrawRunnable);
@@ -122,16 +151,45 @@ public class WallpaperViewModel {
     private void scheduleDraw() {
         if (mVisible && mWorkerHandler != null) {
             mWorkerHandler.removeCallbacks(mDrawRunnable);
-            int delay = (mAnim != null) ? mAnim.next_frame_delay : (1000 / 40);
+            long delay = (mAnim != null) ? Animation.getClock().realDelay(mAnim.next_frame_delay) : (1000 / 40);
             mWorkerHandler.postDelayed(mDrawRunnable, delay);
         }
     }
 
     private void notifyDrawNeeded() {
+        Animation anim;
+        synchronized (mLock) {
+            anim = mAnim;
+        }
+        if (anim != null) anim.tick(Animation.getClock().uptimeMillis());
+
+        Runnable callback = null;
+        synchronized (mLock) {
+            // Locking and posting the surface again for the same picture is all cost and no change
+            final long stamps = (mAnim != null) ? mAnim.getStampCount() : 0;
+            if (!mDrawn || stamps != mDrawnStamps) {
+                callback = mOnDrawNeeded;
+                mDrawn = true;
+                mDrawnStamps = stamps;
+            }
+            scheduleDraw(); // Re-schedule next frame
+        }
+        if (callback != null) callback.run();
+    }
+
+    // Called with mLock held
+    private void postRedraw() {
+        mFullRedraw = true;
+        if (mWorkerHandler != null) mWorkerHandler.post(mRedrawRunnable);
+    }
+
+    // Draws the animation as it is, without advancing it or touching the schedule it ticks on
+    private void notifyRedrawNeeded() {
         Runnable callback;
         synchronized (mLock) {
             callback = mOnDrawNeeded;
-            scheduleDraw(); // Re-schedule next frame
+            mDrawn = true;
+            mDrawnStamps = (mAnim != null) ? mAnim.getStampCount() : 0;
         }
         if (callback != null) callback.run();
     }
@@ -142,13 +200,16 @@ public class WallpaperViewModel {
             if (oldAnim == animation && animation != null) return;
 
             this.mAnim = animation;
+            this.mFullRedraw = true;
+            this.mDrawn = false;
             if (animation != null) {
                 this.mErrorMessage = null;
                 this.mIsLoading = false;
-                Bitmap b = animation.getFrame();
+                Bitmap b = animation.currentFrame();
                 if (b != null) {
-                    mAnimWidth = b.getWidth();
-                    mAnimHeight = b.getHeight();
+                    final int scale = Math.max(1, animation.getSampleSize());
+                    mAnimWidth = b.getWidth() * scale;
+                    mAnimHeight = b.getHeight() * scale;
                 }
             } else {
                 mAnimWidth = 0;
@@ -186,7 +247,7 @@ public class WallpaperViewModel {
         synchronized (mLock) {
             this.mIsLoading = loading;
             if (loading) this.mErrorMessage = null;
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
         }
     }
 
@@ -196,7 +257,7 @@ public class WallpaperViewModel {
         synchronized (mLock) {
             this.mErrorMessage = message;
             if (message != null) this.mIsLoading = false;
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
         }
     }
 
@@ -218,7 +279,7 @@ public class WallpaperViewModel {
         synchronized (mLock) {
             this.mScalingFactor = factor;
             updateAspect();
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
         }
     }
 
@@ -227,7 +288,7 @@ public class WallpaperViewModel {
     public void setFillFrame(boolean fillFrame) {
         synchronized (mLock) {
             this.mFillFrame = fillFrame;
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
         }
     }
 
@@ -237,7 +298,7 @@ public class WallpaperViewModel {
         synchronized (mLock) {
             this.mUserOffset = userOffset;
             updateOffset();
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
         }
     }
 
@@ -251,13 +312,46 @@ public class WallpaperViewModel {
         synchronized (mLock) { return new Rect(mDestRect); }
     }
 
+    // Sets out to the part of the surface that the animation has changed since the last draw,
+    // and returns true; out is empty if nothing has.  Returns false if the whole surface needs
+    // drawing instead: the first time, after anything but the animation has changed, and while
+    // the frame is filled, since the background is drawn from all of the animation.
+    public boolean takeDirtyRect(Rect out) {
+        synchronized (mLock) {
+            final Bitmap b = (mAnim != null) ? mAnim.currentFrame() : null;
+            // A full redraw covers what's been stamped, too
+            final boolean stamped = (mAnim != null) && mAnim.takeDirty(out);
+            final boolean full = mFullRedraw || mFillFrame || b == null || b.getWidth() <= 0 || b.getHeight() <= 0
+                    || !mDestRect.equals(mPresentedRect);
+            mFullRedraw = false;
+            mPresentedRect.set(mDestRect);
+            if (full) return false;
+            if (!stamped) {
+                out.setEmpty();
+                return true;
+            }
+
+            // Filtering blends each pixel with the ones around it when the frame is scaled, so
+            // those have changed as well
+            out.inset(-1, -1);
+            final float scaleX = (float) mDestRect.width() / b.getWidth();
+            final float scaleY = (float) mDestRect.height() / b.getHeight();
+            out.set(mDestRect.left + (int) Math.floor(out.left * scaleX),
+                    mDestRect.top + (int) Math.floor(out.top * scaleY),
+                    mDestRect.left + (int) Math.ceil(out.right * scaleX),
+                    mDestRect.top + (int) Math.ceil(out.bottom * scaleY));
+            if (!out.intersect(0, 0, mWidth, mHeight)) out.setEmpty();
+            return true;
+        }
+    }
+
     public void onSurfaceChanged(int width, int height) {
         if (width < 0 || height < 0) return;
         synchronized (mLock) {
             mWidth = width;
             mHeight = height;
             updateAspect();
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
             if (Log.isLoggable(TAG, Log.DEBUG))
                 Log.d(TAG, "Surface dimensions updated: %dx%d (computed offset: %d)".formatted(width, height, mOffset));
         }
@@ -269,7 +363,7 @@ public class WallpaperViewModel {
             this.mSystemXStep = xStep;
             this.mIsLandscape = isLandscape;
             updateOffset();
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
         }
     }
 
@@ -345,7 +439,7 @@ public class WallpaperViewModel {
                     mInitialPointerDistance = -1;
                     break;
             }
-            if (mWorkerHandler != null) mWorkerHandler.post(mDrawRunnable);
+            postRedraw();
             if (Log.isLoggable(TAG, Log.VERBOSE))
                 Log.v(TAG, "Touch interaction: offset=%d, scaling=%.2f(%dpx)".formatted(mOffset, mScalingFactor, (int) getScaledImageWidth()));
         }
@@ -390,9 +484,18 @@ public class WallpaperViewModel {
     }
 
     public void updateAspect(Bitmap b) {
+        updateAspect(b, 1);
+    }
+
+    // A downsampled animation is laid out at the size of the original, and scaled up to fit
+    public void updateAspect(Animation anim) {
+        updateAspect(anim.currentFrame(), Math.max(1, anim.getSampleSize()));
+    }
+
+    private void updateAspect(Bitmap b, int scale) {
         synchronized (mLock) {
-            mAnimWidth = (b != null) ? b.getWidth() : 0;
-            mAnimHeight = (b != null) ? b.getHeight() : 0;
+            mAnimWidth = (b != null) ? b.getWidth() * scale : 0;
+            mAnimHeight = (b != null) ? b.getHeight() * scale : 0;
             updateAspect();
         }
     }
@@ -405,6 +508,33 @@ public class WallpaperViewModel {
             mAspect = (int) (targetWidth * 10000 / mAnimWidth);
         }
         updateOffset();
+        updateSampleSize();
+    }
+
+    private void updateSampleSize() {
+        // Nothing to go by until there's an animation to measure
+        if (mAnimWidth == 0) return;
+        final int sampleSize = sampleSizeFor(mAspect / 10000.0f, mSampleSize);
+        if (sampleSize == mSampleSize) return;
+        mSampleSize = sampleSize;
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "Sample size for %.2fx: %d".formatted(mAspect / 10000.0f, sampleSize));
+        if (mAnim != null && Content.effectiveSampleSize(sampleSize) != mAnim.getSampleSize()
+                && mOnSampleSizeChanged != null && mWorkerHandler != null)
+            mWorkerHandler.post(mOnSampleSizeChanged);
+    }
+
+    // Returns the sample size for an animation drawn at scale times its original size: the coarsest
+    // power of two that still has at least as many pixels as are drawn.  Coming from current, finer
+    // sample sizes are taken right away, but coarser ones only once scale is SAMPLE_SIZE_HYSTERESIS
+    // under their threshold, so that pinching around one doesn't keep reloading.
+    @VisibleForTesting
+    static int sampleSizeFor(float scale, int current) {
+        if (!(scale > 0)) return current;
+        int sampleSize = 1;
+        while (sampleSize < MAX_SURFACE_SAMPLE_SIZE && scale * sampleSize * 2 <= 1) sampleSize *= 2;
+        while (sampleSize > current && scale * sampleSize > 1 - SAMPLE_SIZE_HYSTERESIS) sampleSize /= 2;
+        return sampleSize;
     }
 
     private float getScaledImageWidth() {
@@ -0,0 +1,121 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AniFileTest extends BaseTest {
+
+    private static List<AniFile.Entry> parse(String ani, String basedir) throws IOException {
+        return AniFile.parse(ByteBuffer.wrap(ani.getBytes(StandardCharsets.UTF_8)), basedir);
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        List<AniFile.Entry> entries = parse("""
+                orzorz-000.png -1 -1 0 0
+                orzorz-001.png 0 0 -12 34
+                """, "base/comm/orz");
+        Assert.assertEquals(List.of(
+                new AniFile.Entry("base/comm/orz/orzorz-000.png", 0, 0),
+                new AniFile.Entry("base/comm/orz/orzorz-001.png", -12, 34)), entries);
+    }
+
+    @Test
+    public void testParse_random() throws IOException {
+        String basedir = "base/comm/" + createString();
+        StringBuilder ani = new StringBuilder();
+        List<AniFile.Entry> expected = new ArrayList<>();
+        for (int i = rand.nextInt(1, 200); i > 0; i--) {
+            // long enough, now and then, to outgrow the name buffer
+            String name = createString(rand.nextInt(1, 100)) + ".png";
+            int x = rand.nextInt(-1000, 1000), y = rand.nextInt(-1000, 1000);
+            ani.append("%s %d %d %d %d\n".formatted(name, rand.nextInt(-1, 256), rand.nextInt(-1, 256), x, y));
+            expected.add(new AniFile.Entry(basedir + "/" + name, x, y));
+        }
+        Assert.assertEquals(expected, parse(ani.toString(), basedir));
+    }
+
+    @Test
+    public void testParse_whitespace() throws IOException {
+        List<AniFile.Entry> entries = parse("\r\n  a.png\t1  2 +3 4 extra fields\r\n\n\nb.png 1 2 3 4", "");
+        Assert.assertEquals(List.of(new AniFile.Entry("a.png", 3, 4), new AniFile.Entry("b.png", 3, 4)), entries);
+        Assert.assertTrue(parse("", "base").isEmpty());
+        Assert.assertTrue(parse("\n \n", "base").isEmpty());
+    }
+
+    @Test
+    public void testParse_leavesBufferAlone() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap("a.png 1 2 3 4\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        AniFile.parse(data, "base");
+        Assert.assertEquals(0, data.position());
+        Assert.assertEquals(1, AniFile.parse(data, "base").size());
+    }
+
+    @Test
+    public void testParse_malformed() {
+        Assert.assertThrows(IOException.class, () -> parse("a.png 1 2 3\n", "base"));
+        Assert.assertThrows(IOException.class, () -> parse("a.png\n", "base"));
+        Assert.assertThrows(IOException.class, () -> parse("a.png 1 2 x 4\n", "base"));
+        Assert.assertThrows(IOException.class, () -> parse("a.png 1 2 3 4x\n", "base"));
+        Assert.assertThrows(IOException.class, () -> parse("a.png 1 2 3 -\n", "base"));
+        Assert.assertThrows(IOException.class, () -> parse("a.png 1 2 3 99999999999\n", "base"));
+    }
+
+    // How Content read .ani files before AniFile: the whole file as a String, split into lines, each
+    // resolved with Path and split again for its hotspot.  Kept only for benchmarkParse() to compare with.
+    private static List<AniFile.Entry> parseWithStrings(byte[] ani, String basedir) {
+        Path base = Path.of(basedir);
+        List<AniFile.Entry> entries = new ArrayList<>();
+        for (String line : new String(ani, StandardCharsets.UTF_8).split("\n")) {
+            String[] field = base.resolve(line).toString().trim().split("\\s+", 5);
+            entries.add(new AniFile.Entry(field[0], Integer.parseInt(field[3]), Integer.parseInt(field[4])));
+        }
+        return entries;
+    }
+
+    // Not a test; run it by hand, on a desktop JVM (it needs com.sun.management for the allocation
+    // counts), to compare the parsers
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkParse() throws IOException {
+        final int lines = 120, runs = 20_000;
+        final String basedir = "base/comm/orz";
+        StringBuilder ani = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            ani.append("orzorz-%03d.png %d %d %d %d\n".formatted(i, rand.nextInt(-1, 256), rand.nextInt(-1, 256), rand.nextInt(-100, 100), rand.nextInt(-100, 100)));
+        final byte[] bytes = ani.toString().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        Assert.assertEquals(parseWithStrings(bytes, basedir), AniFile.parse(data, basedir));
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        for (int pass = 0; pass < 2; pass++) {
+            // the first pass is a warmup
+            long bytesBefore = mx.getThreadAllocatedBytes(thread), start = System.nanoTime();
+            for (int i = 0; i < runs; i++) parseWithStrings(bytes, basedir);
+            long stringsBytes = mx.getThreadAllocatedBytes(thread) - bytesBefore, stringsNanos = System.nanoTime() - start;
+
+            bytesBefore = mx.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) AniFile.parse(data, basedir);
+            long aniBytes = mx.getThreadAllocatedBytes(thread) - bytesBefore, aniNanos = System.nanoTime() - start;
+
+            if (pass > 0) {
+                System.out.printf("Strings and Paths: %d bytes allocated, %d us per parse%n", stringsBytes / runs, stringsNanos / runs / 1000);
+                System.out.printf("AniFile.parse():   %d bytes allocated, %d us per parse%n", aniBytes / runs, aniNanos / runs / 1000);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AnimationClockTest extends BaseTest {
+
+    @Test
+    public void testManual() {
+        long start = rand.nextLong(0, Long.MAX_VALUE >> 1);
+        AnimationClock.Manual clock = new AnimationClock.Manual(start);
+        Assert.assertEquals(start, clock.uptimeMillis());
+        Assert.assertEquals(start, clock.uptimeMillis());
+
+        long step = rand.nextLong(0, 1_000_000);
+        Assert.assertEquals(start + step, clock.advance(step));
+        Assert.assertEquals(start + step, clock.uptimeMillis());
+        Assert.assertThrows(IllegalArgumentException.class, () -> clock.advance(-1));
+
+        clock.set(0);
+        Assert.assertEquals(0, clock.uptimeMillis());
+        // Real time has nothing to do with it
+        Assert.assertEquals(step, clock.realDelay(step));
+    }
+
+    @Test
+    public void testScaled() {
+        long start = rand.nextLong(0, 1_000_000);
+        AnimationClock.Manual source = new AnimationClock.Manual(start);
+        AnimationClock.Scaled fast = new AnimationClock.Scaled(source, 10f);
+        AnimationClock.Scaled slow = new AnimationClock.Scaled(source, 0.5f);
+
+        // Both start where the source is, and go their own speed from there
+        Assert.assertEquals(start, fast.uptimeMillis());
+        Assert.assertEquals(start, slow.uptimeMillis());
+        source.advance(1000);
+        Assert.assertEquals(start + 10_000, fast.uptimeMillis());
+        Assert.assertEquals(start + 500, slow.uptimeMillis());
+
+        // so waiting for some time on them takes that much less, or more
+        Assert.assertEquals(10, fast.realDelay(100));
+        Assert.assertEquals(3, fast.realDelay(25));
+        Assert.assertEquals(200, slow.realDelay(100));
+
+        // and they can be stacked
+        AnimationClock.Scaled faster = new AnimationClock.Scaled(fast, 10f);
+        source.advance(1);
+        Assert.assertEquals(fast.uptimeMillis() + 90, faster.uptimeMillis());
+        Assert.assertEquals(1, faster.realDelay(100));
+    }
+
+    @Test
+    public void testScaled_badRate() {
+        AnimationClock.Manual source = new AnimationClock.Manual(0);
+        Assert.assertThrows(IllegalArgumentException.class, () -> new AnimationClock.Scaled(source, 0f));
+        Assert.assertThrows(IllegalArgumentException.class, () -> new AnimationClock.Scaled(source, -1f));
+        Assert.assertThrows(IllegalArgumentException.class, () -> new AnimationClock.Scaled(source, Float.NaN));
+    }
+}
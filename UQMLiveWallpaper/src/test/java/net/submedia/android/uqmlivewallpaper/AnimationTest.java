@@ -1,15 +1,20 @@
 package net.submedia.android.uqmlivewallpaper;
 
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.os.SystemClock;
 
 import org.junit.After;
@@ -19,8 +24,12 @@ import org.junit.Test;
 import org.mockito.MockedStatic;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class AnimationTest extends BaseTest {
@@ -38,12 +47,12 @@ public class AnimationTest extends BaseTest {
 
         T = new ContentFixture();
         // Setup Content injection
-        Animation.setContentFactory((races, context, cancelled) -> T.build(this));
+        Animation.setContentFactory((races, context, cancelled, sampleSize) -> T.build(this));
     }
 
     @After
     public void tearDown() throws Exception {
-        Animation.setContentFactory(Content::new);
+        Animation.setContentFactory(ContentCache::acquire);
         if (mockedStaticSystemClock != null) {
             mockedStaticSystemClock.close();
             mockedStaticSystemClock = null;
@@ -91,7 +100,7 @@ public class AnimationTest extends BaseTest {
         int[] frameValues = createFrameDef();
         animationMocksHelper(alienRace, frameValues);
 
-        try (Animation animation = new Animation(alienRace, mockContext, () -> false)) {
+        try (Animation animation = new Animation(alienRace, mockContext, () -> false, 1)) {
             Assert.assertNotNull(animation);
             Assert.assertNotNull(animation.getContent());
             Assert.assertFalse(animation.getContent().frame.isEmpty());
@@ -103,9 +112,22 @@ public class AnimationTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testAnimation_fromManifest() throws Exception {
+        // pkunk is compiled into the RaceManifest from res/values, so no resources are looked up
+        T.setAlienRace("pkunk").setFrameCount(15).setup(this);
+
+        try (Animation animation = new Animation("pkunk", mockContext, () -> false, 1)) {
+            Assert.assertEquals(3, animation.getFrameList().size());
+            Assert.assertTrue(animation.getFrameList().stream().anyMatch(track ->
+                    track.StartIndex == 3 && track.NumFrames == 4 && track.AnimFlags == 10 && track.BaseFrameRate == 33));
+        }
+        verify(mockResources, never()).getIdentifier(any(String.class), any(String.class), any());
+    }
+
     @Test
     public void testAnimation_nullAlienRace() {
-        Exception thrown = Assert.assertThrows(Exception.class, () -> new Animation(null, mockContext, () -> false));
+        Exception thrown = Assert.assertThrows(Exception.class, () -> new Animation(null, mockContext, () -> false, 1));
         Assert.assertEquals("no alien_race passed", thrown.getMessage());
     }
 
@@ -115,7 +137,7 @@ public class AnimationTest extends BaseTest {
         when(mockContext.getPackageName()).thenReturn(createString());
         when(mockResources.getIdentifier(alienRace, "array", mockContext.getPackageName())).thenReturn(0);
 
-        Exception thrown = Assert.assertThrows(Exception.class, () -> new Animation(alienRace, mockContext, () -> false));
+        Exception thrown = Assert.assertThrows(Exception.class, () -> new Animation(alienRace, mockContext, () -> false, 1));
         Assert.assertEquals("Could not find resource id for " + alienRace, thrown.getMessage());
     }
 
@@ -231,6 +253,238 @@ public class AnimationTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testTick_currentFrameDoesNotAdvance() throws Exception {
+        AtomicReference<Canvas> canvasRef = new AtomicReference<>();
+        int numFrames = 10;
+        int[] frameValues = createFrameDef(0, numFrames, Animation.CIRCULAR_ANIM, 0);
+
+        try (Animation animation = setupAnimationForFrameTest(numFrames, frameValues, canvasRef, 0)) {
+            animation.getFrameList().get(0).CurIndex = 0;
+
+            Assert.assertEquals(0, animation.getStampCount());
+            Bitmap result = animation.tick(100L);
+            Assert.assertEquals(1, animation.getFrameList().get(0).CurIndex);
+            Assert.assertEquals(1, animation.getStampCount());
+            int alarm = animation.getFrameList().get(0).Alarm;
+
+            // However many times it's asked for, and however late, the frame stays where it is
+            mockedStaticSystemClock.when(SystemClock::uptimeMillis).thenReturn(100000L);
+            for (int i = 0; i < 10; i++)
+                Assert.assertSame(result, animation.currentFrame());
+            Assert.assertEquals(1, animation.getFrameList().get(0).CurIndex);
+            Assert.assertEquals(alarm, animation.getFrameList().get(0).Alarm);
+            Assert.assertEquals(1, animation.getStampCount());
+            verify(canvasRef.get(), times(1)).drawBitmap(any(Bitmap.class), any(Float.class), any(Float.class), any());
+        }
+    }
+
+    @Test
+    public void testGetFrame_manualClock() throws Exception {
+        AnimationClock.Manual clock = new AnimationClock.Manual(rand.nextLong(0, 1_000_000));
+        Animation.setClock(clock);
+        AtomicReference<Canvas> canvasRef = new AtomicReference<>();
+        int numFrames = 10;
+        int[] frameValues = createFrameDef(0, numFrames, Animation.CIRCULAR_ANIM, 0);
+
+        try (Animation animation = setupAnimationForFrameTest(numFrames, frameValues, canvasRef, 0)) {
+            // Ten minutes of alarms, each one the moment it's due; SystemClock never moves at all
+            final long end = clock.uptimeMillis() + 600_000;
+            int ticks = 0;
+            while (clock.uptimeMillis() < end) {
+                clock.advance(animation.next_frame_delay);
+                animation.getFrame();
+                ticks++;
+            }
+            Assert.assertTrue(ticks >= 600_000 / 100);
+            // Nine of every ten ticks stamp something; the other restarts the cycle
+            Assert.assertTrue(animation.getStampCount() > ticks / 2);
+        }
+    }
+
+    // Ticks animation at each of times, and returns where its first track was after each one, and
+    // how many stamps had been drawn by then
+    private static List<List<Long>> run(Animation animation, List<Long> times) {
+        List<List<Long>> states = new ArrayList<>();
+        for (long time : times) {
+            animation.tick(time);
+            states.add(List.of((long) animation.getFrameList().get(0).CurIndex, animation.getStampCount()));
+        }
+        return states;
+    }
+
+    @Test
+    public void testSeed() throws Exception {
+        Animation.setSeed(rand.nextLong());
+        int[] frameValues = createFrameDef(0, 10, Animation.RANDOM_ANIM, 0);
+        List<Long> times = new ArrayList<>();
+        for (long t = 0; times.size() < 200; t += rand.nextInt(1, 100)) times.add(t);
+
+        List<List<Long>> first, second;
+        try (Animation animation = setupAnimationForFrameTest(10, frameValues, new AtomicReference<>(), 0)) {
+            first = run(animation, times);
+        }
+        try (Animation animation = setupAnimationForFrameTest(10, frameValues, new AtomicReference<>(), 0)) {
+            second = run(animation, times);
+        }
+        Assert.assertEquals(first, second);
+        // and it's not standing still, either
+        Assert.assertTrue(first.get(first.size() - 1).get(1) > 0);
+    }
+
+    @Test
+    public void testSeed_lazyDecoding() throws Exception {
+        Animation.setSeed(rand.nextLong());
+        Content.setLazyDecoding(true);
+        T.setFrameCount(8).setup(this);
+        List<int[]> tracks = List.of(createFrameDef(1, 3, Animation.CIRCULAR_ANIM, 0), createFrameDef(4, 4, Animation.RANDOM_ANIM, 0));
+        List<Long> times = new ArrayList<>();
+        for (long t = 0; times.size() < 200; t += rand.nextInt(1, 100)) times.add(t);
+
+        // However long the decodes take; here, forever the first time, and no time at all the second
+        List<byte[]> traces = new ArrayList<>();
+        for (Executor executor : List.<Executor>of(task -> {}, Runnable::run)) {
+            Content content = T.build(this);
+            Content.setDecodeExecutor(executor);
+            try (Animation animation = new Animation(content, tracks, mock(Canvas.class))) {
+                AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+                animation.record(recorder);
+                run(animation, times);
+                traces.add(recorder.toByteArray());
+            }
+            Content.setDecodeExecutor(Runnable::run);
+        }
+        Assert.assertArrayEquals(traces.get(0), traces.get(1));
+        Assert.assertTrue(traces.get(0).length > AnimationTrace.HEADER_SIZE);
+    }
+
+    @Test
+    public void testReplay_lazyDecoding() throws Exception {
+        Content.setLazyDecoding(true);
+        T.setFrameCount(4).setup(this);
+        Content content = T.build(this);
+        // Nothing would ever be decoded in the background
+        Content.setDecodeExecutor(task -> {});
+
+        try (Animation animation = new Animation(content, List.of(createFrameDef(1, 3, Animation.CIRCULAR_ANIM, 0)), mock(Canvas.class))) {
+            AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+            recorder.record(10, 0, 2);
+            recorder.record(20, 0, 3);
+            animation.replay(AnimationTrace.Player.parse(ByteBuffer.wrap(recorder.toByteArray())));
+            animation.tick(100);
+            Assert.assertEquals(2, animation.getStampCount());
+        }
+    }
+
+    @Test
+    public void testRecord_onlyWhatsDrawn() throws Exception {
+        Content.setLazyDecoding(true);
+        T.setFrameCount(4).setup(this);
+        Content content = T.build(this);
+
+        try (Animation animation = new Animation(content, List.of(createFrameDef(1, 3, Animation.CIRCULAR_ANIM, 0)), mock(Canvas.class))) {
+            AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+            animation.record(recorder);
+            Animation.Frame track = animation.getFrameList().get(0);
+            track.CurIndex = 1;
+            track.Alarm = 0;
+            animation.tick(100);
+            Assert.assertTrue(track.Ready);
+            Assert.assertEquals(1, animation.getStampCount());
+
+            // The next stamp has been dropped, and doesn't decode in time to be drawn, so there's
+            // nothing to record
+            Content.setDecodeExecutor(task -> {});
+            content.dropStamps(Long.MAX_VALUE);
+            track.Alarm = 0;
+            animation.tick(200);
+            Assert.assertFalse(track.Ready);
+            Assert.assertEquals(1, animation.getStampCount());
+
+            AnimationTrace.Player player = AnimationTrace.Player.parse(ByteBuffer.wrap(recorder.toByteArray()));
+            int events = 0;
+            for (; player.hasNext(); player.advance()) events++;
+            Assert.assertEquals(1, events);
+        }
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        int numFrames = 10;
+        int[] frameValues = createFrameDef(0, numFrames, Animation.RANDOM_ANIM, 0);
+        List<Long> times = new ArrayList<>();
+        for (long t = 0; times.size() < 200; t += rand.nextInt(1, 100)) times.add(t);
+
+        AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+        List<List<Long>> live;
+        try (Animation animation = setupAnimationForFrameTest(numFrames, frameValues, new AtomicReference<>(), 0)) {
+            animation.record(recorder);
+            live = run(animation, times);
+        }
+        long stamps = live.get(live.size() - 1).get(1);
+        Assert.assertTrue(stamps > 0);
+        Assert.assertEquals(stamps, recorder.events());
+
+        // Nothing random about the replay; it's the same stamps at the same times
+        AnimationTrace.Player player = AnimationTrace.Player.parse(ByteBuffer.wrap(recorder.toByteArray()));
+        try (Animation animation = setupAnimationForFrameTest(numFrames, frameValues, new AtomicReference<>(), 0)) {
+            animation.replay(player);
+            Assert.assertEquals(live, run(animation, times));
+            Assert.assertFalse(player.hasNext());
+            Assert.assertEquals(Animation.FRAME_RATE, animation.next_frame_delay);
+        }
+    }
+
+    @Test
+    public void testReplay_waitsForNextEvent() throws Exception {
+        AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+        recorder.record(100, 0, 1);
+        recorder.record(1000, 0, 2);
+        // neither a track nor a stamp that this animation has
+        recorder.record(1000, 5, 2);
+        recorder.record(1000, 0, 99);
+        AnimationTrace.Player player = AnimationTrace.Player.parse(ByteBuffer.wrap(recorder.toByteArray()));
+
+        AtomicReference<Canvas> canvasRef = new AtomicReference<>();
+        try (Animation animation = setupAnimationForFrameTest(10, createFrameDef(0, 10, Animation.CIRCULAR_ANIM, 0), canvasRef, 0)) {
+            animation.replay(player);
+            animation.tick(50);
+            Assert.assertEquals(0, animation.getStampCount());
+            Assert.assertEquals(50, animation.next_frame_delay);
+            animation.tick(100);
+            Assert.assertEquals(1, animation.getStampCount());
+            Assert.assertEquals(1, animation.getFrameList().get(0).CurIndex);
+            Assert.assertEquals(900, animation.next_frame_delay);
+            animation.tick(2000);
+            Assert.assertEquals(2, animation.getStampCount());
+            Assert.assertEquals(2, animation.getFrameList().get(0).CurIndex);
+            Assert.assertFalse(player.hasNext());
+        }
+    }
+
+    @Test
+    public void testTakeDirty() throws Exception {
+        AtomicReference<Canvas> canvasRef = new AtomicReference<>();
+        int numFrames = 10;
+        int[] frameValues = createFrameDef(0, numFrames, Animation.CIRCULAR_ANIM, 0);
+
+        try (Animation animation = setupAnimationForFrameTest(numFrames, frameValues, canvasRef, 0)) {
+            Rect dirty = mock(Rect.class);
+            Assert.assertFalse(animation.takeDirty(dirty));
+
+            animation.getFrameList().get(0).CurIndex = 0;
+            animation.tick(100L);
+            Content.Frame stamp = animation.getContent().frame.get(1);
+            Assert.assertTrue(animation.takeDirty(dirty));
+            verify(dirty).set((int) Math.floor(stamp.hotspot.x()), (int) Math.floor(stamp.hotspot.y()),
+                    (int) Math.ceil(stamp.hotspot.x() + stamp.width), (int) Math.ceil(stamp.hotspot.y() + stamp.height));
+
+            // It's forgotten once it's been taken
+            Assert.assertFalse(animation.takeDirty(dirty));
+            verify(dirty, times(1)).set(anyInt(), anyInt(), anyInt(), anyInt());
+        }
+    }
+
     @Test
     public void testGetFrame_circularAnim_wrapAround() throws Exception {
         AtomicReference<Canvas> canvasRef = new AtomicReference<>();
@@ -396,6 +650,104 @@ public class AnimationTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testGetFrame_lazyStampsPrefetched() throws Exception {
+        Content.setLazyDecoding(true);
+        AtomicReference<Canvas> canvasRef = new AtomicReference<>();
+        int[] frameValues = createFrameDef(1, 4, Animation.CIRCULAR_ANIM, 0);
+
+        try (Animation animation = setupAnimationForFrameTest(6, frameValues, canvasRef, 0)) {
+            // Every track's stamps are decoded as soon as it's created; the frame that's in no track is left alone
+            Content content = animation.getContent();
+            for (int i = 1; i < 5; i++) Assert.assertNotNull(content.frame.get(i).content);
+            Assert.assertNull(content.frame.get(5).content);
+
+            mockedStaticSystemClock.when(SystemClock::uptimeMillis).thenReturn(100L);
+            animation.getFrame();
+            verify(canvasRef.get(), times(1)).drawBitmap(any(Bitmap.class), any(Float.class), any(Float.class), any());
+            Assert.assertTrue(animation.getFrameList().get(0).Ready);
+        }
+    }
+
+    @Test
+    public void testAnimation_frequentTracksPrefetchedFirst() throws Exception {
+        Content.setLazyDecoding(true);
+        T.setFrameCount(5).setup(this);
+        Content content = T.build(this);
+        List<Runnable> queued = new ArrayList<>();
+        Content.setDecodeExecutor(queued::add);
+
+        int[] slow = {1, 2, Animation.CIRCULAR_ANIM, 100, 100, 5000, 5000, 0};
+        int[] fast = {3, 2, Animation.CIRCULAR_ANIM, 10, 10, 100, 100, 0};
+        int[] disabled = {1, 4, 0, 10, 10, 10, 10, 0};
+        try (Animation ignored = new Animation(content, List.of(slow, disabled, fast), mock(Canvas.class))) {
+            Assert.assertEquals(4, queued.size());
+            queued.get(0).run();
+            queued.get(1).run();
+            Assert.assertNull(content.frame.get(1).content);
+            Assert.assertNull(content.frame.get(2).content);
+            Assert.assertNotNull(content.frame.get(3).content);
+            Assert.assertNotNull(content.frame.get(4).content);
+        }
+    }
+
+    @Test
+    public void testGetFrame_trackWaitsForItsStamps() throws Exception {
+        Content.setLazyDecoding(true);
+        T.setFrameCount(4).setup(this);
+        Content content = T.build(this);
+        List<Runnable> queued = new ArrayList<>();
+        Content.setDecodeExecutor(queued::add);
+        Canvas canvas = mock(Canvas.class);
+
+        try (Animation animation = new Animation(content, List.of(createFrameDef(1, 3, Animation.CIRCULAR_ANIM, 0)), canvas)) {
+            Animation.Frame track = animation.getFrameList().get(0);
+            track.Alarm = 0;
+            mockedStaticSystemClock.when(SystemClock::uptimeMillis).thenReturn(100L);
+            animation.getFrame();
+
+            // Nothing is drawn, and the track doesn't move, until all of its stamps are in
+            verify(canvas, never()).drawBitmap(any(Bitmap.class), any(Float.class), any(Float.class), any());
+            Assert.assertFalse(track.Ready);
+            Assert.assertEquals(0, track.Alarm);
+            Assert.assertEquals(Animation.FRAME_RATE, animation.next_frame_delay);
+
+            queued.forEach(Runnable::run);
+            mockedStaticSystemClock.when(SystemClock::uptimeMillis).thenReturn(200L);
+            animation.getFrame();
+            verify(canvas, times(1)).drawBitmap(any(Bitmap.class), any(Float.class), any(Float.class), any());
+            Assert.assertTrue(track.Ready);
+        }
+    }
+
+    @Test
+    public void testGetFrame_failedPrefetchRetried() throws Exception {
+        Content.setLazyDecoding(true);
+        T.setFrameCount(4).setup(this);
+        Content content = T.build(this);
+        Bitmap decoded = BitmapFactory.decodeStream(InputStream.nullInputStream(), null, mock(BitmapFactory.Options.class));
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenReturn(null);
+
+        // Restarts a long way past PREFETCH_MS, so the alarm alone won't have the stamps asked for again
+        int[] frameValues = {1, 3, Animation.CIRCULAR_ANIM, 10, 10, 5000, 5000, 0};
+        try (Animation animation = new Animation(content, List.of(frameValues), mock(Canvas.class))) {
+            Animation.Frame track = animation.getFrameList().get(0);
+            for (int i = 1; i < 4; i++) Assert.assertNull(content.frame.get(i).content);
+
+            mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                    .thenReturn(decoded);
+            mockedStaticSystemClock.when(SystemClock::uptimeMillis).thenReturn(100L);
+            animation.getFrame();
+            for (int i = 1; i < 4; i++) Assert.assertNotNull(content.frame.get(i).content);
+            Assert.assertFalse(track.Ready);
+
+            mockedStaticSystemClock.when(SystemClock::uptimeMillis).thenReturn(200L);
+            animation.getFrame();
+            Assert.assertTrue(track.Ready);
+        }
+    }
+
     /** A helper to create the giant pile of mocks necessary to fake Android's resource loading.
         This should not be used by any test not explicitly testing the Animation() constructor;
         all other tests should use the @VisibleForTesting decorated constructor */
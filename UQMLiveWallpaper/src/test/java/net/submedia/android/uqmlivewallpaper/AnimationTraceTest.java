@@ -0,0 +1,95 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AnimationTraceTest extends BaseTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        int count = rand.nextInt(0, 1000);
+        long[] times = new long[count];
+        int[] tracks = new int[count];
+        int[] indices = new int[count];
+        AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            // now and then, a long wait or a big number, to take up more than one byte
+            time += rand.nextBoolean() ? rand.nextInt(0, 100) : rand.nextLong(0, 1L << 40);
+            times[i] = time;
+            tracks[i] = rand.nextInt(0, rand.nextBoolean() ? 32 : Integer.MAX_VALUE);
+            indices[i] = rand.nextInt(0, rand.nextBoolean() ? 128 : Integer.MAX_VALUE);
+            recorder.record(times[i], tracks[i], indices[i]);
+        }
+        Assert.assertEquals(count, recorder.events());
+
+        AnimationTrace.Player player = AnimationTrace.Player.parse(ByteBuffer.wrap(recorder.toByteArray()));
+        Assert.assertEquals(count, player.events());
+        for (int i = 0; i < count; i++) {
+            Assert.assertTrue(player.hasNext());
+            Assert.assertEquals(times[i], player.time());
+            Assert.assertEquals(tracks[i], player.track());
+            Assert.assertEquals(indices[i], player.index());
+            player.advance();
+        }
+        Assert.assertFalse(player.hasNext());
+    }
+
+    @Test
+    public void testCompact() {
+        AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+        // A frame every 40ms or so, of a handful of tracks, each with fewer than 128 stamps
+        for (int i = 0; i < 1000; i++) recorder.record(i * 40L, i % 8, i % 100);
+        Assert.assertEquals(AnimationTrace.HEADER_SIZE + 3 * 1000, recorder.toByteArray().length);
+    }
+
+    @Test
+    public void testRecord_badEvent() {
+        AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+        recorder.record(100, 0, 0);
+        Assert.assertThrows(IllegalArgumentException.class, () -> recorder.record(99, 0, 0));
+        Assert.assertThrows(IllegalArgumentException.class, () -> recorder.record(100, -1, 0));
+        Assert.assertThrows(IllegalArgumentException.class, () -> recorder.record(100, 0, -1));
+        Assert.assertEquals(1, recorder.events());
+    }
+
+    @Test
+    public void testParse_notATrace() throws IOException {
+        byte[] zip = createZipArchiveBytes(Map.of("a", new byte[1]));
+        Assert.assertThrows(IOException.class, () -> AnimationTrace.Player.parse(ByteBuffer.allocate(0)));
+        Assert.assertThrows(IOException.class, () -> AnimationTrace.Player.parse(ByteBuffer.allocate(AnimationTrace.HEADER_SIZE)));
+        Assert.assertThrows(IOException.class, () -> AnimationTrace.Player.parse(ByteBuffer.wrap(zip)));
+    }
+
+    @Test
+    public void testParse_damaged() throws IOException {
+        AnimationTrace.Recorder recorder = new AnimationTrace.Recorder();
+        recorder.record(1L << 40, 1, 300);
+        byte[] data = recorder.toByteArray();
+        Assert.assertEquals(0, AnimationTrace.Player.parse(ByteBuffer.wrap(data, 0, AnimationTrace.HEADER_SIZE).slice()).events());
+
+        // Cut off partway through an event
+        for (int length = AnimationTrace.HEADER_SIZE + 1; length < data.length; length++) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(data, length));
+            Assert.assertThrows(IOException.class, () -> AnimationTrace.Player.parse(truncated));
+        }
+
+        // A varint that never ends, and one too big for a track
+        byte[] endless = Arrays.copyOf(data, AnimationTrace.HEADER_SIZE + 11);
+        Arrays.fill(endless, AnimationTrace.HEADER_SIZE, endless.length, (byte) 0x80);
+        Assert.assertThrows(IOException.class, () -> AnimationTrace.Player.parse(ByteBuffer.wrap(endless)));
+        byte[] huge = Arrays.copyOf(data, AnimationTrace.HEADER_SIZE + 7);
+        huge[AnimationTrace.HEADER_SIZE] = 0;
+        Arrays.fill(huge, AnimationTrace.HEADER_SIZE + 1, AnimationTrace.HEADER_SIZE + 6, (byte) 0xFF);
+        huge[AnimationTrace.HEADER_SIZE + 6] = 0x01;
+        Assert.assertThrows(IOException.class, () -> AnimationTrace.Player.parse(ByteBuffer.wrap(huge)));
+    }
+}
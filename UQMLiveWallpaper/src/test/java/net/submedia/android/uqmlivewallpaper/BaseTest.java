@@ -31,10 +31,12 @@ import org.mockito.junit.MockitoRule;
 import org.mockito.quality.Strictness;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -72,10 +74,27 @@ public abstract class BaseTest {
 
         lenient().when(mockContext.getAssets()).thenReturn(mockAssetManager);
         lenient().when(mockContext.getResources()).thenReturn(mockResources);
+
+        // Static mocks only apply to the thread that made them, so decode frames on the test thread
+        Content.setDecodeExecutor(Runnable::run);
+        // Packing draws into real Canvases, so tests that want it have to ask (see ContentTest)
+        Content.setAtlasEnabled(false);
+        // Lazy decoding would leave most frames undecoded; tests that want it have to ask
+        Content.setLazyDecoding(false);
+        // Partial updates draw with software canvases; tests that want them have to ask
+        UQMWallpaper.setPartialUpdates(false);
     }
 
     @After
     public void tearDown() throws Exception {
+        Content.setDecodeExecutor(null);
+        Content.setAtlasEnabled(true);
+        Content.setLazyDecoding(true);
+        UQMWallpaper.setPartialUpdates(true);
+        Animation.setClock(AnimationClock.REAL);
+        Animation.setSeed(null);
+        BitmapPool.setMaxBytes(0);
+        UQMWallpaper.resetTrimStats();
         if (mockedStaticLog != null) {
             mockedStaticLog.close();
             mockedStaticLog = null;
@@ -118,6 +137,57 @@ public abstract class BaseTest {
         return bos.toByteArray();
     }
 
+    // Lays races out the way SlimContentPack does (see DecodedPack): the header and index, and then
+    // each race's frame table, names and pixels, one race after another
+    protected byte[] createDecodedPackBytes(Map<String, List<DecodedPack.Entry>> races) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        final int start = DecodedPack.HEADER_SIZE + DecodedPack.INDEX_ENTRY_SIZE * races.size();
+        for (Map.Entry<String, List<DecodedPack.Entry>> race : races.entrySet()) {
+            List<DecodedPack.Entry> frames = race.getValue();
+            int table = start + body.size();
+            int names = table + DecodedPack.FRAME_ENTRY_SIZE * frames.size();
+            int pixels = names;
+            for (DecodedPack.Entry e : frames) pixels += e.filename().getBytes(StandardCharsets.UTF_8).length;
+            for (DecodedPack.Entry e : frames) {
+                int nameLength = e.filename().getBytes(StandardCharsets.UTF_8).length;
+                bodyOut.writeLong(pixels);
+                bodyOut.writeInt(e.pixels().remaining());
+                bodyOut.writeInt(e.width());
+                bodyOut.writeInt(e.height());
+                bodyOut.writeFloat(e.x());
+                bodyOut.writeFloat(e.y());
+                bodyOut.writeInt((e.config() == Bitmap.Config.RGB_565) ? 0 : 1);
+                bodyOut.writeInt(names);
+                bodyOut.writeInt(nameLength);
+                names += nameLength;
+                pixels += e.pixels().remaining();
+            }
+            for (DecodedPack.Entry e : frames) bodyOut.write(e.filename().getBytes(StandardCharsets.UTF_8));
+            for (DecodedPack.Entry e : frames) {
+                byte[] bytes = new byte[e.pixels().remaining()];
+                e.pixels().duplicate().get(bytes);
+                bodyOut.write(bytes);
+            }
+            indexOut.write(Arrays.copyOf(race.getKey().getBytes(StandardCharsets.UTF_8), DecodedPack.NAME_SIZE));
+            indexOut.writeLong(table);
+            indexOut.writeInt(frames.size());
+            indexOut.writeInt(0);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(0x55514D58);
+        out.writeInt(1);
+        out.writeInt(races.size());
+        out.writeInt(0);
+        index.writeTo(out);
+        body.writeTo(out);
+        return bos.toByteArray();
+    }
+
     protected byte[] createAniContent(List<String> fileNames) {
         StringBuilder sb = new StringBuilder();
         for (String fileName : fileNames) sb.append(fileName).append(System.lineSeparator());
@@ -274,5 +344,9 @@ public abstract class BaseTest {
         public String getContentBaseDir() {
             return contentBaseDir;
         }
+
+        public byte[] getZipData() {
+            return zipData;
+        }
     }
 }
@@ -0,0 +1,175 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockConstruction;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockedConstruction;
+import org.mockito.MockedStatic;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitmapPoolTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        BitmapPool.setMaxBytes(0);
+    }
+
+    private static Bitmap pooled(int bytes) {
+        Bitmap b = mock(Bitmap.class);
+        when(b.isMutable()).thenReturn(true);
+        when(b.getAllocationByteCount()).thenReturn(bytes);
+        return b;
+    }
+
+    @Test
+    public void testPut_disabledRecycles() {
+        Bitmap b = pooled(100);
+        BitmapPool.put(b);
+        verify(b).recycle();
+        Assert.assertEquals(0, BitmapPool.size());
+        Assert.assertTrue(BitmapPool.isEmpty());
+    }
+
+    @Test
+    public void testPut_immutableRecycles() {
+        BitmapPool.setMaxBytes(1000);
+        Bitmap b = pooled(100);
+        when(b.isMutable()).thenReturn(false);
+        BitmapPool.put(b);
+        verify(b).recycle();
+        Assert.assertEquals(0, BitmapPool.size());
+    }
+
+    @Test
+    public void testPut_nullAndRecycledAreIgnored() {
+        BitmapPool.setMaxBytes(1000);
+        BitmapPool.put(null);
+        Bitmap b = pooled(100);
+        when(b.isRecycled()).thenReturn(true);
+        BitmapPool.put(b);
+        Assert.assertEquals(0, BitmapPool.size());
+    }
+
+    @Test
+    public void testGet_reconfiguresSmallestThatFits() {
+        BitmapPool.setMaxBytes(100_000);
+        Bitmap small = pooled(100);
+        Bitmap medium = pooled(250);
+        Bitmap large = pooled(10_000);
+        BitmapPool.put(small);
+        BitmapPool.put(medium);
+        BitmapPool.put(large);
+
+        // 10x10 at 2 bytes a pixel needs 200 bytes
+        Assert.assertSame(medium, BitmapPool.get(10, 10, Bitmap.Config.RGB_565));
+        verify(medium).reconfigure(10, 10, Bitmap.Config.RGB_565);
+        Assert.assertEquals(2, BitmapPool.size());
+        Assert.assertEquals(10_100, BitmapPool.bytes());
+
+        // The large one is too wasteful, and the small one is too small
+        Assert.assertNull(BitmapPool.get(10, 10, Bitmap.Config.RGB_565));
+        Assert.assertNull(BitmapPool.get(0, 10, Bitmap.Config.RGB_565));
+        Assert.assertSame(large, BitmapPool.get(50, 50, Bitmap.Config.ARGB_8888));
+        Assert.assertSame(small, BitmapPool.get(5, 5, Bitmap.Config.ARGB_8888));
+        Assert.assertTrue(BitmapPool.isEmpty());
+    }
+
+    @Test
+    public void testGet_reconfigureFailureRecycles() {
+        BitmapPool.setMaxBytes(1000);
+        Bitmap b = pooled(200);
+        doThrow(IllegalArgumentException.class).when(b).reconfigure(anyInt(), anyInt(), any(Bitmap.Config.class));
+        BitmapPool.put(b);
+        Assert.assertNull(BitmapPool.get(10, 10, Bitmap.Config.RGB_565));
+        verify(b).recycle();
+        Assert.assertEquals(0, BitmapPool.bytes());
+    }
+
+    @Test
+    public void testPut_evictsLargestFirst() {
+        BitmapPool.setMaxBytes(1000);
+        Bitmap[] bitmaps = {pooled(300), pooled(600), pooled(400)};
+        for (Bitmap b : bitmaps) BitmapPool.put(b);
+        verify(bitmaps[1]).recycle();
+        verify(bitmaps[0], never()).recycle();
+        verify(bitmaps[2], never()).recycle();
+        Assert.assertEquals(700, BitmapPool.bytes());
+
+        // Too big to ever fit
+        Bitmap huge = pooled(1001);
+        BitmapPool.put(huge);
+        verify(huge).recycle();
+
+        // Shrinking the pool evicts too
+        BitmapPool.setMaxBytes(300);
+        verify(bitmaps[2]).recycle();
+        Assert.assertEquals(300, BitmapPool.bytes());
+    }
+
+    @Test
+    public void testClear() {
+        BitmapPool.setMaxBytes(1000);
+        Bitmap a = pooled(100);
+        Bitmap b = pooled(200);
+        BitmapPool.put(a);
+        BitmapPool.put(b);
+        Assert.assertEquals(300, BitmapPool.clear());
+        verify(a).recycle();
+        verify(b).recycle();
+        Assert.assertTrue(BitmapPool.isEmpty());
+        Assert.assertEquals(0, BitmapPool.clear());
+    }
+
+    @Test
+    public void testObtain() {
+        Bitmap created = mock(Bitmap.class);
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(10, 10, Bitmap.Config.RGB_565)).thenReturn(created);
+            Assert.assertSame(created, BitmapPool.obtain(10, 10, Bitmap.Config.RGB_565));
+
+            BitmapPool.setMaxBytes(1000);
+            Bitmap b = pooled(200);
+            BitmapPool.put(b);
+            Assert.assertSame(b, BitmapPool.obtain(10, 10, Bitmap.Config.RGB_565));
+            verify(b).eraseColor(Color.TRANSPARENT);
+        }
+        verify(created, never()).eraseColor(anyInt());
+    }
+
+    @Test
+    public void testMutableCopy() {
+        Bitmap source = mock(Bitmap.class);
+        when(source.getWidth()).thenReturn(10);
+        when(source.getHeight()).thenReturn(10);
+        when(source.getConfig()).thenReturn(Bitmap.Config.RGB_565);
+        Bitmap copy = mock(Bitmap.class);
+        when(source.copy(Bitmap.Config.RGB_565, true)).thenReturn(copy);
+        Assert.assertSame(copy, BitmapPool.mutableCopy(source));
+
+        BitmapPool.setMaxBytes(1000);
+        Bitmap b = pooled(200);
+        BitmapPool.put(b);
+        try (MockedConstruction<Canvas> canvases = mockConstruction(Canvas.class)) {
+            Assert.assertSame(b, BitmapPool.mutableCopy(source));
+            verify(b).reconfigure(10, 10, Bitmap.Config.RGB_565);
+            verify(canvases.constructed().get(0)).drawBitmap(source, 0f, 0f, null);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManager;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.OperationCanceledException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ContentCacheTest extends BaseTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @After
+    public void tearDown() throws Exception {
+        ContentCache.setBudget(0);
+        ContentCache.setContentFactory(Content::new);
+        super.tearDown();
+    }
+
+    private String[] useFixture(ContentFixture fixture) throws IOException {
+        fixture.setup(this);
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> {
+            loads.incrementAndGet();
+            return fixture.build(this);
+        });
+        return new String[]{fixture.params.alienRace()};
+    }
+
+    @Test
+    public void testAcquire_shared() throws IOException {
+        String[] races = useFixture(new ContentFixture());
+        Content first = ContentCache.acquire(races, mockContext, () -> false, 1);
+        Content second = ContentCache.acquire(races, mockContext, () -> false, 1);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, loads.get());
+
+        Bitmap bitmap = first.frame.get(0).content;
+        first.close();
+        verify(bitmap, never()).recycle();
+        Assert.assertSame(second, ContentCache.acquire(races, mockContext, () -> false, 1));
+        second.close();
+        second.close();
+        verify(bitmap, atLeastOnce()).recycle();
+        Assert.assertEquals(0, ContentCache.size());
+
+        // Once the last holder is gone, the next acquire loads it again
+        try (Content third = ContentCache.acquire(races, mockContext, () -> false, 1)) {
+            Assert.assertNotSame(first, third);
+            Assert.assertEquals(2, loads.get());
+        }
+        Assert.assertEquals(0, ContentCache.size());
+    }
+
+    @Test
+    public void testAcquire_differentRaces() throws IOException {
+        ContentFixture fixture = new ContentFixture();
+        fixture.setup(this);
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> fixture.build(this));
+        try (Content first = ContentCache.acquire(new String[]{createString()}, mockContext, () -> false, 1);
+             Content second = ContentCache.acquire(new String[]{createString()}, mockContext, () -> false, 1)) {
+            Assert.assertNotSame(first, second);
+            Assert.assertEquals(2, ContentCache.size());
+        }
+        Assert.assertEquals(0, ContentCache.size());
+    }
+
+    @Test
+    public void testAcquire_failureIsNotCached() throws IOException {
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> {
+            loads.incrementAndGet();
+            throw new IOException("load failed");
+        });
+        String[] races = {createString()};
+        Assert.assertThrows(IOException.class, () -> ContentCache.acquire(races, mockContext, () -> false, 1));
+        Assert.assertThrows(IOException.class, () -> ContentCache.acquire(races, mockContext, () -> false, 1));
+        Assert.assertEquals(2, loads.get());
+        Assert.assertEquals(0, ContentCache.size());
+    }
+
+    @Test
+    public void testAcquire_concurrentLoadsOnce() throws Exception {
+        ContentFixture fixture = new ContentFixture();
+        Content content = fixture.buildContent(this);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> {
+            loads.incrementAndGet();
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return content;
+        });
+
+        String[] races = {createString()};
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Content> first = executor.submit(() -> ContentCache.acquire(races, mockContext, () -> false, 1));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<Content> second = executor.submit(() -> ContentCache.acquire(races, mockContext, () -> false, 1));
+            finish.countDown();
+
+            Assert.assertSame(content, first.get(5, TimeUnit.SECONDS));
+            Assert.assertSame(content, second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        content.close();
+        content.close();
+        Assert.assertEquals(0, ContentCache.size());
+    }
+
+    @Test
+    public void testAcquire_cancelledWhileWaiting() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            throw new IOException("load failed");
+        });
+
+        String[] races = {createString()};
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Content> loader = executor.submit(() -> ContentCache.acquire(races, mockContext, () -> false, 1));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertThrows(OperationCanceledException.class, () -> ContentCache.acquire(races, mockContext, () -> true, 1));
+            finish.countDown();
+            Assert.assertThrows(Exception.class, () -> loader.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Each race gets its own bitmap mock, so that their sizes (and recycling) can be told apart
+    private Content buildRace(String race, int frameBytes) throws IOException {
+        ContentFixture fixture = new ContentFixture().setAlienRace(race);
+        fixture.setup(this);
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.getAllocationByteCount()).thenReturn(frameBytes);
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class))).thenReturn(bitmap);
+        return fixture.build(this);
+    }
+
+    @Test
+    public void testDefaultBudget() {
+        Assert.assertEquals(0, ContentCache.defaultBudget(mockContext));
+
+        ActivityManager am = mock(ActivityManager.class);
+        int memoryClass = rand.nextInt(16, 512);
+        when(am.getMemoryClass()).thenReturn(memoryClass);
+        when(mockContext.getSystemService(ActivityManager.class)).thenReturn(am);
+        Assert.assertEquals(memoryClass * 1024L * 1024L / ContentCache.DEFAULT_BUDGET_DIVISOR, ContentCache.defaultBudget(mockContext));
+    }
+
+    @Test
+    public void testIdle_keptWithinBudget() throws IOException {
+        ContentCache.setBudget(Long.MAX_VALUE);
+        String race = createString();
+        Content content = buildRace(race, rand.nextInt(1, 1000));
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> {
+            loads.incrementAndGet();
+            return content;
+        });
+
+        String[] races = {race};
+        ContentCache.acquire(races, mockContext, () -> false, 1).close();
+        Assert.assertEquals(1, ContentCache.idleCount());
+        Assert.assertEquals(content.byteCount(), ContentCache.idleBytes());
+        verify(content.frame.get(0).content, never()).recycle();
+
+        // Switching back to it doesn't load it again
+        try (Content again = ContentCache.acquire(races, mockContext, () -> false, 1)) {
+            Assert.assertSame(content, again);
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals(0, ContentCache.idleCount());
+            Assert.assertEquals(0, ContentCache.idleBytes());
+        }
+
+        // Dropping the budget releases it
+        ContentCache.setBudget(0);
+        Assert.assertEquals(0, ContentCache.size());
+        Assert.assertEquals(0, ContentCache.idleBytes());
+        verify(content.frame.get(0).content, atLeastOnce()).recycle();
+    }
+
+    @Test
+    public void testIdle_evictsLeastRecentlyUsed() throws IOException {
+        final int frameBytes = 1000;
+        String[] names = {createString(), createString(), createString()};
+        Map<String, Content> contents = new HashMap<>();
+        for (String name : names) contents.put(name, buildRace(name, frameBytes));
+        long raceBytes = contents.get(names[0]).byteCount();
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> contents.get(races[0]));
+
+        // Room for two idle races
+        ContentCache.setBudget(raceBytes * 2);
+        for (String name : names) ContentCache.acquire(new String[]{name}, mockContext, () -> false, 1).close();
+
+        Assert.assertEquals(2, ContentCache.idleCount());
+        Assert.assertEquals(raceBytes * 2, ContentCache.idleBytes());
+        verify(contents.get(names[0]).frame.get(0).content, atLeastOnce()).recycle();
+        verify(contents.get(names[1]).frame.get(0).content, never()).recycle();
+        verify(contents.get(names[2]).frame.get(0).content, never()).recycle();
+
+        // Using the older one makes the other the least recently used
+        ContentCache.acquire(new String[]{names[1]}, mockContext, () -> false, 1).close();
+        ContentCache.setBudget(raceBytes);
+        Assert.assertEquals(1, ContentCache.idleCount());
+        verify(contents.get(names[1]).frame.get(0).content, never()).recycle();
+        verify(contents.get(names[2]).frame.get(0).content, atLeastOnce()).recycle();
+    }
+
+    @Test
+    public void testReleaseIdle() throws IOException {
+        ContentCache.setBudget(Long.MAX_VALUE);
+        String race = createString();
+        Content content = buildRace(race, rand.nextInt(1, 1000));
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> content);
+        ContentCache.acquire(new String[]{race}, mockContext, () -> false, 1).close();
+
+        Assert.assertEquals(content.byteCount(), ContentCache.releaseIdle());
+        Assert.assertEquals(0, ContentCache.size());
+        verify(content.frame.get(0).content, atLeastOnce()).recycle();
+        Assert.assertEquals(0, ContentCache.releaseIdle());
+    }
+
+    @Test
+    public void testDropUnusedStamps() throws IOException {
+        Content.setLazyDecoding(true);
+        String[] races = useFixture(new ContentFixture().setFrameCount(3));
+        try (Content content = ContentCache.acquire(races, mockContext, () -> false, 1)) {
+            int bytes = rand.nextInt(1, 1000);
+            when(content.frame.get(0).content.getAllocationByteCount()).thenReturn(bytes);
+            Assert.assertNotNull(content.stamp(1, 100));
+            Assert.assertNotNull(content.stamp(2, 300));
+
+            Assert.assertEquals(0, ContentCache.dropUnusedStamps(100));
+            Assert.assertEquals(bytes, ContentCache.dropUnusedStamps(200));
+            Assert.assertNull(content.frame.get(1).content);
+            Assert.assertNotNull(content.frame.get(2).content);
+        }
+    }
+
+    @Test
+    public void testIdle_sizeChangesWhileIdle() throws IOException {
+        Content.setLazyDecoding(true);
+        ContentCache.setBudget(Long.MAX_VALUE);
+        String[] races = useFixture(new ContentFixture().setFrameCount(2));
+        ContentCache.acquire(races, mockContext, () -> false, 1).close();
+        Content content = ContentCache.acquire(races, mockContext, () -> false, 1);
+        when(content.frame.get(0).content.getAllocationByteCount()).thenReturn(rand.nextInt(1, 1000));
+        content.close();
+        final long idleBytes = ContentCache.idleBytes();
+        Assert.assertEquals(content.byteCount(), idleBytes);
+
+        // Idle races don't draw, but a prefetch may still land
+        Assert.assertNotNull(content.stamp(1, 100));
+        Assert.assertNotEquals(idleBytes, content.byteCount());
+
+        // Whatever it was counted as is what's taken back
+        ContentCache.acquire(races, mockContext, () -> false, 1).close();
+        Assert.assertEquals(content.byteCount(), ContentCache.idleBytes());
+        Assert.assertEquals(content.byteCount(), ContentCache.releaseIdle());
+        Assert.assertEquals(0, ContentCache.idleBytes());
+    }
+
+    @Test
+    public void testAcquire_sampleSizeIsPartOfTheKey() throws IOException {
+        String[] races = useFixture(new ContentFixture());
+        try (Content full = ContentCache.acquire(races, mockContext, () -> false, 1)) {
+            Content.setSampleSize(2);
+            try (Content downsampled = ContentCache.acquire(races, mockContext, () -> false, 1)) {
+                Assert.assertNotSame(full, downsampled);
+                Assert.assertEquals(2, loads.get());
+            }
+        } finally {
+            Content.setSampleSize(1);
+        }
+    }
+
+    @Test
+    public void testAcquire_requestedSampleSize() throws IOException {
+        ContentFixture fixture = new ContentFixture();
+        fixture.setup(this);
+        List<Integer> requested = new ArrayList<>();
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> {
+            requested.add(sampleSize);
+            return fixture.build(this);
+        });
+        String[] races = {fixture.params.alienRace()};
+        try (Content full = ContentCache.acquire(races, mockContext, () -> false, 1);
+             Content small = ContentCache.acquire(races, mockContext, () -> false, 2);
+             Content again = ContentCache.acquire(races, mockContext, () -> false, 2)) {
+            Assert.assertNotSame(full, small);
+            Assert.assertSame(small, again);
+            Assert.assertEquals(List.of(1, 2), requested);
+
+            // Never finer than the global sample size
+            Content.setSampleSize(2);
+            try (Content floored = ContentCache.acquire(races, mockContext, () -> false, 1)) {
+                Assert.assertSame(small, floored);
+            }
+        } finally {
+            Content.setSampleSize(1);
+        }
+    }
+
+    @Test
+    public void testIdle_inUseIsNeverEvicted() throws IOException {
+        ContentCache.setBudget(1);
+        String race = createString();
+        Content content = buildRace(race, 1000);
+        ContentCache.setContentFactory((races, c, cancelled, sampleSize) -> content);
+
+        try (Content held = ContentCache.acquire(new String[]{race}, mockContext, () -> false, 1)) {
+            ContentCache.setBudget(0);
+            Assert.assertEquals(1, ContentCache.size());
+            verify(held.frame.get(0).content, never()).recycle();
+        }
+        Assert.assertEquals(0, ContentCache.size());
+        verify(content.frame.get(0).content, atLeastOnce()).recycle();
+    }
+}
@@ -0,0 +1,257 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ContentIndexTest extends BaseTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ContentIndex createIndex(Map<String, byte[]> files) throws IOException {
+        try (ZipFile z = ZipFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(createZipArchiveBytes(files))).get()) {
+            return ContentIndex.fromZipFile(z);
+        }
+    }
+
+    @Test
+    public void testFromZipFile_onlyCommEntries() throws IOException {
+        String race = createString();
+        String comm = "%s%s/%s.png".formatted(ContentIndex.COMM_PREFIX, race, createString());
+        String other = "base/cutscene/%s.png".formatted(createString());
+        Map<String, byte[]> files = new HashMap<>();
+        files.put(comm, createPngContent());
+        files.put(other, createPngContent());
+
+        ContentIndex index = createIndex(files);
+        Assert.assertEquals(1, index.size());
+        Assert.assertNull(index.get(other));
+
+        ContentIndex.Entry entry = index.get(comm);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(createPngContent().length, entry.size());
+        Assert.assertEquals(ZipEntry.DEFLATED, entry.method());
+        Assert.assertTrue(entry.dataOffset() > 0);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < rand.nextInt(1, 10); i++)
+            files.put("%s%s/%s.png".formatted(ContentIndex.COMM_PREFIX, createString(), createString()), createPngContent());
+        ContentIndex index = createIndex(files);
+
+        File file = new File(tmp.getRoot(), createString() + ".idx");
+        long version = rand.nextLong();
+        long packLength = rand.nextInt(1, Integer.MAX_VALUE);
+        index.save(file, version, packLength);
+
+        ContentIndex loaded = ContentIndex.load(file, version, packLength);
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals(index.size(), loaded.size());
+        for (String name : files.keySet())
+            Assert.assertEquals(index.get(name), loaded.get(name));
+        // and no temporary files left lying around
+        Assert.assertArrayEquals(new String[]{file.getName()}, tmp.getRoot().list());
+    }
+
+    @Test
+    public void testSave_concurrent() throws Exception {
+        Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < rand.nextInt(1, 10); i++)
+            files.put("%s%s/%s.png".formatted(ContentIndex.COMM_PREFIX, createString(), createString()), createPngContent());
+        ContentIndex index = createIndex(files);
+        File file = new File(tmp.getRoot(), createString() + ".idx");
+
+        // Engines loading at the same time all save the same index; none of them should trip over
+        // another's half-written file
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> saves = new ArrayList<>();
+            for (int i = 0; i < 32; i++) saves.add(executor.submit(() -> { index.save(file, 1, 100); return null; }));
+            for (Future<?> save : saves) save.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        ContentIndex loaded = ContentIndex.load(file, 1, 100);
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals(index.size(), loaded.size());
+        Assert.assertArrayEquals(new String[]{file.getName()}, tmp.getRoot().list());
+    }
+
+    @Test
+    public void testLoad_stale() throws IOException {
+        ContentIndex index = createIndex(Map.of(ContentIndex.COMM_PREFIX + createString(), createPngContent()));
+        File file = new File(tmp.getRoot(), createString() + ".idx");
+        index.save(file, 1, 100);
+
+        Assert.assertNull(ContentIndex.load(file, 2, 100));
+        Assert.assertNull(ContentIndex.load(file, 1, 101));
+    }
+
+    @Test
+    public void testLoad_missingOrCorrupt() throws IOException {
+        Assert.assertNull(ContentIndex.load(null, 1, 1));
+        Assert.assertNull(ContentIndex.load(new File(tmp.getRoot(), createString()), 1, 1));
+
+        File garbage = tmp.newFile();
+        Files.write(garbage.toPath(), createString().getBytes());
+        Assert.assertNull(ContentIndex.load(garbage, 1, 1));
+    }
+
+    @Test
+    public void testSave_renameFailure() throws IOException {
+        ContentIndex index = createIndex(Map.of(ContentIndex.COMM_PREFIX + createString(), createPngContent()));
+        // Can't rename a file over a non-empty directory
+        File dir = tmp.newFolder();
+        Assert.assertTrue(new File(dir, createString()).createNewFile());
+        Assert.assertThrows(IOException.class, () -> index.save(dir, 1, 1));
+    }
+
+    @Test
+    public void testToString() throws IOException {
+        ContentIndex index = createIndex(Map.of(ContentIndex.COMM_PREFIX + createString(), createPngContent()));
+        Assert.assertEquals("ContentIndex{entries=1}", index.toString());
+    }
+
+    @Test
+    public void testScan_matchesZipFile() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < rand.nextInt(1, 10); i++) {
+            files.put("%s%s/%s.png".formatted(ContentIndex.COMM_PREFIX, createString(), createString()), createPngContent());
+            files.put("base/%s/%s.png".formatted(createString(), createString()), createPngContent());
+        }
+        files.put(ContentIndex.COMM_PREFIX + createString() + "/", new byte[0]);
+        byte[] data = createZipArchiveBytes(files);
+
+        ContentIndex expected = createIndex(files);
+        ContentIndex scanned = ContentIndex.scan(ByteBuffer.wrap(data));
+        Assert.assertEquals(expected.size(), scanned.size());
+        for (String name : files.keySet())
+            Assert.assertEquals(expected.get(name), scanned.get(name));
+    }
+
+    @Test
+    public void testScan_storedWithComment() throws IOException {
+        String name = ContentIndex.COMM_PREFIX + createString();
+        byte[] payload = createString(rand.nextInt(10, 100)).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+            zos.setComment(createString());
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(payload.length);
+            entry.setCompressedSize(payload.length);
+            entry.setCrc(crc.getValue());
+            entry.setExtra(new byte[]{(byte) 0xFE, (byte) 0xCA, 2, 0, 1, 2});
+            zos.putNextEntry(entry);
+            zos.write(payload);
+            zos.closeEntry();
+        }
+        byte[] data = bos.toByteArray();
+
+        ContentIndex.Entry entry = ContentIndex.scan(ByteBuffer.wrap(data)).get(name);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(ZipEntry.STORED, entry.method());
+        Assert.assertEquals(crc.getValue(), entry.crc());
+        int start = (int) entry.dataOffset();
+        Assert.assertArrayEquals(payload, Arrays.copyOfRange(data, start, start + (int) entry.compressedSize()));
+    }
+
+    @Test
+    public void testScan_errors() throws IOException {
+        // No end of central directory
+        Assert.assertThrows(IOException.class, () -> ContentIndex.scan(ByteBuffer.wrap(createString().getBytes())));
+
+        // Central directory header damaged
+        byte[] data = createZipArchiveBytes(Map.of(ContentIndex.COMM_PREFIX + createString(), createPngContent()));
+        ByteBuffer eocd = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int cdOffset = eocd.getInt(data.length - 22 + 16);
+        byte[] badCentral = data.clone();
+        badCentral[cdOffset] = 0;
+        Assert.assertThrows(IOException.class, () -> ContentIndex.scan(ByteBuffer.wrap(badCentral)));
+
+        // Local header damaged
+        byte[] badLocal = data.clone();
+        badLocal[0] = 0;
+        Assert.assertThrows(IOException.class, () -> ContentIndex.scan(ByteBuffer.wrap(badLocal)));
+
+        // Unsupported compression method
+        byte[] badMethod = data.clone();
+        badMethod[cdOffset + 10] = 99;
+        Assert.assertThrows(IOException.class, () -> ContentIndex.scan(ByteBuffer.wrap(badMethod)));
+
+        // A name longer than what's left of the central directory
+        byte[] badName = data.clone();
+        badName[cdOffset + 28] = (byte) 0xFF;
+        badName[cdOffset + 29] = (byte) 0xFF;
+        Assert.assertThrows(IOException.class, () -> ContentIndex.scan(ByteBuffer.wrap(badName)));
+
+        // Entry data running off the end of the pack
+        byte[] badSize = data.clone();
+        badSize[cdOffset + 23] = 0x7F;
+        Assert.assertThrows(IOException.class, () -> ContentIndex.scan(ByteBuffer.wrap(badSize)));
+    }
+
+    @Test
+    public void testScan_short() {
+        // Not even room for an end of central directory record
+        for (int length = 0; length < 22; length++) {
+            byte[] data = new byte[length];
+            rand.nextBytes(data);
+            Assert.assertThrows(IOException.class, () -> ContentIndex.scan(ByteBuffer.wrap(data)));
+        }
+    }
+
+    @Test
+    public void testScan_truncated() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < rand.nextInt(1, 5); i++)
+            files.put("%s%s/%s.png".formatted(ContentIndex.COMM_PREFIX, createString(), createString()), createPngContent());
+        byte[] data = createZipArchiveBytes(files);
+
+        // The central directory cut off anywhere, with an end of central directory record that says
+        // it's that short, so that the scan gets as far as the entries.  Whatever is wrong has to be
+        // an IOException, so that Content falls back to ZipFile.
+        final int eocdLength = 22;
+        final ByteBuffer eocd = ByteBuffer.wrap(data, data.length - eocdLength, eocdLength).slice().order(ByteOrder.LITTLE_ENDIAN);
+        final int cdOffset = eocd.getInt(16);
+        final int cdSize = eocd.getInt(12);
+        for (int length = 0; length < cdSize; length++) {
+            ByteBuffer truncated = ByteBuffer.allocate(cdOffset + length + eocdLength).order(ByteOrder.LITTLE_ENDIAN);
+            truncated.put(data, 0, cdOffset + length).put(eocd.duplicate());
+            truncated.putInt(cdOffset + length + 12, length);
+            Assert.assertThrows(IOException.class, () -> ContentIndex.scan(truncated));
+        }
+    }
+}
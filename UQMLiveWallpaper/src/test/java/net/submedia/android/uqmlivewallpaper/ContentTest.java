@@ -6,37 +6,62 @@ import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.OperationCanceledException;
+import android.util.Log;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedConstruction;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ContentTest extends BaseTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     private ContentFixture T;
 
     @After
@@ -157,6 +182,68 @@ public class ContentTest extends BaseTest {
         Assert.assertNull(content.zipfile);
     }
 
+    @Test
+    public void testClose_refcounted() throws IOException {
+        T = new ContentFixture();
+        Content content = T.buildContent(this);
+        Bitmap bitmap = content.frame.get(0).content;
+
+        Assert.assertTrue(content.retain());
+        content.close();
+        Assert.assertNotNull(content.zipfile);
+        verify(bitmap, Mockito.never()).recycle();
+
+        content.close();
+        Assert.assertNull(content.zipfile);
+        verify(bitmap, atLeastOnce()).recycle();
+
+        // Once released, it stays released
+        Assert.assertFalse(content.retain());
+    }
+
+    @Test
+    public void testClose_idle() throws IOException {
+        T = new ContentFixture();
+        Content content = T.buildContent(this);
+        Runnable onIdle = mock(Runnable.class);
+        content.setOnIdle(onIdle);
+        Bitmap bitmap = content.frame.get(0).content;
+
+        // The last close hands it to onIdle, instead of releasing it
+        Assert.assertTrue(content.retain());
+        content.close();
+        verify(onIdle, Mockito.never()).run();
+        Assert.assertFalse(content.isIdle());
+        content.close();
+        verify(onIdle).run();
+        Assert.assertTrue(content.isIdle());
+        Assert.assertNotNull(content.zipfile);
+        verify(bitmap, Mockito.never()).recycle();
+
+        // Idle content can be picked up again
+        Assert.assertTrue(content.retain());
+        Assert.assertFalse(content.isIdle());
+        Assert.assertFalse(content.markReleasedIfIdle());
+        content.close();
+
+        Assert.assertTrue(content.markReleasedIfIdle());
+        Assert.assertFalse(content.retain());
+        content.release();
+        Assert.assertNull(content.zipfile);
+        verify(bitmap, atLeastOnce()).recycle();
+    }
+
+    @Test
+    public void testByteCount() throws IOException {
+        int frames = rand.nextInt(1, 10);
+        T = new ContentFixture().setFrameCount(frames);
+        try (Content content = T.buildContent(this)) {
+            int bytes = rand.nextInt(1, 100_000);
+            when(content.frame.get(0).content.getAllocationByteCount()).thenReturn(bytes);
+            Assert.assertEquals((long) frames * bytes, content.byteCount());
+        }
+    }
+
     @Test
     public void testClose_closesAfd() throws IOException {
         T = new ContentFixture();
@@ -225,7 +312,7 @@ public class ContentTest extends BaseTest {
     }
 
     @Test
-    public void testAniToFileList() throws IOException {
+    public void testReadAni() throws IOException {
         T = new ContentFixture();
         String alienRace = createString();
         String aniFilename = alienRace + ".ani";
@@ -252,10 +339,11 @@ public class ContentTest extends BaseTest {
         T.setup(this);
 
         try (Content content = T.build(this)) {
-            List<String> result = content.aniToFileList(aniFile);
-            Assert.assertNotNull(result);
-            Assert.assertTrue(result.contains(pngFile1 + fakeAni));
-            Assert.assertTrue(result.contains(pngFile2 + fakeAni));
+            List<AniFile.Entry> result = content.readAni(aniFile);
+            Assert.assertEquals(List.of(
+                    new AniFile.Entry(pngFile1, hotspot.x(), hotspot.y()),
+                    new AniFile.Entry(pngFile2, hotspot.x(), hotspot.y())), result);
+            Assert.assertThrows(IOException.class, () -> content.readAni(aniFile + ".missing"));
         }
     }
 
@@ -297,6 +385,861 @@ public class ContentTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testReadEntry_mappedStoredIsZeroCopy() throws IOException {
+        String name = createString();
+        byte[] payload = createString(rand.nextInt(10, 100)).getBytes();
+        byte[] data = createStoredZipArchiveBytes(Map.of(name, payload));
+        Content.MappedSeekableByteChannel mapped = new Content.MappedSeekableByteChannel(ByteBuffer.wrap(data));
+
+        T = new ContentFixture();
+        try (Content content = T.buildContent(this)) {
+            content.mapped = mapped;
+            content.zipfile = ZipFile.builder().setSeekableByteChannel(mapped).get();
+            ByteBuffer result = content.readEntry(content.zipfile.getEntry(name));
+            Assert.assertTrue(result.isReadOnly());
+            Assert.assertEquals(payload.length, result.remaining());
+            Assert.assertArrayEquals(payload, content.readFromContentPack(name));
+        }
+    }
+
+    @Test
+    public void testReadEntry_mappedDeflatedIsInflated() throws IOException {
+        String name = createString();
+        byte[] payload = createString(rand.nextInt(10, 100)).getBytes();
+        Content.MappedSeekableByteChannel mapped = new Content.MappedSeekableByteChannel(ByteBuffer.wrap(createZipArchiveBytes(Map.of(name, payload))));
+
+        T = new ContentFixture();
+        try (Content content = T.buildContent(this)) {
+            content.mapped = mapped;
+            content.zipfile = ZipFile.builder().setSeekableByteChannel(mapped).get();
+            Assert.assertArrayEquals(payload, content.readFromContentPack(name));
+        }
+    }
+
+    @Test
+    public void testReadEntry_fromIndex() throws IOException {
+        String stored = ContentIndex.COMM_PREFIX + createString();
+        String deflated = ContentIndex.COMM_PREFIX + createString();
+        byte[] storedPayload = createString(rand.nextInt(10, 100)).getBytes();
+        byte[] deflatedPayload = createString(rand.nextInt(10, 100)).getBytes();
+        byte[] storedZip = createStoredZipArchiveBytes(Map.of(stored, storedPayload));
+        byte[] deflatedZip = createZipArchiveBytes(Map.of(deflated, deflatedPayload));
+
+        T = new ContentFixture();
+        try (Content content = T.buildContent(this)) {
+            content.zipfile.close();
+            content.zipfile = null;
+
+            for (byte[] zip : List.of(storedZip, deflatedZip)) {
+                content.mapped = new Content.MappedSeekableByteChannel(ByteBuffer.wrap(zip));
+                try (ZipFile z = ZipFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(zip)).get()) {
+                    content.index = ContentIndex.fromZipFile(z);
+                }
+                String name = (zip == storedZip) ? stored : deflated;
+                byte[] payload = (zip == storedZip) ? storedPayload : deflatedPayload;
+                Assert.assertTrue(content.hasEntry(name));
+                Assert.assertArrayEquals(payload, content.readFromContentPack(name));
+                Assert.assertFalse(content.hasEntry(createString()));
+                Assert.assertNull(content.readEntry(createString()));
+            }
+        }
+    }
+
+    @Test
+    public void testReadEntry_fromIndex_unsupportedMethod() throws IOException {
+        T = new ContentFixture();
+        try (Content content = T.buildContent(this)) {
+            content.mapped = new Content.MappedSeekableByteChannel(ByteBuffer.allocate(10));
+            Assert.assertThrows(IOException.class, () -> content.readEntry(new ContentIndex.Entry(0, 1, 1, 99, 0)));
+        }
+    }
+
+    @Test
+    public void testReadAhead_staged() throws IOException {
+        Map<String, byte[]> payloads = new HashMap<>();
+        for (int i = 0; i < 3; i++)
+            payloads.put(ContentIndex.COMM_PREFIX + createString(), createString(rand.nextInt(10, 100)).getBytes());
+        byte[] zip = createStoredZipArchiveBytes(payloads);
+        SeekableInMemoryByteChannel pack = Mockito.spy(new SeekableInMemoryByteChannel(zip));
+
+        T = new ContentFixture();
+        try (Content content = T.buildContent(this)) {
+            content.zipfile.close();
+            content.zipfile = ZipFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(zip)).get();
+            content.channel = new Content.BoundedSeekableByteChannel(pack, 0, zip.length);
+
+            // The entries are close together, so they're read in one go, whatever order they're asked for in
+            List<AniFile.Entry> defs = new ArrayList<>();
+            for (String name : payloads.keySet()) defs.add(0, new AniFile.Entry(name, 0, 0));
+            content.readAhead(defs);
+            verify(pack, times(1)).read(any(ByteBuffer.class));
+
+            for (Map.Entry<String, byte[]> e : payloads.entrySet()) {
+                ByteBuffer staged = content.readEntry(e.getKey());
+                Assert.assertTrue(staged.isReadOnly());
+                byte[] data = new byte[staged.remaining()];
+                staged.get(data);
+                Assert.assertArrayEquals(e.getValue(), data);
+                // Each is handed out once; after that, it's read as usual
+                Assert.assertArrayEquals(e.getValue(), content.readFromContentPack(e.getKey()));
+            }
+            verify(pack, times(1)).read(any(ByteBuffer.class));
+        }
+    }
+
+    @Test
+    public void testReadAhead_unmappedSkipsDeflated() throws IOException {
+        Map<String, byte[]> payloads = new HashMap<>();
+        for (int i = 0; i < 3; i++)
+            payloads.put(ContentIndex.COMM_PREFIX + createString(), createString(rand.nextInt(10, 100)).getBytes());
+        byte[] zip = createZipArchiveBytes(payloads);
+        SeekableInMemoryByteChannel pack = Mockito.spy(new SeekableInMemoryByteChannel(zip));
+
+        T = new ContentFixture();
+        try (Content content = T.buildContent(this)) {
+            content.zipfile.close();
+            content.zipfile = ZipFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(zip)).get();
+            content.channel = new Content.BoundedSeekableByteChannel(pack, 0, zip.length);
+
+            // They're inflated through the zipfile when they're decoded, so reading them ahead would
+            // only read them twice
+            content.readAhead(payloads.keySet().stream().map(name -> new AniFile.Entry(name, 0, 0)).toList());
+            verify(pack, never()).read(any(ByteBuffer.class));
+            for (Map.Entry<String, byte[]> e : payloads.entrySet())
+                Assert.assertArrayEquals(e.getValue(), content.readFromContentPack(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testReadAhead_lazy() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(4);
+        T.setup(this);
+        final byte[] zip = storedCopy(T.getZipData());
+        SeekableInMemoryByteChannel pack = Mockito.spy(new SeekableInMemoryByteChannel(zip));
+        SeekableInMemoryByteChannel zipChannel = Mockito.spy(new SeekableInMemoryByteChannel(zip));
+
+        try (Content content = new Content(new String[]{T.params.alienRace()}, mockContext, () -> false) {
+            @Override
+            protected ZipFile setupContent(String zipfile, Context c) throws IOException {
+                this.channel = new BoundedSeekableByteChannel(pack, 0, zip.length);
+                return ZipFile.builder().setSeekableByteChannel(zipChannel).get();
+            }
+        }) {
+            // Only the background is decoded, but the whole race is read ahead, in one go
+            verify(pack, times(1)).read(any(ByteBuffer.class));
+            for (int i = 1; i < 4; i++) Assert.assertNull(content.frame.get(i).content);
+
+            // ...so the stamps decoded later don't go back to the pack for their entries
+            Mockito.clearInvocations(zipChannel);
+            content.prefetch(1, 3);
+            for (Content.Frame f : content.frame) Assert.assertNotNull(f.content);
+            verify(zipChannel, never()).read(any(ByteBuffer.class));
+            verify(pack, times(1)).read(any(ByteBuffer.class));
+        }
+    }
+
+    // The fixture's pack, with every entry STORED
+    private byte[] storedCopy(byte[] zip) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        try (ZipFile z = ZipFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(zip)).get()) {
+            for (ZipArchiveEntry e : Collections.list(z.getEntries())) {
+                try (InputStream in = z.getInputStream(e)) {
+                    files.put(e.getName(), in.readAllBytes());
+                }
+            }
+        }
+        return createStoredZipArchiveBytes(files);
+    }
+
+    @Test
+    public void testReadAhead_nothingToReadFrom() throws IOException {
+        T = new ContentFixture().setFrameCount(2);
+        try (Content content = T.buildContent(this)) {
+            // Neither mapped nor on a channel of its own; reads go through the zipfile as before
+            content.readAhead(content.frame.stream().map(f -> new AniFile.Entry(f.filename, 0, 0)).toList());
+            Assert.assertNotNull(content.readEntry(content.frame.get(1).filename));
+        }
+    }
+
+    @Test
+    public void testCoalesce() {
+        List<Content.Span> spans = List.of(
+                new Content.Span("a", 0, 100, ZipEntry.STORED),
+                new Content.Span("b", 150, 100, ZipEntry.STORED),
+                // too far from b
+                new Content.Span("c", 1000, 100, ZipEntry.DEFLATED),
+                new Content.Span("d", 1100, 100, ZipEntry.STORED),
+                // close enough to d, but it would make the run too long
+                new Content.Span("e", 1200, 900, ZipEntry.STORED),
+                // longer than a run can be, on its own
+                new Content.Span("f", 2100, 5000, ZipEntry.STORED));
+        List<List<Content.Span>> runs = Content.coalesce(spans, 100, 1000);
+        Assert.assertEquals(List.of(
+                        List.of(spans.get(0), spans.get(1)),
+                        List.of(spans.get(2), spans.get(3)),
+                        List.of(spans.get(4)),
+                        List.of(spans.get(5))),
+                runs);
+        Assert.assertTrue(Content.coalesce(List.of(), 100, 1000).isEmpty());
+    }
+
+    @Test
+    public void testInflate_errors() {
+        Assert.assertThrows(IOException.class, () -> Content.inflate(ByteBuffer.allocate(1), -1));
+        // Not a valid deflate stream
+        Assert.assertThrows(IOException.class, () -> Content.inflate(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF}), 10));
+        // Valid, but shorter than advertised (an empty final block)
+        Assert.assertThrows(IOException.class, () -> Content.inflate(ByteBuffer.wrap(new byte[]{0x03, 0x00}), 10));
+    }
+
+    @Test
+    public void testPackVersion() throws Exception {
+        Assert.assertEquals(0, Content.packVersion(mockContext));
+
+        android.content.pm.PackageManager pm = mock(android.content.pm.PackageManager.class);
+        android.content.pm.PackageInfo info = mock(android.content.pm.PackageInfo.class);
+        info.lastUpdateTime = rand.nextLong();
+        when(mockContext.getPackageManager()).thenReturn(pm);
+        when(mockContext.getPackageName()).thenReturn("package");
+        when(pm.getPackageInfo("package", 0)).thenReturn(info);
+        Assert.assertEquals(info.lastUpdateTime, Content.packVersion(mockContext));
+
+        when(pm.getPackageInfo("package", 0)).thenThrow(android.content.pm.PackageManager.NameNotFoundException.class);
+        Assert.assertEquals(0, Content.packVersion(mockContext));
+    }
+
+    @Test
+    public void testContent_frameCache() throws Exception {
+        frameCacheRoundTrip(Bitmap.Config.RGB_565);
+    }
+
+    @Test
+    public void testContent_frameCache_transparent() throws Exception {
+        // BitmapFactory decodes anything with transparency as ARGB_8888, whatever it's asked for
+        frameCacheRoundTrip(Bitmap.Config.ARGB_8888);
+    }
+
+    // Gives mockContext a cache dir, and a package version to stamp the frame cache with
+    private void useFrameCache() throws Exception {
+        android.content.pm.PackageManager pm = mock(android.content.pm.PackageManager.class);
+        android.content.pm.PackageInfo info = mock(android.content.pm.PackageInfo.class);
+        info.lastUpdateTime = rand.nextLong(1, Long.MAX_VALUE);
+        when(mockContext.getCacheDir()).thenReturn(tmp.getRoot());
+        when(mockContext.getPackageManager()).thenReturn(pm);
+        when(mockContext.getPackageName()).thenReturn("package");
+        when(pm.getPackageInfo("package", 0)).thenReturn(info);
+    }
+
+    private void frameCacheRoundTrip(Bitmap.Config config) throws Exception {
+        useFrameCache();
+
+        // The first load decodes, and saves the frames
+        T = new ContentFixture().setFrameCount(rand.nextInt(1, 10));
+        T.setup(this);
+        Bitmap decoded = BitmapFactory.decodeStream(InputStream.nullInputStream(), null, mock(BitmapFactory.Options.class));
+        when(decoded.getConfig()).thenReturn(config);
+        List<String> filenames;
+        try (Content content = T.build(this)) {
+            filenames = content.frame.stream().map(f -> f.filename).toList();
+        }
+        Assert.assertTrue(FrameCache.forContext(mockContext).fileFor(T.params.alienRace()).isFile());
+
+        // The second doesn't even open the content pack
+        Bitmap cached = mock(Bitmap.class);
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(Mockito.anyInt(), Mockito.anyInt(), any(Bitmap.Config.class))).thenReturn(cached);
+            try (Content content = new Content(new String[]{T.params.alienRace()}, mockContext, () -> false) {
+                @Override
+                protected ZipFile setupContent(String zipfile, android.content.Context c) {
+                    throw new AssertionError("content pack opened");
+                }
+            }) {
+                Assert.assertEquals(filenames, content.frame.stream().map(f -> f.filename).toList());
+                Assert.assertTrue(content.frame.stream().allMatch(f -> f.content == cached));
+                Assert.assertEquals(new Content.Frame.Hotspot(T.params.hotspot().x(), T.params.hotspot().y()), content.frame.get(0).hotspot);
+            }
+            bitmap.verify(() -> Bitmap.createBitmap(Mockito.anyInt(), Mockito.anyInt(), Mockito.eq(config)), atLeastOnce());
+        }
+        verify(cached, atLeastOnce()).copyPixelsFromBuffer(any(ByteBuffer.class));
+    }
+
+    @Test
+    public void testContent_lazyAtlasFromCache() throws Exception {
+        useFrameCache();
+        Content.setLazyDecoding(true);
+        Content.setAtlasEnabled(true);
+        T = new ContentFixture().setFrameCount(4).setSize(new Coord(10, 10));
+        T.setup(this);
+
+        // The first load has only the background up front, so it isn't packed, even once the
+        // stamps are all in...
+        try (Content content = T.build(this)) {
+            content.prefetch(1, 3);
+            Assert.assertTrue(content.frame.stream().allMatch(f -> f.content != null && f.src == null));
+        }
+        Assert.assertTrue(FrameCache.forContext(mockContext).fileFor(T.params.alienRace()).isFile());
+
+        // ...but the next, from the cache, has them all at once, and is
+        Bitmap cached = mock(Bitmap.class);
+        when(cached.getWidth()).thenReturn(10);
+        when(cached.getHeight()).thenReturn(10);
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class);
+             MockedConstruction<Canvas> ignoredCanvases = Mockito.mockConstruction(Canvas.class);
+             MockedConstruction<Rect> ignoredRects = Mockito.mockConstruction(Rect.class);
+             MockedConstruction<RectF> ignoredRectFs = Mockito.mockConstruction(RectF.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(Mockito.anyInt(), Mockito.anyInt(), any(Bitmap.Config.class))).thenReturn(cached);
+            try (Content content = T.build(this)) {
+                Assert.assertNull(content.frame.get(0).src);
+                for (int i = 1; i < 4; i++) Assert.assertNotNull(content.frame.get(i).src);
+            }
+        }
+    }
+
+    @Test
+    public void testContent_decodedPack() throws Exception {
+        String race = createString();
+        List<DecodedPack.Entry> entries = List.of(
+                new DecodedPack.Entry("base/comm/%s/a.png".formatted(race), 10, 20, 4, 3, Bitmap.Config.RGB_565, ByteBuffer.allocate(4 * 3 * 2)),
+                new DecodedPack.Entry("base/comm/%s/b.png".formatted(race), 4, 7, 2, 1, Bitmap.Config.ARGB_8888, ByteBuffer.allocate(2 * 4)));
+        final byte[] pack = createDecodedPackBytes(Map.of(race, entries));
+        when(mockAssetManager.list("")).thenReturn(new String[]{"content.uqm", "content" + DecodedPack.SUFFIX});
+
+        List<Bitmap> restored = new ArrayList<>();
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(Mockito.anyInt(), Mockito.anyInt(), any(Bitmap.Config.class))).thenAnswer(invocation -> {
+                int width = invocation.getArgument(0), height = invocation.getArgument(1);
+                Bitmap.Config config = invocation.getArgument(2);
+                Bitmap b = mock(Bitmap.class);
+                when(b.getWidth()).thenReturn(width);
+                when(b.getHeight()).thenReturn(height);
+                when(b.getByteCount()).thenReturn(width * height * ((config == Bitmap.Config.RGB_565) ? 2 : 4));
+                restored.add(b);
+                return b;
+            });
+            try (Content content = new Content(new String[]{createString(), race}, mockContext, () -> false) {
+                @Override
+                protected ByteBuffer mapDecodedPack(String name, android.content.Context c) {
+                    Assert.assertEquals("content" + DecodedPack.SUFFIX, name);
+                    return ByteBuffer.wrap(pack);
+                }
+
+                @Override
+                protected ZipFile setupContent(String zipfile, android.content.Context c) {
+                    throw new AssertionError("content pack opened");
+                }
+            }) {
+                Assert.assertEquals(List.of(entries.get(0).filename(), entries.get(1).filename()),
+                        content.frame.stream().map(f -> f.filename).toList());
+                Assert.assertEquals(restored, content.frame.stream().map(f -> f.content).toList());
+                Assert.assertEquals(new Content.Frame.Hotspot(10, 20), content.frame.get(0).hotspot);
+                Assert.assertEquals(new Content.Frame.Hotspot(4, 7), content.frame.get(1).hotspot);
+                Assert.assertEquals(2, content.frame.get(1).width);
+            }
+        }
+        for (Bitmap b : restored) verify(b).copyPixelsFromBuffer(any(ByteBuffer.class));
+
+        // It only has frames at full size
+        Assert.assertThrows(IOException.class, () -> new Content(new String[]{race}, mockContext, () -> false, 2) {
+            @Override
+            protected ByteBuffer mapDecodedPack(String name, android.content.Context c) {
+                throw new AssertionError("decoded pack opened");
+            }
+
+            @Override
+            protected ZipFile setupContent(String zipfile, android.content.Context c) throws IOException {
+                throw new IOException("content pack opened");
+            }
+        });
+    }
+
+    @Test
+    public void testContent_decodedPackUnusable() throws IOException {
+        final int frameCount = rand.nextInt(1, 5);
+        T = new ContentFixture().setFrameCount(frameCount);
+        T.setup(this);
+        String pack = createString() + DecodedPack.SUFFIX;
+        when(mockAssetManager.list("")).thenReturn(new String[]{pack, T.uqmZipFileName});
+        when(mockAssetManager.openFd(pack)).thenThrow(new IOException("openFd failed"));
+
+        // Decodes from the content pack instead
+        try (Content content = T.build(this)) {
+            Assert.assertEquals(frameCount, content.frame.size());
+        }
+    }
+
+    @Test
+    public void testFrame_decodesIntoPooledBitmap() throws IOException {
+        T = new ContentFixture().setSize(new Coord(10, 10));
+        T.setup(this);
+        Bitmap pooled = mock(Bitmap.class);
+        when(pooled.isMutable()).thenReturn(true);
+        when(pooled.getAllocationByteCount()).thenReturn(10 * 10 * 2);
+        when(pooled.getWidth()).thenReturn(10);
+        when(pooled.getHeight()).thenReturn(10);
+        BitmapPool.setMaxBytes(1000);
+        BitmapPool.put(pooled);
+
+        List<Boolean> boundsOnly = new ArrayList<>();
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenAnswer(invocation -> {
+                    BitmapFactory.Options options = invocation.getArgument(2);
+                    boundsOnly.add(options.inJustDecodeBounds);
+                    if (!options.inJustDecodeBounds) {
+                        Assert.assertTrue(options.inMutable);
+                        return options.inBitmap;
+                    }
+                    options.outWidth = 10;
+                    options.outHeight = 10;
+                    options.outConfig = Bitmap.Config.RGB_565;
+                    return null;
+                });
+
+        try (Content content = T.build(this)) {
+            Assert.assertSame(pooled, content.frame.get(0).content);
+            Assert.assertEquals(List.of(true, false), boundsOnly);
+            Assert.assertTrue(BitmapPool.isEmpty());
+        }
+        // Closing hands it back
+        Assert.assertEquals(1, BitmapPool.size());
+        verify(pooled, Mockito.never()).recycle();
+    }
+
+    @Test
+    public void testFrame_pooledBitmapRejected() throws IOException {
+        T = new ContentFixture().setSize(new Coord(10, 10));
+        T.setup(this);
+        Bitmap pooled = mock(Bitmap.class);
+        when(pooled.isMutable()).thenReturn(true);
+        when(pooled.getAllocationByteCount()).thenReturn(10 * 10 * 2);
+        BitmapPool.setMaxBytes(1000);
+        BitmapPool.put(pooled);
+
+        Bitmap fresh = mock(Bitmap.class);
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenAnswer(invocation -> {
+                    BitmapFactory.Options options = invocation.getArgument(2);
+                    if (options.inJustDecodeBounds) {
+                        options.outWidth = 10;
+                        options.outHeight = 10;
+                        return null;
+                    }
+                    if (options.inBitmap != null) throw new IllegalArgumentException("Problem decoding into existing bitmap");
+                    return fresh;
+                });
+
+        try (Content content = T.build(this)) {
+            Assert.assertSame(fresh, content.frame.get(0).content);
+        }
+        verify(pooled).recycle();
+    }
+
+    @Test
+    public void testContent_lazy() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(4);
+        try (Content content = T.buildContent(this)) {
+            Assert.assertEquals(4, content.frame.size());
+            Assert.assertNotNull(content.frame.get(0).content);
+            for (int i = 1; i < 4; i++) {
+                Assert.assertNull(content.frame.get(i).content);
+                Assert.assertEquals(content.frame.get(0).hotspot, content.frame.get(i).hotspot);
+            }
+            mockedStaticBitmapFactory.verify(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)), times(1));
+
+            // Drawing a stamp decodes it, once
+            Content.Frame f = content.stamp(2, 100);
+            Assert.assertNotNull(f);
+            Assert.assertNotNull(f.content);
+            Assert.assertSame(f, content.stamp(2, 200));
+            Assert.assertSame(f, content.frame.get(2));
+            mockedStaticBitmapFactory.verify(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)), times(2));
+        }
+    }
+
+    @Test
+    public void testStamp_decodesInTheBackground() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(4);
+        try (Content content = T.buildContent(this)) {
+            List<Runnable> queued = new ArrayList<>();
+            Content.setDecodeExecutor(queued::add);
+
+            // Whoever's drawing doesn't wait for the decode, or do it themselves
+            Assert.assertNull(content.stamp(2, 100));
+            Assert.assertNull(content.frame.get(2).content);
+            Assert.assertEquals(1, queued.size());
+            Assert.assertNull(content.stamp(2, 200));
+            Assert.assertEquals(1, queued.size());
+
+            queued.get(0).run();
+            Content.Frame f = content.stamp(2, 300);
+            Assert.assertNotNull(f);
+            Assert.assertSame(f, content.frame.get(2));
+        }
+    }
+
+    @Test
+    public void testContent_lazyFrameCache_tracksSkipFrames() throws Exception {
+        useFrameCache();
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(6);
+        try (Content content = T.buildContent(this)) {
+            File cached = FrameCache.forContext(mockContext).fileFor(T.params.alienRace());
+            List<Runnable> queued = new ArrayList<>();
+            Content.setDecodeExecutor(queued::add);
+
+            // The only track starts at frame 4, like arilou's do; frames 1-3 are never drawn
+            content.prefetch(4, 2);
+            Assert.assertEquals(2, queued.size());
+            new ArrayList<>(queued).forEach(Runnable::run);
+            for (int i = 1; i < 4; i++) Assert.assertNull(content.frame.get(i).content);
+            Assert.assertFalse(cached.exists());
+
+            // ...but once the track's stamps are in, the rest are decoded in the background too, so
+            // the next load can have them all from the cache
+            Assert.assertEquals(3, queued.size());
+            queued.get(2).run();
+            for (Content.Frame f : content.frame) Assert.assertNotNull(f.content);
+            Assert.assertTrue(cached.isFile());
+        }
+    }
+
+    @Test
+    public void testContent_lazySingleFrame() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture();
+        try (Content content = T.buildContent(this)) {
+            Assert.assertSame(content.frame.get(0), content.stamp(0, 100));
+            Assert.assertEquals(0, content.dropStamps(Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(5);
+        try (Content content = T.buildContent(this)) {
+            List<Runnable> queued = new ArrayList<>();
+            Content.setDecodeExecutor(queued::add);
+            content.prefetch(0, 3);
+            // The background is never prefetched, it's already there
+            Assert.assertEquals(2, queued.size());
+            // Nor is anything that's already on its way
+            content.prefetch(1, 2);
+            Assert.assertEquals(2, queued.size());
+
+            queued.forEach(Runnable::run);
+            Assert.assertNotNull(content.frame.get(1).content);
+            Assert.assertNotNull(content.frame.get(2).content);
+            Assert.assertNull(content.frame.get(3).content);
+            Assert.assertSame(content.frame.get(1), content.stamp(1, 100));
+
+            queued.clear();
+            content.prefetch(1, 10);
+            Assert.assertEquals(2, queued.size());
+        }
+    }
+
+    @Test
+    public void testPrefetch_afterRelease() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(3);
+        Content content = T.buildContent(this);
+        List<Runnable> queued = new ArrayList<>();
+        Content.setDecodeExecutor(queued::add);
+        content.prefetch(1, 1);
+        content.close();
+        queued.forEach(Runnable::run);
+        Assert.assertNull(content.frame.get(1).content);
+
+        queued.clear();
+        content.prefetch(1, 2);
+        Assert.assertTrue(queued.isEmpty());
+    }
+
+    @Test
+    public void testIsDecoded() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(4);
+        try (Content content = T.buildContent(this)) {
+            Assert.assertTrue(content.isDecoded(0, 1));
+            Assert.assertFalse(content.isDecoded(1, 2));
+            Assert.assertNotNull(content.stamp(1, 100));
+            Assert.assertFalse(content.isDecoded(1, 2));
+            Assert.assertNotNull(content.stamp(2, 100));
+            Assert.assertTrue(content.isDecoded(1, 2));
+            Assert.assertFalse(content.isDecoded(0, 10));
+        }
+    }
+
+    @Test
+    public void testDropStamps() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(4);
+        try (Content content = T.buildContent(this)) {
+            int bytes = rand.nextInt(1, 100_000);
+            when(content.frame.get(0).content.getAllocationByteCount()).thenReturn(bytes);
+            Assert.assertNotNull(content.stamp(1, 100));
+            Assert.assertNotNull(content.stamp(2, 300));
+            Assert.assertEquals(3L * bytes, content.byteCount());
+
+            // Only the stamp that went unused is dropped; never the background
+            Assert.assertEquals(bytes, content.dropStamps(200));
+            Assert.assertNotNull(content.frame.get(0).content);
+            Assert.assertNull(content.frame.get(1).content);
+            Assert.assertNotNull(content.frame.get(2).content);
+            Assert.assertEquals(2L * bytes, content.byteCount());
+            verify(content.frame.get(0).content, Mockito.never()).recycle();
+
+            // and it comes back when it's next drawn
+            Assert.assertNotNull(content.stamp(1, 400));
+            Assert.assertNotNull(content.frame.get(1).content);
+        }
+    }
+
+    @Test
+    public void testDropStamps_notLazy() throws IOException {
+        T = new ContentFixture().setFrameCount(3);
+        try (Content content = T.buildContent(this)) {
+            Assert.assertEquals(0, content.dropStamps(Long.MAX_VALUE));
+            for (Content.Frame f : content.frame) Assert.assertNotNull(f.content);
+        }
+    }
+
+    @Test
+    public void testVisibleBounds() {
+        int width = rand.nextInt(1, 50);
+        int height = rand.nextInt(1, 50);
+        int[] argb = new int[width * height];
+        Assert.assertNull(Content.visibleBounds(argb, width, height));
+
+        int left = rand.nextInt(width), top = rand.nextInt(height);
+        int right = rand.nextInt(left + 1, width + 1), bottom = rand.nextInt(top + 1, height + 1);
+        // Just the corners are enough to make the bounds
+        argb[top * width + left] = 0x01000000;
+        argb[(bottom - 1) * width + right - 1] = 0xFF123456;
+        Assert.assertArrayEquals(new int[]{left, top, right, bottom}, Content.visibleBounds(argb, width, height));
+
+        Arrays.fill(argb, 0xFF000000);
+        Assert.assertArrayEquals(new int[]{0, 0, width, height}, Content.visibleBounds(argb, width, height));
+    }
+
+    @Test
+    public void testContent_lazyReportsTrimmed() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(2);
+        T.setup(this);
+        Bitmap background = mock(Bitmap.class);
+        Bitmap stamp = mock(Bitmap.class);
+        for (Bitmap b : List.of(background, stamp)) {
+            when(b.hasAlpha()).thenReturn(true);
+            when(b.getWidth()).thenReturn(10);
+            when(b.getHeight()).thenReturn(10);
+        }
+        when(stamp.getAllocationByteCount()).thenReturn(10 * 10 * 4);
+        when(stamp.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        // Nothing visible at all, so it's down to a single pixel
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenReturn(background, stamp);
+        Bitmap cropped = mock(Bitmap.class);
+        when(cropped.getAllocationByteCount()).thenReturn(4);
+
+        String report = "Trimmed %d bytes of transparent borders from %s".formatted(10 * 10 * 4 - 4, T.params.alienRace());
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)).thenReturn(cropped);
+            try (Content content = T.build(this)) {
+                // Only the background so far, which is never trimmed
+                mockedStaticLog.verify(() -> Log.i(anyString(), Mockito.startsWith("Trimmed")), never());
+
+                // The report is made once the last stamp is in
+                content.prefetch(1, 1);
+                Assert.assertSame(cropped, content.frame.get(1).content);
+                mockedStaticLog.verify(() -> Log.i(anyString(), Mockito.startsWith(report)), times(1));
+            }
+        }
+        // and not again when it's let go
+        mockedStaticLog.verify(() -> Log.i(anyString(), Mockito.startsWith("Trimmed")), times(1));
+    }
+
+    @Test
+    public void testContent_lazyReportsTrimmedOnRelease() throws IOException {
+        Content.setLazyDecoding(true);
+        T = new ContentFixture().setFrameCount(3);
+        T.setup(this);
+        Bitmap background = mock(Bitmap.class);
+        Bitmap stamp = mock(Bitmap.class);
+        for (Bitmap b : List.of(background, stamp)) {
+            when(b.hasAlpha()).thenReturn(true);
+            when(b.getWidth()).thenReturn(10);
+            when(b.getHeight()).thenReturn(10);
+        }
+        when(stamp.getAllocationByteCount()).thenReturn(10 * 10 * 4);
+        when(stamp.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenReturn(background, stamp);
+        Bitmap cropped = mock(Bitmap.class);
+        when(cropped.getAllocationByteCount()).thenReturn(4);
+
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)).thenReturn(cropped);
+            try (Content content = T.build(this)) {
+                // One of the two stamps is never drawn, so never decoded
+                content.prefetch(1, 1);
+                mockedStaticLog.verify(() -> Log.i(anyString(), Mockito.startsWith("Trimmed")), never());
+            }
+        }
+        // ...so what there is gets reported when the race is let go
+        mockedStaticLog.verify(() -> Log.i(anyString(), Mockito.startsWith("Trimmed %d bytes".formatted(10 * 10 * 4 - 4))), times(1));
+    }
+
+    @Test
+    public void testFrame_trimsTransparentBorders() throws IOException {
+        Coord hotspot = new Coord(rand.nextInt(100), rand.nextInt(100));
+        T = new ContentFixture().setFrameCount(2).setHotspot(hotspot);
+        T.setup(this);
+        Bitmap background = mock(Bitmap.class);
+        Bitmap stamp = mock(Bitmap.class);
+        for (Bitmap b : List.of(background, stamp)) {
+            when(b.hasAlpha()).thenReturn(true);
+            when(b.getWidth()).thenReturn(10);
+            when(b.getHeight()).thenReturn(10);
+        }
+        when(stamp.getAllocationByteCount()).thenReturn(10 * 10 * 4);
+        when(stamp.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        // Visible pixels in [2, 5) x [3, 7)
+        Mockito.doAnswer(invocation -> {
+            int[] argb = invocation.getArgument(0);
+            for (int y = 3; y < 7; y++)
+                for (int x = 2; x < 5; x++) argb[y * 10 + x] = 0xFF000000;
+            return null;
+        }).when(stamp).getPixels(any(int[].class), Mockito.eq(0), Mockito.eq(10), Mockito.eq(0), Mockito.eq(0), Mockito.eq(10), Mockito.eq(10));
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenReturn(background, stamp);
+
+        Bitmap cropped = mock(Bitmap.class);
+        when(cropped.getWidth()).thenReturn(3);
+        when(cropped.getHeight()).thenReturn(4);
+        when(cropped.getAllocationByteCount()).thenReturn(3 * 4 * 4);
+        when(cropped.isMutable()).thenReturn(true);
+        BitmapPool.setMaxBytes(1_000_000);
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(3, 4, Bitmap.Config.ARGB_8888)).thenReturn(cropped);
+            try (Content content = T.build(this)) {
+                // The background is never trimmed
+                Assert.assertSame(background, content.frame.get(0).content);
+                verify(background, Mockito.never()).getPixels(any(int[].class), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt());
+
+                Content.Frame frame = content.frame.get(1);
+                Assert.assertSame(cropped, frame.content);
+                Assert.assertEquals(3, frame.width);
+                Assert.assertEquals(4, frame.height);
+                Assert.assertEquals(hotspot.x() + 2f, frame.hotspot.x(), 0);
+                Assert.assertEquals(hotspot.y() + 3f, frame.hotspot.y(), 0);
+                // copied out of the pixels that were scanned for the borders
+                verify(cropped).setPixels(any(int[].class), Mockito.eq(3 * 10 + 2), Mockito.eq(10), Mockito.eq(0), Mockito.eq(0), Mockito.eq(3), Mockito.eq(4));
+                verify(stamp).recycle();
+            }
+        }
+        // and, being mutable, it goes back to the pool for the next race
+        verify(cropped, Mockito.never()).recycle();
+        Assert.assertEquals(1, BitmapPool.size());
+    }
+
+    @Test
+    public void testContent_atlas() throws IOException {
+        // Narrow enough that both stamps fit side by side
+        T = new ContentFixture().setFrameCount(3).setSize(new Coord(10, 40));
+        T.setup(this);
+        Bitmap[] decoded = {mock(Bitmap.class), mock(Bitmap.class), mock(Bitmap.class)};
+        for (Bitmap b : decoded) {
+            when(b.getWidth()).thenReturn(T.params.size().x());
+            when(b.getHeight()).thenReturn(T.params.size().y());
+            when(b.getConfig()).thenReturn(Bitmap.Config.RGB_565);
+            when(b.getAllocationByteCount()).thenReturn(100);
+        }
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenReturn(decoded[0], decoded[1], decoded[2]);
+
+        Bitmap page = mock(Bitmap.class);
+        when(page.getAllocationByteCount()).thenReturn(1000);
+        Content.setAtlasEnabled(true);
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class);
+             MockedConstruction<Canvas> canvases = Mockito.mockConstruction(Canvas.class);
+             MockedConstruction<Rect> ignoredRects = Mockito.mockConstruction(Rect.class);
+             MockedConstruction<RectF> ignoredRectFs = Mockito.mockConstruction(RectF.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(2 * T.params.size().x(), T.params.size().y(), Bitmap.Config.RGB_565)).thenReturn(page);
+            try (Content content = T.build(this)) {
+                // The background is left alone; the stamps share one page
+                Assert.assertSame(decoded[0], content.frame.get(0).content);
+                Assert.assertNull(content.frame.get(0).src);
+                for (int i = 1; i < 3; i++) {
+                    Assert.assertSame(page, content.frame.get(i).content);
+                    Assert.assertNotNull(content.frame.get(i).src);
+                    Assert.assertEquals(T.params.size().x(), content.frame.get(i).width);
+                    verify(decoded[i]).recycle();
+                }
+                Assert.assertEquals(100 + 1000, content.byteCount());
+
+                Assert.assertEquals(1, canvases.constructed().size());
+                verify(canvases.constructed().get(0)).drawBitmap(decoded[1], 0f, 0f, null);
+                verify(canvases.constructed().get(0)).drawBitmap(decoded[2], (float) T.params.size().x(), 0f, null);
+            }
+        }
+        verify(decoded[0], Mockito.never()).recycle();
+        // The page goes back once, not once for each of its stamps
+        verify(page, times(1)).recycle();
+    }
+
+    @Test
+    public void testContent_atlasPagePooledOnce() throws IOException {
+        BitmapPool.setMaxBytes(1_000_000);
+        T = new ContentFixture().setFrameCount(3).setSize(new Coord(rand.nextInt(1, 100), rand.nextInt(1, 100)));
+        T.setup(this);
+        Bitmap page = mock(Bitmap.class);
+        when(page.isMutable()).thenReturn(true);
+        when(page.getAllocationByteCount()).thenReturn(1000);
+        Content.setAtlasEnabled(true);
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class);
+             MockedConstruction<Canvas> ignoredCanvases = Mockito.mockConstruction(Canvas.class);
+             MockedConstruction<Rect> ignoredRects = Mockito.mockConstruction(Rect.class);
+             MockedConstruction<RectF> ignoredRectFs = Mockito.mockConstruction(RectF.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(Mockito.anyInt(), Mockito.anyInt(), any(Bitmap.Config.class))).thenReturn(page);
+            try (Content content = T.build(this)) {
+                Assert.assertSame(page, content.frame.get(1).content);
+                Assert.assertSame(page, content.frame.get(2).content);
+            }
+        }
+        // Once in the pool, it's somebody else's as soon as it's taken; a second put would hand
+        // it out again while it's in use
+        Assert.assertEquals(1, BitmapPool.size());
+        Assert.assertEquals(1000, BitmapPool.bytes());
+    }
+
+    @Test
+    public void testContent_atlasAllocationFailureKeepsFrames() throws IOException {
+        T = new ContentFixture().setFrameCount(3).setSize(new Coord(rand.nextInt(1, 100), rand.nextInt(1, 100)));
+        Content.setAtlasEnabled(true);
+        try (MockedStatic<Bitmap> bitmap = mockStatic(Bitmap.class)) {
+            bitmap.when(() -> Bitmap.createBitmap(Mockito.anyInt(), Mockito.anyInt(), any(Bitmap.Config.class))).thenThrow(OutOfMemoryError.class);
+            try (Content content = T.buildContent(this)) {
+                Assert.assertEquals(3, content.frame.size());
+                Assert.assertTrue(content.frame.stream().allMatch(f -> f.src == null));
+                verify(content.frame.get(1).content, Mockito.never()).recycle();
+            }
+        }
+    }
+
+    @Test
+    public void testMapContentPack_failureReturnsNull() throws IOException {
+        FileChannel mockChannel = mock(FileChannel.class);
+        when(mockChannel.map(any(), Mockito.anyLong(), Mockito.anyLong())).thenThrow(new IOException("map failed"));
+        Assert.assertNull(Content.mapContentPack(mockChannel, 0, 10));
+        Assert.assertNull(Content.mapContentPack(mockChannel, 0, 0));
+        Assert.assertNull(Content.mapContentPack(mockChannel, 0, Integer.MAX_VALUE + 1L));
+    }
+
     /* ------------------------------------------------------------------------
      * Content.Frame Tests
      * -----------------------------------------------------------------------*/
@@ -357,6 +1300,86 @@ public class ContentTest extends BaseTest {
         Assert.assertThrows(IOException.class, () -> T.build(this));
     }
 
+    @Test
+    public void testFrame_failedDecodeRecyclesFrames() throws IOException {
+        T = new ContentFixture().setFrameCount(rand.nextInt(3, 10));
+        T.setup(this);
+
+        Bitmap bitmap = mock(Bitmap.class);
+        AtomicInteger decoded = new AtomicInteger();
+        mockedStaticBitmapFactory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class)))
+                .thenAnswer(invocation -> decoded.incrementAndGet() == 2 ? null : bitmap);
+        Assert.assertThrows(IOException.class, () -> T.build(this));
+        verify(bitmap, Mockito.atLeastOnce()).recycle();
+    }
+
+    @Test
+    public void testFrame_parallelDecodeKeepsOrder() throws Exception {
+        T = new ContentFixture().setFrameCount(rand.nextInt(5, 20));
+        T.setup(this);
+
+        // Each decode runs on its own thread, after a random delay, so they finish out of order
+        Bitmap bitmap = mock(Bitmap.class);
+        Content.setDecodeExecutor(r -> new Thread(() -> {
+            try (MockedStatic<BitmapFactory> factory = Mockito.mockStatic(BitmapFactory.class)) {
+                factory.when(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), any(BitmapFactory.Options.class))).thenReturn(bitmap);
+                Thread.sleep(rand.nextInt(20));
+                r.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).start());
+
+        try (Content content = T.build(this)) {
+            List<String> expected = content.readAni(T.getContentBaseDir() + T.params.aniFilename()).stream()
+                    .map(AniFile.Entry::filename)
+                    .toList();
+            Assert.assertEquals(expected, content.frame.stream().map(f -> f.filename).toList());
+        }
+    }
+
+    @Test
+    public void testFrame_sampleSize() throws IOException {
+        T = new ContentFixture();
+        Coord hotspot = new Coord(rand.nextInt(100), rand.nextInt(100));
+        ArgumentCaptor<BitmapFactory.Options> options = ArgumentCaptor.forClass(BitmapFactory.Options.class);
+
+        Content.Frame frame;
+        Content.setSampleSize(2);
+        try (Content content = T.setHotspot(hotspot).buildContent(this)) {
+            Assert.assertEquals(2, content.sampleSize);
+            frame = content.frame.get(0);
+            mockedStaticBitmapFactory.verify(() -> BitmapFactory.decodeStream(any(InputStream.class), isNull(), options.capture()), atLeastOnce());
+        } finally {
+            Content.setSampleSize(1);
+        }
+
+        Assert.assertEquals(2, options.getValue().inSampleSize);
+        Assert.assertEquals(hotspot.x() / 2f, frame.hotspot.x(), 0);
+        Assert.assertEquals(hotspot.y() / 2f, frame.hotspot.y(), 0);
+    }
+
+    @Test
+    public void testCacheKey() {
+        String race = createString();
+        Assert.assertEquals(race, Content.cacheKey(race, 1));
+        Assert.assertEquals(race + "@2", Content.cacheKey(race, 2));
+    }
+
+    @Test
+    public void testEffectiveSampleSize() {
+        try {
+            Assert.assertEquals(1, Content.effectiveSampleSize(0));
+            Assert.assertEquals(1, Content.effectiveSampleSize(1));
+            Assert.assertEquals(4, Content.effectiveSampleSize(4));
+            Content.setSampleSize(2);
+            Assert.assertEquals(2, Content.effectiveSampleSize(1));
+            Assert.assertEquals(4, Content.effectiveSampleSize(4));
+        } finally {
+            Content.setSampleSize(1);
+        }
+    }
+
     @Test
     public void testFrame_toString() throws IOException {
         T = new ContentFixture();
@@ -576,4 +1599,164 @@ public class ContentTest extends BaseTest {
         bounded.close();
         verify(mockChannel).close();
     }
+
+    @Test
+    public void testBoundedChannel_positionalRead() throws IOException {
+        int dataSize = rand.nextInt(100, 1000);
+        byte[] data = new byte[dataSize];
+        rand.nextBytes(data);
+
+        int offset = rand.nextInt(dataSize / 2);
+        int size = rand.nextInt(10, dataSize - offset);
+
+        try (var channel = new SeekableInMemoryByteChannel(data);
+             var bounded = new Content.BoundedSeekableByteChannel(channel, offset, size)) {
+            int pos = rand.nextInt(size);
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            Assert.assertEquals(size - pos, bounded.read(buf, pos));
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, offset + pos, offset + size), Arrays.copyOf(buf.array(), size - pos));
+            // Positional reads leave the cursor alone
+            Assert.assertEquals(0, bounded.position());
+            Assert.assertEquals(-1, bounded.read(ByteBuffer.allocate(1), size));
+            Assert.assertThrows(IllegalArgumentException.class, () -> bounded.read(ByteBuffer.allocate(1), -1));
+        }
+    }
+
+    @Test
+    public void testBoundedChannel_positionalRead_fileChannel() throws IOException {
+        byte[] data = new byte[rand.nextInt(100, 1000)];
+        rand.nextBytes(data);
+        java.io.File file = java.io.File.createTempFile("bounded", ".bin");
+        file.deleteOnExit();
+        java.nio.file.Files.write(file.toPath(), data);
+
+        int offset = rand.nextInt(data.length / 2);
+        int size = rand.nextInt(10, data.length - offset);
+
+        try (var channel = FileChannel.open(file.toPath());
+             var bounded = new Content.BoundedSeekableByteChannel(channel, offset, size)) {
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            Assert.assertEquals(size, bounded.read(buf, 0));
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, offset, offset + size), buf.array());
+            // pread does not move the file position either
+            Assert.assertEquals(0, channel.position());
+        }
+    }
+
+    @Test
+    public void testBoundedChannel_closed() throws IOException {
+        byte[] data = new byte[rand.nextInt(100, 1000)];
+        rand.nextBytes(data);
+
+        var bounded = new Content.BoundedSeekableByteChannel(new SeekableInMemoryByteChannel(data), 0, data.length);
+        bounded.close();
+        Assert.assertFalse(bounded.isOpen());
+        Assert.assertThrows(ClosedChannelException.class, () -> bounded.read(ByteBuffer.allocate(1)));
+        Assert.assertThrows(ClosedChannelException.class, () -> bounded.read(ByteBuffer.allocate(1), 0));
+        Assert.assertThrows(ClosedChannelException.class, bounded::position);
+        Assert.assertThrows(ClosedChannelException.class, () -> bounded.position(0));
+        Assert.assertThrows(ClosedChannelException.class, bounded::size);
+    }
+
+    /* ------------------------------------------------------------------------
+     * Content.MappedSeekableByteChannel Tests
+     * -----------------------------------------------------------------------*/
+
+    @Test
+    public void testMappedChannel_read() throws IOException {
+        byte[] data = new byte[rand.nextInt(100, 1000)];
+        rand.nextBytes(data);
+
+        try (var mapped = new Content.MappedSeekableByteChannel(ByteBuffer.wrap(data))) {
+            int pos = rand.nextInt(data.length / 2);
+            mapped.position(pos);
+            ByteBuffer buf = ByteBuffer.allocate(data.length);
+            Assert.assertEquals(data.length - pos, mapped.read(buf));
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, pos, data.length), Arrays.copyOf(buf.array(), data.length - pos));
+            Assert.assertEquals(data.length, mapped.position());
+            Assert.assertEquals(-1, mapped.read(buf));
+        }
+    }
+
+    @Test
+    public void testMappedChannel_slice() throws IOException {
+        byte[] data = new byte[rand.nextInt(100, 1000)];
+        rand.nextBytes(data);
+
+        try (var mapped = new Content.MappedSeekableByteChannel(ByteBuffer.wrap(data))) {
+            int offset = rand.nextInt(data.length / 2);
+            int length = rand.nextInt(1, data.length - offset);
+            ByteBuffer slice = mapped.slice(offset, length);
+            byte[] result = new byte[slice.remaining()];
+            slice.get(result);
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), result);
+            // slicing does not move the channel
+            Assert.assertEquals(0, mapped.position());
+            Assert.assertThrows(IOException.class, () -> mapped.slice(data.length - 1, 2));
+            Assert.assertThrows(IOException.class, () -> mapped.slice(-1, 1));
+        }
+    }
+
+    @Test
+    public void testMappedChannel_positionSizeAndWrites() throws IOException {
+        int size = rand.nextInt(10, 1000);
+        try (var mapped = new Content.MappedSeekableByteChannel(ByteBuffer.allocate(size))) {
+            Assert.assertEquals(size, mapped.size());
+            Assert.assertThrows(IllegalArgumentException.class, () -> mapped.position(-1));
+            Assert.assertThrows(IllegalArgumentException.class, () -> mapped.position(size + 1));
+            Assert.assertThrows(NonWritableChannelException.class, () -> mapped.write(ByteBuffer.allocate(1)));
+            Assert.assertThrows(NonWritableChannelException.class, () -> mapped.truncate(1));
+        }
+    }
+
+    @Test
+    public void testMappedChannel_close() throws IOException {
+        var mapped = new Content.MappedSeekableByteChannel(ByteBuffer.allocate(10));
+        Assert.assertTrue(mapped.isOpen());
+        mapped.close();
+        Assert.assertFalse(mapped.isOpen());
+        Assert.assertThrows(ClosedChannelException.class, () -> mapped.read(ByteBuffer.allocate(1)));
+    }
+
+    /* ------------------------------------------------------------------------
+     * Content.ByteBufferInputStream Tests
+     * -----------------------------------------------------------------------*/
+
+    @Test
+    public void testByteBufferInputStream() throws IOException {
+        byte[] data = new byte[rand.nextInt(10, 100)];
+        rand.nextBytes(data);
+
+        try (InputStream is = new Content.ByteBufferInputStream(ByteBuffer.wrap(data))) {
+            Assert.assertEquals(data.length, is.available());
+            Assert.assertEquals(data[0] & 0xFF, is.read());
+            Assert.assertEquals(1, is.skip(1));
+            byte[] rest = new byte[data.length];
+            Assert.assertEquals(0, is.read(rest, 0, 0));
+            Assert.assertEquals(data.length - 2, is.read(rest, 0, rest.length));
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, 2, data.length), Arrays.copyOf(rest, data.length - 2));
+            Assert.assertEquals(-1, is.read());
+            Assert.assertEquals(-1, is.read(rest, 0, rest.length));
+            Assert.assertEquals(0, is.skip(1));
+        }
+    }
+
+    private byte[] createStoredZipArchiveBytes(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ZipArchiveOutputStream archive = new ZipArchiveOutputStream(bos)) {
+            for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+                CRC32 crc = new CRC32();
+                crc.update(entry.getValue());
+                ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getKey());
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(entry.getValue().length);
+                zipEntry.setCrc(crc.getValue());
+                archive.putArchiveEntry(zipEntry);
+                archive.write(entry.getValue());
+                archive.closeArchiveEntry();
+            }
+            archive.finish();
+        }
+        return bos.toByteArray();
+    }
 }
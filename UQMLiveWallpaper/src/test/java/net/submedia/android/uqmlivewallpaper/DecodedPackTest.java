@@ -0,0 +1,135 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import android.graphics.Bitmap;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DecodedPackTest extends BaseTest {
+
+    private List<DecodedPack.Entry> createEntries(String race, int count) {
+        List<DecodedPack.Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int width = rand.nextInt(1, 32);
+            int height = rand.nextInt(1, 32);
+            Bitmap.Config config = rand.nextBoolean() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            byte[] pixels = new byte[width * height * ((config == Bitmap.Config.RGB_565) ? 2 : 4)];
+            rand.nextBytes(pixels);
+            entries.add(new DecodedPack.Entry("base/comm/%s/%s.png".formatted(race, createString()),
+                    rand.nextInt(100), rand.nextInt(100), width, height, config, ByteBuffer.wrap(pixels)));
+        }
+        return entries;
+    }
+
+    @Test
+    public void testFrames() throws IOException {
+        Map<String, List<DecodedPack.Entry>> races = new LinkedHashMap<>();
+        for (int i = rand.nextInt(1, 10); i > 0; i--) {
+            String race = createString(rand.nextInt(1, DecodedPack.NAME_SIZE + 1));
+            races.put(race, createEntries(race, rand.nextInt(0, 10)));
+        }
+        DecodedPack pack = DecodedPack.parse(ByteBuffer.wrap(createDecodedPackBytes(races)));
+
+        for (Map.Entry<String, List<DecodedPack.Entry>> race : races.entrySet()) {
+            List<DecodedPack.Entry> expected = race.getValue();
+            List<DecodedPack.Entry> actual = pack.frames(race.getKey());
+            Assert.assertNotNull(actual);
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                DecodedPack.Entry e = expected.get(i);
+                DecodedPack.Entry a = actual.get(i);
+                Assert.assertEquals(e.filename(), a.filename());
+                Assert.assertEquals(e.x(), a.x(), 0);
+                Assert.assertEquals(e.y(), a.y(), 0);
+                Assert.assertEquals(e.width(), a.width());
+                Assert.assertEquals(e.height(), a.height());
+                Assert.assertEquals(e.config(), a.config());
+                Assert.assertEquals(e.pixels(), a.pixels());
+                Assert.assertTrue(a.pixels().isReadOnly());
+            }
+        }
+        Assert.assertNull(pack.frames(createString(DecodedPack.NAME_SIZE + 1)));
+    }
+
+    @Test
+    public void testParse_notAPack() {
+        Assert.assertThrows(IOException.class, () -> DecodedPack.parse(ByteBuffer.allocate(0)));
+        Assert.assertThrows(IOException.class, () -> DecodedPack.parse(ByteBuffer.allocate(DecodedPack.HEADER_SIZE)));
+        Assert.assertThrows(IOException.class, () -> DecodedPack.parse(ByteBuffer.wrap(createZipArchiveBytes(Map.of("a", new byte[1])))));
+    }
+
+    @Test
+    public void testParse_truncated() throws IOException {
+        String race = createString();
+        byte[] data = createDecodedPackBytes(Map.of(race, createEntries(race, 3)));
+
+        // Losing the end of the index, or of a frame table, is noticed up front
+        Assert.assertThrows(IOException.class, () -> DecodedPack.parse(ByteBuffer.wrap(data, 0, DecodedPack.HEADER_SIZE + 1)));
+        int table = DecodedPack.HEADER_SIZE + DecodedPack.INDEX_ENTRY_SIZE + DecodedPack.FRAME_ENTRY_SIZE * 2;
+        Assert.assertThrows(IOException.class, () -> DecodedPack.parse(ByteBuffer.wrap(data, 0, table)));
+
+        // and losing pixels when the frames are read
+        DecodedPack pack = DecodedPack.parse(ByteBuffer.wrap(data, 0, data.length - 1));
+        Assert.assertThrows(IOException.class, () -> pack.frames(race));
+    }
+
+    @Test
+    public void testFrames_wrongSize() throws IOException {
+        String race = createString();
+        // Twice the pixels a 1x1 RGB_565 frame has
+        List<DecodedPack.Entry> entries = List.of(new DecodedPack.Entry("a.png", 0, 0, 1, 1, Bitmap.Config.RGB_565, ByteBuffer.allocate(4)));
+        DecodedPack pack = DecodedPack.parse(ByteBuffer.wrap(createDecodedPackBytes(Map.of(race, entries))));
+        Assert.assertThrows(IOException.class, () -> pack.frames(race));
+    }
+
+    private static ByteBuffer bytes(int... values) {
+        ByteBuffer b = ByteBuffer.allocate(values.length);
+        for (int v : values) b.put((byte) v);
+        return b.flip();
+    }
+
+    // The pack the build slims and decodes for the tests (see slimTestContentPack in build.gradle):
+    // test-000.png is the background, opaque red, green, blue and white; test-001.png a 4x3 stamp with
+    // an opaque white pixel at (1, 1) and a half transparent (200, 100, 50) one beside it; and
+    // test-002.png a stamp with nothing visible at all.  The .txt is left out.
+    @Test
+    public void testFrames_buildOutput() throws IOException {
+        String dir = System.getProperty("uqm.testContentPack");
+        Assume.assumeNotNull(dir);
+
+        try (ZipFile zip = new ZipFile(new File(dir, "test.uqm"))) {
+            List<String> names = zip.stream().map(ZipEntry::getName).toList();
+            Assert.assertEquals(List.of("base/comm/test/test.ani", "base/comm/test/test-000.png",
+                    "base/comm/test/test-001.png", "base/comm/test/test-002.png"), names);
+            Assert.assertTrue(zip.stream().allMatch(e -> e.getMethod() == ZipEntry.STORED));
+        }
+
+        DecodedPack pack = DecodedPack.parse(ByteBuffer.wrap(Files.readAllBytes(new File(dir, "test.uqmx").toPath())));
+        List<DecodedPack.Entry> frames = pack.frames("test");
+        Assert.assertEquals(List.of(
+                // not trimmed, and RGB_565 little-endian
+                new DecodedPack.Entry("base/comm/test/test-000.png", 0, 0, 2, 2, Bitmap.Config.RGB_565,
+                        bytes(0x00, 0xf8, 0xe0, 0x07, 0x1f, 0x00, 0xff, 0xff)),
+                // trimmed to its visible part, which moves the hotspot (2, 3) along with it, and premultiplied
+                new DecodedPack.Entry("base/comm/test/test-001.png", 3, 4, 2, 1, Bitmap.Config.ARGB_8888,
+                        bytes(0xff, 0xff, 0xff, 0xff, 0x64, 0x32, 0x19, 0x80)),
+                // a single transparent pixel, with the hotspot's sign dropped, as Content does
+                new DecodedPack.Entry("base/comm/test/test-002.png", 1, 1, 1, 1, Bitmap.Config.ARGB_8888,
+                        bytes(0, 0, 0, 0))), frames);
+    }
+}
@@ -0,0 +1,101 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Objects;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FrameAtlasTest extends BaseTest {
+
+    // No two slots on the same page overlap, and every slot is within its page
+    private static void assertValid(FrameAtlas.Layout layout, int[] widths, int[] heights, int maxSide) {
+        for (FrameAtlas.Page p : layout.pages()) {
+            Assert.assertTrue(p.width() <= maxSide);
+            Assert.assertTrue(p.height() <= maxSide);
+        }
+        for (int i = 0; i < widths.length; i++) {
+            FrameAtlas.Slot a = layout.slot(i);
+            if (a == null) continue;
+            FrameAtlas.Page p = layout.pages().get(a.page());
+            Assert.assertTrue(a.x() >= 0 && a.x() + widths[i] <= p.width());
+            Assert.assertTrue(a.y() >= 0 && a.y() + heights[i] <= p.height());
+            for (int j = i + 1; j < widths.length; j++) {
+                FrameAtlas.Slot b = layout.slot(j);
+                if (b == null || b.page() != a.page()) continue;
+                boolean apart = a.x() + widths[i] <= b.x() || b.x() + widths[j] <= a.x()
+                        || a.y() + heights[i] <= b.y() || b.y() + heights[j] <= a.y();
+                Assert.assertTrue("%s and %s overlap".formatted(a, b), apart);
+            }
+        }
+    }
+
+    @Test
+    public void testPack_random() {
+        int count = rand.nextInt(1, 200);
+        int[] widths = new int[count];
+        int[] heights = new int[count];
+        for (int i = 0; i < count; i++) {
+            widths[i] = rand.nextInt(1, 320);
+            heights[i] = rand.nextInt(1, 240);
+        }
+        FrameAtlas.Layout layout = FrameAtlas.pack(widths, heights, FrameAtlas.MAX_PAGE_SIDE);
+        Assert.assertEquals(count, layout.slots().size());
+        Assert.assertTrue(layout.slots().stream().allMatch(Objects::nonNull));
+        assertValid(layout, widths, heights, FrameAtlas.MAX_PAGE_SIDE);
+        Assert.assertTrue(layout.wastedPixels(widths, heights) >= 0);
+    }
+
+    @Test
+    public void testPack_sideBySide() {
+        FrameAtlas.Layout layout = FrameAtlas.pack(new int[]{10, 10}, new int[]{40, 40}, FrameAtlas.MAX_PAGE_SIDE);
+        Assert.assertEquals(1, layout.pages().size());
+        Assert.assertEquals(new FrameAtlas.Page(20, 40), layout.pages().get(0));
+        Assert.assertEquals(new FrameAtlas.Slot(0, 0, 0), layout.slot(0));
+        Assert.assertEquals(new FrameAtlas.Slot(0, 10, 0), layout.slot(1));
+        Assert.assertEquals(0, layout.wastedPixels(new int[]{10, 10}, new int[]{40, 40}));
+    }
+
+    @Test
+    public void testPack_tallestFirst() {
+        FrameAtlas.Layout layout = FrameAtlas.pack(new int[]{10, 10, 10}, new int[]{5, 30, 20}, FrameAtlas.MAX_PAGE_SIDE);
+        Assert.assertEquals(0, layout.slot(1).x());
+        Assert.assertEquals(10, layout.slot(2).x());
+    }
+
+    @Test
+    public void testPack_overflowsToNewPage() {
+        int maxSide = 100;
+        int[] widths = {100, 100, 100};
+        int[] heights = {60, 60, 60};
+        FrameAtlas.Layout layout = FrameAtlas.pack(widths, heights, maxSide);
+        Assert.assertEquals(3, layout.pages().size());
+        assertValid(layout, widths, heights, maxSide);
+    }
+
+    @Test
+    public void testPack_tooLargeIsLeftOut() {
+        int[] widths = {10, 101, 10, 0};
+        int[] heights = {10, 10, 10, 10};
+        FrameAtlas.Layout layout = FrameAtlas.pack(widths, heights, 100);
+        Assert.assertNotNull(layout.slot(0));
+        Assert.assertNull(layout.slot(1));
+        Assert.assertNotNull(layout.slot(2));
+        Assert.assertNull(layout.slot(3));
+        Assert.assertEquals(1, layout.pages().size());
+    }
+
+    @Test
+    public void testPack_empty() {
+        FrameAtlas.Layout layout = FrameAtlas.pack(new int[0], new int[0], FrameAtlas.MAX_PAGE_SIDE);
+        Assert.assertTrue(layout.slots().isEmpty());
+        Assert.assertTrue(layout.pages().isEmpty());
+    }
+
+    @Test
+    public void testPack_mismatchedArrays() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> FrameAtlas.pack(new int[1], new int[2], 100));
+    }
+}
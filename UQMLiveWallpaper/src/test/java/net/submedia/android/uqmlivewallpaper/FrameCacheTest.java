@@ -0,0 +1,206 @@
+package net.submedia.android.uqmlivewallpaper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FrameCacheTest extends BaseTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private List<FrameCache.Entry> createEntries(int count) {
+        List<FrameCache.Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int width = rand.nextInt(1, 32);
+            int height = rand.nextInt(1, 32);
+            // Anything with transparency is ARGB_8888, whatever it was asked to be
+            Bitmap.Config config = rand.nextBoolean() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            byte[] pixels = new byte[width * height * ((config == Bitmap.Config.RGB_565) ? 2 : 4)];
+            rand.nextBytes(pixels);
+            entries.add(new FrameCache.Entry(createString() + ".png", rand.nextInt(100), rand.nextInt(100), width, height, config, ByteBuffer.wrap(pixels)));
+        }
+        return entries;
+    }
+
+    private static void assertEntriesEqual(List<FrameCache.Entry> expected, List<FrameCache.Entry> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            FrameCache.Entry e = expected.get(i);
+            FrameCache.Entry a = actual.get(i);
+            Assert.assertEquals(e.filename(), a.filename());
+            Assert.assertEquals(e.x(), a.x(), 0);
+            Assert.assertEquals(e.y(), a.y(), 0);
+            Assert.assertEquals(e.width(), a.width());
+            Assert.assertEquals(e.height(), a.height());
+            Assert.assertEquals(e.config(), a.config());
+            Assert.assertEquals(e.pixels().rewind(), a.pixels());
+            Assert.assertTrue(a.pixels().isReadOnly());
+        }
+    }
+
+    @Test
+    public void testForContext() throws Exception {
+        Assert.assertNull(FrameCache.forContext(mockContext));
+
+        // A cache dir isn't enough, it also needs a version to tell when it's stale
+        when(mockContext.getCacheDir()).thenReturn(tmp.getRoot());
+        Assert.assertNull(FrameCache.forContext(mockContext));
+
+        PackageManager pm = mock(PackageManager.class);
+        PackageInfo info = mock(PackageInfo.class);
+        info.lastUpdateTime = rand.nextLong(1, Long.MAX_VALUE);
+        when(mockContext.getPackageManager()).thenReturn(pm);
+        when(mockContext.getPackageName()).thenReturn("package");
+        when(pm.getPackageInfo("package", 0)).thenReturn(info);
+
+        FrameCache cache = FrameCache.forContext(mockContext);
+        Assert.assertNotNull(cache);
+        String key = createString();
+        Assert.assertEquals(new File(new File(tmp.getRoot(), FrameCache.DIR_NAME), key + FrameCache.SUFFIX), cache.fileFor(key));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        FrameCache cache = new FrameCache(tmp.newFolder(), rand.nextLong(), FrameCache.DEFAULT_MAX_BYTES);
+        String key = createString();
+        List<FrameCache.Entry> entries = createEntries(rand.nextInt(1, 10));
+
+        Assert.assertNull(cache.load(key));
+        cache.save(key, entries);
+        // and no temporary files left lying around
+        Assert.assertArrayEquals(new File[]{cache.fileFor(key)}, cache.fileFor(key).getParentFile().listFiles());
+        assertEntriesEqual(entries, cache.load(key));
+    }
+
+    @Test
+    public void testSave_concurrent() throws Exception {
+        FrameCache cache = new FrameCache(tmp.newFolder(), rand.nextLong(), FrameCache.DEFAULT_MAX_BYTES);
+        String key = createString();
+        List<FrameCache.Entry> entries = createEntries(rand.nextInt(1, 10));
+
+        // Every engine showing the race may save it at once; none of them should trip over
+        // another's half-written file
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> saves = new ArrayList<>();
+            for (int i = 0; i < 32; i++) saves.add(executor.submit(() -> { cache.save(key, entries); return null; }));
+            for (Future<?> save : saves) save.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEntriesEqual(entries, cache.load(key));
+        Assert.assertArrayEquals(new File[]{cache.fileFor(key)}, cache.fileFor(key).getParentFile().listFiles());
+    }
+
+    @Test
+    public void testSave_unsupportedConfig() throws IOException {
+        FrameCache cache = new FrameCache(tmp.newFolder(), rand.nextLong(), FrameCache.DEFAULT_MAX_BYTES);
+        String key = createString();
+        List<FrameCache.Entry> entries = new ArrayList<>(createEntries(rand.nextInt(1, 10)));
+        entries.add(new FrameCache.Entry(createString() + ".png", 0, 0, 1, 1, Bitmap.Config.ALPHA_8, ByteBuffer.allocate(1)));
+
+        Assert.assertFalse(FrameCache.canSave(Bitmap.Config.ALPHA_8));
+        Assert.assertFalse(FrameCache.canSave(null));
+        Assert.assertThrows(IOException.class, () -> cache.save(key, entries));
+        Assert.assertFalse(cache.fileFor(key).exists());
+    }
+
+    @Test
+    public void testLoad_stale() throws IOException {
+        File dir = tmp.newFolder();
+        String key = createString();
+        new FrameCache(dir, 1, FrameCache.DEFAULT_MAX_BYTES).save(key, createEntries(1));
+
+        FrameCache cache = new FrameCache(dir, 2, FrameCache.DEFAULT_MAX_BYTES);
+        Assert.assertNull(cache.load(key));
+        Assert.assertFalse(cache.fileFor(key).exists());
+    }
+
+    @Test
+    public void testLoad_corrupt() throws IOException {
+        FrameCache cache = new FrameCache(tmp.newFolder(), rand.nextLong(), FrameCache.DEFAULT_MAX_BYTES);
+        String key = createString();
+        cache.save(key, createEntries(rand.nextInt(1, 10)));
+
+        // Lose the last byte of pixels
+        File file = cache.fileFor(key);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        Assert.assertNull(cache.load(key));
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testSave_tooLarge() throws IOException {
+        FrameCache cache = new FrameCache(tmp.newFolder(), rand.nextLong(), 1);
+        String key = createString();
+        Assert.assertThrows(IOException.class, () -> cache.save(key, createEntries(1)));
+        Assert.assertFalse(cache.fileFor(key).exists());
+    }
+
+    @Test
+    public void testTrim_evictsLeastRecentlyUsed() throws IOException {
+        File dir = tmp.newFolder();
+        List<FrameCache.Entry> entries = createEntries(1);
+        FrameCache unbounded = new FrameCache(dir, 1, Long.MAX_VALUE);
+        String[] keys = {createString(), createString(), createString()};
+        for (String key : keys) unbounded.save(key, entries);
+
+        long length = unbounded.fileFor(keys[0]).length();
+        long now = System.currentTimeMillis();
+        Assert.assertTrue(unbounded.fileFor(keys[0]).setLastModified(now - 30_000));
+        Assert.assertTrue(unbounded.fileFor(keys[1]).setLastModified(now - 20_000));
+        Assert.assertTrue(unbounded.fileFor(keys[2]).setLastModified(now - 10_000));
+
+        // Using the oldest one makes it the newest
+        Assert.assertNotNull(unbounded.load(keys[0]));
+
+        FrameCache cache = new FrameCache(dir, 1, length * 2);
+        cache.trim();
+        Assert.assertTrue(cache.fileFor(keys[0]).exists());
+        Assert.assertFalse(cache.fileFor(keys[1]).exists());
+        Assert.assertTrue(cache.fileFor(keys[2]).exists());
+    }
+
+    @Test
+    public void testTrim_deletesAbandonedTempFiles() throws IOException {
+        File dir = tmp.newFolder();
+        FrameCache cache = new FrameCache(dir, 1, FrameCache.DEFAULT_MAX_BYTES);
+        File abandoned = new File(dir, createString() + FrameCache.SUFFIX + "123" + FrameCache.TMP_SUFFIX);
+        File saving = new File(dir, createString() + FrameCache.SUFFIX + "456" + FrameCache.TMP_SUFFIX);
+        Assert.assertTrue(abandoned.createNewFile());
+        Assert.assertTrue(saving.createNewFile());
+        Assert.assertTrue(abandoned.setLastModified(System.currentTimeMillis() - FrameCache.STALE_TMP_MS - 1000));
+
+        // Trimming happens after every save, even when the cache is under its limit
+        String key = createString();
+        cache.save(key, createEntries(1));
+        Assert.assertFalse(abandoned.exists());
+        // one that's still being written is left alone
+        Assert.assertTrue(saving.exists());
+        Assert.assertTrue(cache.fileFor(key).exists());
+    }
+}
@@ -6,24 +6,29 @@ import static org.mockito.ArgumentMatchers.anyFloat;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockConstruction;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.WallpaperManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RenderNode;
@@ -38,6 +43,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.MockedConstruction;
 import org.mockito.Mockito;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
@@ -52,6 +58,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 34)
@@ -80,10 +87,10 @@ public class UQMWallpaperTest extends BaseTest {
         Field stagedField = UQMWallpaper.class.getDeclaredField("sStagedSettings");
         stagedField.setAccessible(true);
         stagedField.set(null, null);
-        when(mockAnimation.getFrame()).thenReturn(mockFrame);
+        when(mockAnimation.currentFrame()).thenReturn(mockFrame);
         when(mockFrame.getWidth()).thenReturn(640);
         when(mockFrame.getHeight()).thenReturn(480);
-        when(mockAnimationFactory.create(anyString(), any(Context.class), any())).thenReturn(mockAnimation);
+        when(mockAnimationFactory.create(anyString(), any(Context.class), any(), anyInt())).thenReturn(mockAnimation);
         ServiceController<UQMWallpaper> controller = Robolectric.buildService(UQMWallpaper.class);
         wallpaperService = controller.get();
         wallpaperService.setAnimationFactory(mockAnimationFactory);
@@ -263,7 +270,7 @@ public class UQMWallpaperTest extends BaseTest {
         doReturn(mockSurfaceHolder).when(engineSpy).getSurfaceHolder();
         engineSpy.onVisibilityChanged(true);
         engineSpy.onSurfaceChanged(mockSurfaceHolder, 0, 1080, 1920);
-        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any(), anyInt());
         engineSpy.getViewModel().setAnimation(mockAnimation);
         Mockito.reset(mockSurfaceHolder, mockCanvas, mockSurface);
         when(mockSurfaceHolder.getSurface()).thenReturn(mockSurface);
@@ -296,36 +303,149 @@ public class UQMWallpaperTest extends BaseTest {
         verify(mockCanvas).drawRenderNode(any(RenderNode.class));
     }
 
+    @Test
+    public void testDrawFrame_partialUpdates() {
+        UQMWallpaper.setPartialUpdates(true);
+        UQMWallpaper.CommsEngine engineSpy = spy(engine);
+        doReturn(mockSurfaceHolder).when(engineSpy).getSurfaceHolder();
+        WallpaperViewModel vm = engineSpy.getViewModel();
+        vm.onSurfaceChanged(1080, 1920);
+        vm.setAnimation(mockAnimation);
+        Mockito.reset(mockSurfaceHolder, mockCanvas, mockSurface);
+        when(mockSurfaceHolder.getSurface()).thenReturn(mockSurface);
+        when(mockSurface.isValid()).thenReturn(true);
+        when(mockSurfaceHolder.lockCanvas(any())).thenReturn(mockCanvas);
+
+        // The first frame is drawn in full
+        engineSpy.drawFrame();
+        verify(mockSurfaceHolder).lockCanvas(null);
+        verify(mockCanvas).drawBitmap(any(Bitmap.class), any(), any(Rect.class), any(Paint.class));
+        verify(mockSurfaceHolder).unlockCanvasAndPost(mockCanvas);
+
+        // Nothing stamped, nothing drawn
+        engineSpy.drawFrame();
+        verify(mockSurfaceHolder, times(1)).lockCanvas(any());
+
+        // and then only what was stamped; in the middle, so that it's on the screen
+        when(mockAnimation.takeDirty(any(Rect.class))).thenAnswer(invocation -> {
+            invocation.<Rect>getArgument(0).set(310, 230, 330, 250);
+            return true;
+        });
+        engineSpy.drawFrame();
+        verify(mockSurfaceHolder).lockCanvas(argThat(dirty -> dirty != null && !dirty.isEmpty()
+                && dirty.width() < 1080 && dirty.height() < 1920));
+        verify(mockSurfaceHolder, times(2)).unlockCanvasAndPost(mockCanvas);
+        verify(mockSurfaceHolder, never()).lockHardwareCanvas();
+    }
+
+    @Test
+    public void testDrawFrame_partialUpdatesFillFrame() {
+        UQMWallpaper.setPartialUpdates(true);
+        UQMWallpaper.CommsEngine engineSpy = spy(engine);
+        doReturn(mockSurfaceHolder).when(engineSpy).getSurfaceHolder();
+        WallpaperViewModel vm = engineSpy.getViewModel();
+        vm.onSurfaceChanged(1080, 1920);
+        vm.setAnimation(mockAnimation);
+        Mockito.reset(mockSurfaceHolder, mockCanvas, mockSurface);
+        when(mockSurfaceHolder.getSurface()).thenReturn(mockSurface);
+        when(mockSurface.isValid()).thenReturn(true);
+        when(mockSurfaceHolder.lockCanvas(any())).thenReturn(mockCanvas);
+        engineSpy.drawFrame();
+
+        // Once it's drawn in software, that's how it stays, so the background can't use blurNode
+        vm.setFillFrame(true);
+        try (MockedConstruction<Canvas> shrunk = mockConstruction(Canvas.class)) {
+            engineSpy.drawFrame();
+            verify(shrunk.constructed().get(0)).drawBitmap(eq(mockFrame), any(), any(Rect.class), any(Paint.class));
+        }
+        verify(mockSurfaceHolder, times(2)).lockCanvas(null);
+        verify(mockSurfaceHolder, never()).lockHardwareCanvas();
+        verify(mockCanvas, never()).drawRenderNode(any(RenderNode.class));
+        // the background, and the animation over it
+        verify(mockCanvas, times(3)).drawBitmap(any(Bitmap.class), any(), any(Rect.class), any(Paint.class));
+
+        // ...and turned off again, it's back to partial updates
+        vm.setFillFrame(false);
+        engineSpy.drawFrame();
+        verify(mockSurfaceHolder, times(3)).lockCanvas(null);
+        when(mockAnimation.takeDirty(any(Rect.class))).thenAnswer(invocation -> {
+            invocation.<Rect>getArgument(0).set(310, 230, 330, 250);
+            return true;
+        });
+        engineSpy.drawFrame();
+        verify(mockSurfaceHolder).lockCanvas(argThat(dirty -> dirty != null && !dirty.isEmpty()
+                && dirty.width() < 1080 && dirty.height() < 1920));
+        verify(mockSurfaceHolder, never()).lockHardwareCanvas();
+    }
+
+    @Test
+    public void testDrawFrame_fillFrameStaysHardware() {
+        UQMWallpaper.setPartialUpdates(true);
+        UQMWallpaper.CommsEngine engineSpy = spy(engine);
+        doReturn(mockSurfaceHolder).when(engineSpy).getSurfaceHolder();
+        WallpaperViewModel vm = engineSpy.getViewModel();
+        vm.onSurfaceChanged(1080, 1920);
+        vm.setAnimation(mockAnimation);
+        vm.setFillFrame(true);
+        Mockito.reset(mockSurfaceHolder, mockCanvas, mockSurface);
+        when(mockSurfaceHolder.getSurface()).thenReturn(mockSurface);
+        when(mockSurface.isValid()).thenReturn(true);
+        when(mockSurfaceHolder.lockHardwareCanvas()).thenReturn(mockCanvas);
+        engineSpy.drawFrame();
+
+        // Once it's drawn in hardware, that's how it stays, so every frame is drawn in full, even
+        // with only a stamp's worth changed
+        vm.setFillFrame(false);
+        when(mockAnimation.takeDirty(any(Rect.class))).thenAnswer(invocation -> {
+            invocation.<Rect>getArgument(0).set(310, 230, 330, 250);
+            return true;
+        });
+        engineSpy.drawFrame();
+        verify(mockSurfaceHolder, times(2)).lockHardwareCanvas();
+        verify(mockSurfaceHolder, never()).lockCanvas(any());
+        verify(mockCanvas, times(2)).drawColor(Color.BLACK);
+    }
+
     @Test
     public void testAnimationClose_onDestroy() throws Exception {
         engine.onVisibilityChanged(true);
         getSettingsFromEngine(engine).race = "urquan";
         engine.onSettingsChanged(SettingsFragment.ALIEN_RACE);
-        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any(), anyInt());
         engine.getViewModel().setAnimation(mockAnimation);
+        // The worker may still be drawing it, so that's where it's closed, and its bitmap goes back
+        // to the pool
+        AtomicReference<String> closedOn = new AtomicReference<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            closedOn.set(Thread.currentThread().getName());
+            closed.countDown();
+            return null;
+        }).when(mockAnimation).close();
         engine.onDestroy();
-        verify(mockAnimation, atLeastOnce()).close();
+        Assert.assertTrue(closed.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals("WallpaperWorker", closedOn.get());
     }
 
     @Test
     public void testSettingsChanged_AlienRace() throws Exception {
         engine.onVisibilityChanged(true);
         String newRace = createString();
-        when(mockAnimationFactory.create(eq(newRace), any(Context.class), any())).thenReturn(mockAnimation);
+        when(mockAnimationFactory.create(eq(newRace), any(Context.class), any(), anyInt())).thenReturn(mockAnimation);
         getSettingsFromEngine(engine).race = newRace;
         engine.onSettingsChanged(SettingsFragment.ALIEN_RACE);
-        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(eq(newRace), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(eq(newRace), any(Context.class), any(), anyInt());
     }
 
     @Test
     public void testDrawFrame_showsErrorWhenAnimationIsNull() throws Exception {
-        when(mockAnimationFactory.create(anyString(), any(Context.class), any()))
+        when(mockAnimationFactory.create(anyString(), any(Context.class), any(), anyInt()))
                 .thenThrow(new RuntimeException("Simulated load failure"));
         UQMWallpaper.CommsEngine engineSpy = spy(engine);
         doReturn(mockSurfaceHolder).when(engineSpy).getSurfaceHolder();
         engineSpy.onVisibilityChanged(true);
         engineSpy.onSurfaceChanged(mockSurfaceHolder, 0, 1080, 1920);
-        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any(), anyInt());
         Mockito.reset(mockSurfaceHolder, mockCanvas, mockSurface);
         when(mockSurfaceHolder.getSurface()).thenReturn(mockSurface);
         when(mockSurface.isValid()).thenReturn(true);
@@ -634,12 +754,12 @@ public class UQMWallpaperTest extends BaseTest {
     @Test
     public void testLoadAnimation_ErrorLoadingAlien() throws Exception {
         String race = createString();
-        when(mockAnimationFactory.create(eq(race), any(Context.class), any())).thenThrow(new RuntimeException("Generic load error"));
+        when(mockAnimationFactory.create(eq(race), any(Context.class), any(), anyInt())).thenThrow(new RuntimeException("Generic load error"));
         WallpaperSettings settings = getSettingsFromEngine(engine);
         settings.race = race;
         engine.onSettingsChanged(SettingsFragment.ALIEN_RACE);
         engine.onVisibilityChanged(true);
-        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(eq(race), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(eq(race), any(Context.class), any(), anyInt());
         Assert.assertEquals(wallpaperService.getString(R.string.error_loading_alien, race), engine.getViewModel().getErrorMessage());
     }
 
@@ -685,7 +805,7 @@ public class UQMWallpaperTest extends BaseTest {
     public void testOnSurfaceChanged_AnimationExists() throws Exception {
         engine.getViewModel().setAnimation(mockAnimation);
         engine.onSurfaceChanged(mockSurfaceHolder, 0, 1080, 1920);
-        verify(mockAnimation, atLeastOnce()).getFrame();
+        verify(mockAnimation, atLeastOnce()).currentFrame();
     }
 
     @Test
@@ -781,9 +901,9 @@ public class UQMWallpaperTest extends BaseTest {
         doReturn(WallpaperManager.FLAG_SYSTEM).when(testEngine).getWallpaperFlagsSafe();
         testEngine.onCreate(mockSurfaceHolder);
         testEngine.onSurfaceChanged(mockSurfaceHolder, 0, 1080, 1920);
-        verify(mockAnimationFactory, never()).create(anyString(), any(Context.class), any());
+        verify(mockAnimationFactory, never()).create(anyString(), any(Context.class), any(), anyInt());
         testEngine.onVisibilityChanged(true);
-        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(anyString(), any(Context.class), any(), anyInt());
     }
 
     @Test
@@ -794,12 +914,12 @@ public class UQMWallpaperTest extends BaseTest {
         getSettingsFromEngine(engine).race = race;
         engine.onSettingsChanged(SettingsFragment.ALIEN_RACE);
         // Verify NOT loaded
-        verify(mockAnimationFactory, never()).create(anyString(), any(Context.class), any());
+        verify(mockAnimationFactory, never()).create(anyString(), any(Context.class), any(), anyInt());
         Assert.assertNull(engine.getViewModel().getAnimation());
         // Now set visible
         engine.onVisibilityChanged(true);
         // Verify loaded
-        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(eq(race), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000).atLeastOnce()).create(eq(race), any(Context.class), any(), anyInt());
     }
 
     @Test
@@ -926,7 +1046,7 @@ public class UQMWallpaperTest extends BaseTest {
     public void testTransientVisibility_AbortsLoading() throws Exception {
         CountDownLatch factoryLatch = new CountDownLatch(1);
         CountDownLatch visibilityLatch = new CountDownLatch(1);
-        when(mockAnimationFactory.create(anyString(), any(Context.class), any())).thenAnswer(invocation -> {
+        when(mockAnimationFactory.create(anyString(), any(Context.class), any(), anyInt())).thenAnswer(invocation -> {
             factoryLatch.countDown();
             visibilityLatch.await(2, TimeUnit.SECONDS);
             return mockAnimation;
@@ -940,10 +1060,84 @@ public class UQMWallpaperTest extends BaseTest {
         Assert.assertNull("Animation should be null in ViewModel", engine.getViewModel().getAnimation());
     }
 
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testTrimStage() {
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_NONE, UQMWallpaper.trimStage(0));
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_IDLE, UQMWallpaper.trimStage(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_IDLE, UQMWallpaper.trimStage(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_IDLE, UQMWallpaper.trimStage(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_INVISIBLE, UQMWallpaper.trimStage(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_INVISIBLE, UQMWallpaper.trimStage(ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_DOWNSAMPLE, UQMWallpaper.trimStage(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        Assert.assertEquals(UQMWallpaper.TRIM_STAGE_DOWNSAMPLE, UQMWallpaper.trimStage(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testOnTrimMemory_idleKeepsInvisibleEngines() {
+        engine.getViewModel().setAnimation(mockAnimation);
+        wallpaperService.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        Assert.assertSame(mockAnimation, engine.getViewModel().getAnimation());
+        Assert.assertEquals(1, Content.sampleSize());
+        Assert.assertEquals(1, UQMWallpaper.trimCount(UQMWallpaper.TRIM_STAGE_IDLE));
+        Assert.assertEquals(0, UQMWallpaper.trimCount(UQMWallpaper.TRIM_STAGE_INVISIBLE));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testOnTrimMemory_countsPooledBytes() {
+        BitmapPool.setMaxBytes(1000);
+        Bitmap pooled = mock(Bitmap.class);
+        when(pooled.isMutable()).thenReturn(true);
+        when(pooled.getAllocationByteCount()).thenReturn(400);
+        BitmapPool.put(pooled);
+
+        wallpaperService.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        wallpaperService.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        Assert.assertEquals(2, UQMWallpaper.trimCount(UQMWallpaper.TRIM_STAGE_IDLE));
+        Assert.assertEquals(400, UQMWallpaper.trimmedBytes(UQMWallpaper.TRIM_STAGE_IDLE));
+        verify(pooled).recycle();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testOnTrimMemory_releasesInvisibleEngines() throws Exception {
+        engine.getViewModel().setAnimation(mockAnimation);
+        wallpaperService.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        idleWorker();
+        Assert.assertNull(engine.getViewModel().getAnimation());
+        verify(mockAnimation, timeout(1000)).close();
+        Assert.assertEquals(1, Content.sampleSize());
+        Assert.assertEquals(1, UQMWallpaper.trimCount(UQMWallpaper.TRIM_STAGE_INVISIBLE));
+        Assert.assertEquals(0, UQMWallpaper.trimCount(UQMWallpaper.TRIM_STAGE_DOWNSAMPLE));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testOnTrimMemory_criticalDownsamplesVisibleEngines() {
+        try {
+            engine.onVisibilityChanged(true);
+            verify(mockAnimationFactory, timeout(1000).times(1)).create(anyString(), any(Context.class), any(), anyInt());
+
+            wallpaperService.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+            Assert.assertEquals(UQMWallpaper.LOW_MEMORY_SAMPLE_SIZE, Content.sampleSize());
+            verify(mockAnimationFactory, timeout(1000).times(2)).create(anyString(), any(Context.class), any(), anyInt());
+
+            // Already downsampled, so there's nothing more to reload
+            wallpaperService.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            verify(mockAnimationFactory, Mockito.after(200).times(2)).create(anyString(), any(Context.class), any(), anyInt());
+            Assert.assertEquals(2, UQMWallpaper.trimCount(UQMWallpaper.TRIM_STAGE_INVISIBLE));
+            Assert.assertEquals(1, UQMWallpaper.trimCount(UQMWallpaper.TRIM_STAGE_DOWNSAMPLE));
+        } finally {
+            Content.setSampleSize(1);
+        }
+    }
+
     @Test
     public void testOnVisibilityChanged_ReleasesResourcesWhenHidden() throws Exception {
         engine.onVisibilityChanged(true);
-        verify(mockAnimationFactory, timeout(1000)).create(anyString(), any(Context.class), any());
+        verify(mockAnimationFactory, timeout(1000)).create(anyString(), any(Context.class), any(), anyInt());
         // Ensure ViewModel has the animation
         long start = System.currentTimeMillis();
         while (engine.getViewModel().getAnimation() == null && System.currentTimeMillis() - start < 2000) {
@@ -960,7 +1154,7 @@ public class UQMWallpaperTest extends BaseTest {
     @Test
     public void testLoadAnimation_Canceled() throws Exception {
         String race = "test_race";
-        when(mockAnimationFactory.create(eq(race), any(Context.class), any())).thenThrow(new OperationCanceledException());
+        when(mockAnimationFactory.create(eq(race), any(Context.class), any(), anyInt())).thenThrow(new OperationCanceledException());
         engine.onVisibilityChanged(true);
         getSettingsFromEngine(engine).race = race;
         engine.onSettingsChanged(SettingsFragment.ALIEN_RACE);
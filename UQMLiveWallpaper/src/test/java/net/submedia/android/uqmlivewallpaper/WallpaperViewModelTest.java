@@ -4,6 +4,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyFloat;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
@@ -15,6 +16,7 @@ import static org.mockito.Mockito.when;
 
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.view.MotionEvent;
 
@@ -60,7 +62,7 @@ public class WallpaperViewModelTest extends BaseTest {
         viewModel = new WallpaperViewModel(settings);
         viewModel.setWorkerHandler(mockWorkerHandler);
         viewModel.setOnDrawNeeded(mockOnDrawNeeded);
-        when(mockAnimation.getFrame()).thenReturn(mockFrame);
+        when(mockAnimation.currentFrame()).thenReturn(mockFrame);
         int frameW = 1000;
         int frameH = 1000;
         when(mockFrame.getWidth()).thenReturn(frameW);
@@ -133,7 +135,7 @@ public class WallpaperViewModelTest extends BaseTest {
         when(mockFrame.getWidth()).thenReturn(100);
         viewModel.setAnimation(mockAnimation);
         Animation nullFrameAnim = mock(Animation.class);
-        when(nullFrameAnim.getFrame()).thenReturn(null);
+        when(nullFrameAnim.currentFrame()).thenReturn(null);
         viewModel.setAnimation(nullFrameAnim);
     }
 
@@ -284,6 +286,118 @@ public class WallpaperViewModelTest extends BaseTest {
         Assert.assertEquals(0, viewModel.getOffset());
     }
 
+    @Test
+    public void testSetAnimation_downsampledKeepsOriginalSize() {
+        viewModel.setTotalWidth(4000);
+        viewModel.onSurfaceChanged(2000, 2000);
+        viewModel.setScalingFactor(0f);
+        when(mockAnimation.getSampleSize()).thenReturn(2);
+        viewModel.setAnimation(mockAnimation);
+        Assert.assertEquals(10000, viewModel.getAspect());
+        Assert.assertEquals(2000, viewModel.getDestRect().width());
+        Assert.assertEquals(2000, viewModel.getDestRect().height());
+
+        viewModel.updateAspect(mockFrame);
+        Assert.assertEquals(1000, viewModel.getDestRect().width());
+        viewModel.updateAspect(mockAnimation);
+        Assert.assertEquals(2000, viewModel.getDestRect().width());
+    }
+
+    @Test
+    public void testTakeDirtyRect() {
+        viewModel.setTotalWidth(4000);
+        viewModel.onSurfaceChanged(2000, 2000);
+        viewModel.setScalingFactor(0f);
+        when(mockAnimation.getSampleSize()).thenReturn(2);
+        viewModel.setAnimation(mockAnimation);
+        Rect dest = viewModel.getDestRect();
+        Assert.assertEquals(2000, dest.width());
+        Rect dirty = new Rect();
+
+        // The first draw is a full one, and then nothing has changed
+        Assert.assertFalse(viewModel.takeDirtyRect(dirty));
+        Assert.assertTrue(viewModel.takeDirtyRect(dirty));
+        Assert.assertTrue(dirty.isEmpty());
+
+        // A stamp is where it's drawn on the surface, with a pixel around it for the filtering
+        when(mockAnimation.takeDirty(any(Rect.class))).thenAnswer(invocation -> {
+            invocation.<Rect>getArgument(0).set(10, 20, 30, 40);
+            return true;
+        });
+        Assert.assertTrue(viewModel.takeDirtyRect(dirty));
+        Assert.assertEquals(new Rect(dest.left + 18, dest.top + 38, dest.left + 62, dest.top + 82), dirty);
+
+        // Anything else changing needs a full redraw, as does a filled frame, every time
+        viewModel.setUserOffset(0);
+        Assert.assertFalse(viewModel.takeDirtyRect(dirty));
+        viewModel.setFillFrame(true);
+        Assert.assertFalse(viewModel.takeDirtyRect(dirty));
+        Assert.assertFalse(viewModel.takeDirtyRect(dirty));
+    }
+
+    @Test
+    public void testTakeDirtyRect_noAnimation() {
+        viewModel.onSurfaceChanged(1000, 1000);
+        Rect dirty = new Rect();
+        Assert.assertFalse(viewModel.takeDirtyRect(dirty));
+        Assert.assertFalse(viewModel.takeDirtyRect(dirty));
+    }
+
+    @Test
+    public void testSampleSizeFor() {
+        Assert.assertEquals(1, WallpaperViewModel.sampleSizeFor(2.0f, 1));
+        Assert.assertEquals(1, WallpaperViewModel.sampleSizeFor(1.0f, 1));
+        Assert.assertEquals(1, WallpaperViewModel.sampleSizeFor(0.6f, 1));
+        Assert.assertEquals(2, WallpaperViewModel.sampleSizeFor(0.4f, 1));
+        Assert.assertEquals(4, WallpaperViewModel.sampleSizeFor(0.2f, 1));
+        Assert.assertEquals(WallpaperViewModel.MAX_SURFACE_SAMPLE_SIZE, WallpaperViewModel.sampleSizeFor(0.01f, 1));
+        // Nothing to go by
+        Assert.assertEquals(2, WallpaperViewModel.sampleSizeFor(0f, 2));
+    }
+
+    @Test
+    public void testSampleSizeFor_hysteresis() {
+        // Just under the threshold isn't enough to go coarser...
+        Assert.assertEquals(1, WallpaperViewModel.sampleSizeFor(0.48f, 1));
+        Assert.assertEquals(2, WallpaperViewModel.sampleSizeFor(0.24f, 2));
+        Assert.assertEquals(2, WallpaperViewModel.sampleSizeFor(0.24f, 1));
+        // ...nor to stay there, once it's coarser
+        Assert.assertEquals(2, WallpaperViewModel.sampleSizeFor(0.48f, 2));
+        // but anything over it goes finer right away
+        Assert.assertEquals(1, WallpaperViewModel.sampleSizeFor(0.51f, 2));
+        Assert.assertEquals(2, WallpaperViewModel.sampleSizeFor(0.26f, 4));
+    }
+
+    @Test
+    public void testSampleSize_reloadsWhenDrawnSmall() {
+        Runnable onSampleSizeChanged = mock(Runnable.class);
+        viewModel.setOnSampleSizeChanged(onSampleSizeChanged);
+        viewModel.setTotalWidth(4000);
+        viewModel.onSurfaceChanged(300, 300);
+        viewModel.setScalingFactor(0f);
+        when(mockAnimation.getSampleSize()).thenReturn(1);
+        viewModel.setAnimation(mockAnimation);
+        Assert.assertEquals(1, viewModel.getSampleSize());
+        verify(mockWorkerHandler, never()).post(onSampleSizeChanged);
+
+        // 1000 wide, drawn at 300
+        viewModel.setTotalWidth(300);
+        viewModel.setScalingFactor(100f);
+        Assert.assertEquals(2, viewModel.getSampleSize());
+        verify(mockWorkerHandler).post(onSampleSizeChanged);
+
+        // The reloaded animation is the right size already
+        Animation reloaded = mock(Animation.class);
+        Bitmap reloadedFrame = mock(Bitmap.class);
+        when(reloadedFrame.getWidth()).thenReturn(500);
+        when(reloadedFrame.getHeight()).thenReturn(500);
+        when(reloaded.currentFrame()).thenReturn(reloadedFrame);
+        when(reloaded.getSampleSize()).thenReturn(2);
+        viewModel.setAnimation(reloaded);
+        Assert.assertEquals(2, viewModel.getSampleSize());
+        verify(mockWorkerHandler, times(1)).post(onSampleSizeChanged);
+    }
+
     @Test
     public void testUpdateAspect_ZeroWidthBitmap() {
         Bitmap zeroWidthBitmap = mock(Bitmap.class);
@@ -325,6 +439,63 @@ public class WallpaperViewModelTest extends BaseTest {
         verify(mockWorkerHandler, times(2)).postDelayed(any(Runnable.class), any(long.class));
     }
 
+    @Test
+    public void testNotifyDrawNeeded_TicksAnimation() {
+        viewModel.setAnimation(mockAnimation);
+        viewModel.setVisible(true);
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockWorkerHandler, atLeastOnce()).postDelayed(runnableCaptor.capture(), any(long.class));
+        runnableCaptor.getValue().run();
+        verify(mockAnimation).tick(anyLong());
+        verify(mockOnDrawNeeded).run();
+    }
+
+    @Test
+    public void testNotifyDrawNeeded_SkipsWhenNothingStamped() {
+        viewModel.setAnimation(mockAnimation);
+        viewModel.setVisible(true);
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockWorkerHandler, atLeastOnce()).postDelayed(runnableCaptor.capture(), any(long.class));
+        Runnable drawRunnable = runnableCaptor.getValue();
+
+        // The first tick is drawn, but the ones after it didn't stamp anything
+        for (int i = 0; i < 3; i++) drawRunnable.run();
+        verify(mockAnimation, times(3)).tick(anyLong());
+        verify(mockOnDrawNeeded, times(1)).run();
+        // and the next tick is still scheduled, every time
+        verify(mockWorkerHandler, times(4)).postDelayed(any(Runnable.class), any(long.class));
+
+        when(mockAnimation.getStampCount()).thenReturn(1L);
+        drawRunnable.run();
+        verify(mockOnDrawNeeded, times(2)).run();
+
+        // Coming back into view always draws
+        viewModel.setVisible(false);
+        viewModel.setVisible(true);
+        drawRunnable.run();
+        verify(mockOnDrawNeeded, times(3)).run();
+    }
+
+    @Test
+    public void testRedraw_DoesNotTickOrReschedule() {
+        viewModel.setAnimation(mockAnimation);
+        viewModel.setVisible(true);
+        Mockito.reset(mockWorkerHandler);
+        viewModel.onSurfaceChanged(1080, 1920);
+        viewModel.onOffsetsChanged(0.5f, 0.25f, false);
+        viewModel.setScalingFactor(50f);
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockWorkerHandler, times(3)).post(runnableCaptor.capture());
+        for (Runnable runnable : runnableCaptor.getAllValues()) {
+            runnable.run();
+        }
+        verify(mockOnDrawNeeded, times(3)).run();
+        verify(mockAnimation, never()).tick(anyLong());
+        verify(mockAnimation, never()).getFrame();
+        verify(mockWorkerHandler, never()).postDelayed(any(Runnable.class), any(long.class));
+        verify(mockWorkerHandler, never()).removeCallbacks(any(Runnable.class));
+    }
+
     @Test
     public void testOnOffsetsChanged_Landscape_ResetsOffset() {
         viewModel.onSurfaceChanged(1080, 1920);
@@ -431,6 +602,23 @@ public class WallpaperViewModelTest extends BaseTest {
         verify(mockWorkerHandler).postDelayed(any(Runnable.class), eq(50L));
     }
 
+    @Test
+    public void testScheduleDraw_ScaledClock() {
+        AnimationClock.Manual source = new AnimationClock.Manual(0);
+        Animation.setClock(new AnimationClock.Scaled(source, 2f));
+        mockAnimation.next_frame_delay = 50;
+        viewModel.setAnimation(mockAnimation);
+        viewModel.setVisible(true);
+        // 50ms of animation go by in 25ms
+        verify(mockWorkerHandler).postDelayed(any(Runnable.class), eq(25L));
+
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockWorkerHandler).postDelayed(runnableCaptor.capture(), any(long.class));
+        source.advance(25);
+        runnableCaptor.getValue().run();
+        verify(mockAnimation).tick(50L);
+    }
+
     @Test
     public void testScheduleDraw_NoAnimation_UsesDefaultDelay() {
         viewModel.setAnimation(null);